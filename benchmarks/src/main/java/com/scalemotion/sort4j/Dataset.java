@@ -0,0 +1,108 @@
+package com.scalemotion.sort4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic string datasets of benchmarks. Generation is seeded, so every run sorts the same data
+ */
+public enum Dataset {
+    /**
+     * Random strings of 10..30 characters
+     */
+    RANDOM {
+        @Override
+        List<String> generate(int count, Random random) {
+            return randomStrings(count, 10, 30, random);
+        }
+    },
+    /**
+     * Random strings in ascending order
+     */
+    PRESORTED {
+        @Override
+        List<String> generate(int count, Random random) {
+            final List<String> items = randomStrings(count, 10, 30, random);
+            Collections.sort(items);
+            return items;
+        }
+    },
+    /**
+     * Random strings in descending order
+     */
+    REVERSE {
+        @Override
+        List<String> generate(int count, Random random) {
+            final List<String> items = randomStrings(count, 10, 30, random);
+            Collections.sort(items, Collections.reverseOrder());
+            return items;
+        }
+    },
+    /**
+     * Strings from 100 distinct values
+     */
+    DUPLICATES {
+        @Override
+        List<String> generate(int count, Random random) {
+            final List<String> values = randomStrings(100, 10, 30, random);
+            final List<String> items = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                items.add(values.get(random.nextInt(values.size())));
+            }
+            return items;
+        }
+    },
+    /**
+     * Random strings of 1..4 characters
+     */
+    SHORT_STRINGS {
+        @Override
+        List<String> generate(int count, Random random) {
+            return randomStrings(count, 1, 4, random);
+        }
+    },
+    /**
+     * Random strings of 200..300 characters with common 100 character prefix
+     */
+    LONG_STRINGS {
+        @Override
+        List<String> generate(int count, Random random) {
+            final String prefix = randomStrings(1, 100, 100, random).get(0);
+            final List<String> items = randomStrings(count, 100, 200, random);
+            for (int i = 0; i < items.size(); i++) {
+                items.set(i, prefix + items.get(i));
+            }
+            return items;
+        }
+    };
+
+    /**
+     * @param count amount of items
+     * @param random source of randomness
+     * @return generated items
+     */
+    abstract List<String> generate(int count, Random random);
+
+    /**
+     * @param count amount of items
+     * @return items generated with fixed seed
+     */
+    public List<String> generate(int count) {
+        return generate(count, new Random(count));
+    }
+
+    private static List<String> randomStrings(int count, int minLength, int maxLength, Random random) {
+        final List<String> items = new ArrayList<String>(count);
+        final char[] chars = new char[maxLength];
+        for (int i = 0; i < count; i++) {
+            final int length = minLength + random.nextInt(maxLength - minLength + 1);
+            for (int j = 0; j < length; j++) {
+                chars[j] = (char) ('a' + random.nextInt(26));
+            }
+            items.add(new String(chars, 0, length));
+        }
+        return items;
+    }
+}
@@ -0,0 +1,65 @@
+package com.scalemotion.sort4j;
+
+import com.scalemotion.sort4j.text.TextInputFormat;
+import com.scalemotion.sort4j.text.TextOutputFormat;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of text formats: parsing lines with {@link TextInputFormat} and encoding them with {@link TextOutputFormat}.
+ * Data is kept in memory, so only CPU cost of formats is measured
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FormatBenchmark {
+    private static final int ITEMS = 500000;
+
+    @Param({"RANDOM", "SHORT_STRINGS", "LONG_STRINGS"})
+    public Dataset dataset;
+
+    private List<String> items;
+    private byte[] text;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        items = dataset.generate(ITEMS);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputFormat.Writer<String> writer = new TextOutputFormat().initialize(bytes);
+        for (String item : items) {
+            writer.write(item);
+        }
+        writer.close();
+        text = bytes.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public void readText(Blackhole blackhole) throws IOException {
+        final DataInputFormat.Reader<String> reader = new TextInputFormat().initialize(new ByteArrayInputStream(text));
+        while (reader.hasNext()) {
+            blackhole.consume(reader.nextItem());
+        }
+        reader.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public void writeText() throws IOException {
+        final DataOutputFormat.Writer<String> writer = new TextOutputFormat().initialize(new NullOutputStream());
+        for (String item : items) {
+            writer.write(item);
+        }
+        writer.close();
+    }
+}
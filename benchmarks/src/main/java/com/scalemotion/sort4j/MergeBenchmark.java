@@ -0,0 +1,112 @@
+package com.scalemotion.sort4j;
+
+import com.scalemotion.sort4j.spill.SpillFormat;
+import com.scalemotion.sort4j.text.StringSerializer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling of merge with fan-in: the same items are divided into fanIn sorted runs which are merged
+ * from memory (comparisons only) and from temporary files in spill format (as the merge of {@link MergeSorter} does)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MergeBenchmark {
+    private static final int ITEMS = 1000000;
+
+    @Param({"2", "8", "64", "512"})
+    public int fanIn;
+
+    @Param({"LOSER_TREE", "HEAP"})
+    public MergeStrategy strategy;
+
+    @Param({"RANDOM", "DUPLICATES"})
+    public Dataset dataset;
+
+    private final List<List<String>> runs = new ArrayList<List<String>>();
+    private final List<File> files = new ArrayList<File>();
+    private final SpillFormat<String> format = new SpillFormat<String>(new StringSerializer());
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        final List<String> items = dataset.generate(ITEMS);
+        for (int i = 0; i < fanIn; i++) {
+            final List<String> run = new ArrayList<String>(items.subList(i * ITEMS / fanIn, (i + 1) * ITEMS / fanIn));
+            Collections.sort(run);
+            runs.add(run);
+            final File file = File.createTempFile("sort4j-benchmark-", ".run");
+            final DataOutputFormat.Writer<String> writer = format.initialize(new FileOutputStream(file));
+            for (String item : run) {
+                writer.write(item);
+            }
+            writer.close();
+            files.add(file);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public void mergeInMemory(Blackhole blackhole) throws IOException {
+        final List<DataInputFormat.Reader<String>> readers = new ArrayList<DataInputFormat.Reader<String>>();
+        for (List<String> run : runs) {
+            readers.add(new ListReader(run));
+        }
+        merge(readers, blackhole);
+    }
+
+    @Benchmark
+    public void mergeSpillFiles(Blackhole blackhole) throws IOException {
+        final List<DataInputFormat.Reader<String>> readers = new ArrayList<DataInputFormat.Reader<String>>();
+        for (File file : files) {
+            readers.add(format.initialize(new BufferedInputStream(new FileInputStream(file), 64 * 1024)));
+        }
+        merge(readers, blackhole);
+    }
+
+    private void merge(List<DataInputFormat.Reader<String>> readers, Blackhole blackhole) throws IOException {
+        final RunMerger<String> merger = strategy.create(readers, new ComparableComparator<String>());
+        try {
+            while (merger.hasNext()) {
+                blackhole.consume(merger.next());
+            }
+        } finally {
+            merger.close();
+        }
+    }
+
+    private static class ListReader implements DataInputFormat.Reader<String> {
+        private final List<String> items;
+        private int position;
+
+        ListReader(List<String> items) {
+            this.items = items;
+        }
+
+        public boolean hasNext() {
+            return position < items.size();
+        }
+
+        public String nextItem() {
+            return items.get(position++);
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.scalemotion.sort4j;
+
+import com.scalemotion.sort4j.spill.SpillFormat;
+import com.scalemotion.sort4j.text.StringKeyExtractor;
+import com.scalemotion.sort4j.text.StringSerializer;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run generation as done by spill of a chunk: chunk is sorted in memory (by comparator or by radix sort
+ * of key prefixes) and written in spill format
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RunSortBenchmark {
+    private static final int ITEMS = 500000;
+
+    @Param({"RANDOM", "PRESORTED", "REVERSE", "DUPLICATES", "SHORT_STRINGS", "LONG_STRINGS"})
+    public Dataset dataset;
+
+    @Param({"false", "true"})
+    public boolean prefixes;
+
+    private List<String> items;
+    private final SpillFormat<String> format = new SpillFormat<String>(new StringSerializer());
+
+    @Setup(Level.Trial)
+    public void generate() {
+        items = dataset.generate(ITEMS);
+    }
+
+    @Benchmark
+    public List<String> sort() {
+        final List<String> chunk = new ArrayList<String>(items);
+        sort(chunk);
+        return chunk;
+    }
+
+    @Benchmark
+    public List<String> sortAndSpill() throws IOException {
+        final List<String> chunk = new ArrayList<String>(items);
+        sort(chunk);
+        final DataOutputFormat.Writer<String> writer = format.initialize(new NullOutputStream());
+        for (String item : chunk) {
+            writer.write(item);
+        }
+        writer.close();
+        return chunk;
+    }
+
+    private void sort(List<String> chunk) {
+        if (prefixes) {
+            PrefixSorter.sort(chunk, new StringKeyExtractor(), new ComparableComparator<String>());
+        } else {
+            Collections.sort(chunk);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.scalemotion.sort4j;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end {@link MergeSorter#sort(SortingTask)} of a text file with different amount of threads.
+ * Memory buffer is smaller than input, so chunks are spilled and merged
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SortBenchmark {
+    private static final int ITEMS = 2000000;
+    private static final long MEMORY_BUFFER = 64L * 1024 * 1024;
+    private static final long SPLIT_SIZE = 4L * 1024 * 1024;
+
+    @Param({"1", "2", "4", "8"})
+    public int executionThreads;
+
+    @Param({"RANDOM", "PRESORTED", "DUPLICATES"})
+    public Dataset dataset;
+
+    private File directory;
+    private File input;
+    private File output;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        directory = File.createTempFile("sort4j-benchmark-", "");
+        directory.delete();
+        directory.mkdirs();
+        input = new File(directory, "input.txt");
+        output = new File(directory, "output.txt");
+        FileUtils.writeLines(input, "UTF-8", dataset.generate(ITEMS), "\n");
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public SortMetrics sort() {
+        final MergeSorter<String> sorter = new MergeSorter<String>(new File(directory, "tmp").getAbsolutePath(), executionThreads, MEMORY_BUFFER);
+        sorter.setSplitSize(SPLIT_SIZE);
+        sorter.sort(SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        return sorter.getMetrics();
+    }
+}
@@ -0,0 +1,81 @@
+package com.scalemotion.sort4j;
+
+/**
+ * Bloom filter of serialized items, used by {@link SparseIndex} to skip blocks which don't contain the key.
+ * Filter is stored in index file, so it hashes bytes rather than {@link Object#hashCode()}, which may differ
+ * between JVMs. Positions are computed by double hashing of 64-bit hash of the bytes
+ */
+class BloomFilter {
+    private final long[] bits;
+    private final int hashes;
+
+    /**
+     * @param items expected amount of items
+     * @param bitsPerItem size of filter per item, 10 bits give about 1% of false positives
+     */
+    BloomFilter(int items, int bitsPerItem) {
+        this(new long[Math.max(1, (int) (((long) items * bitsPerItem + 63) / 64))], bitsPerItem);
+    }
+
+    /**
+     * @param bits bits of existing filter
+     * @param bitsPerItem size of filter per item
+     */
+    BloomFilter(long[] bits, int bitsPerItem) {
+        this.bits = bits;
+        this.hashes = Math.max(1, (int) Math.round(bitsPerItem * Math.log(2)));
+    }
+
+    /**
+     * @param data buffer with serialized item
+     * @param length length of serialized item
+     */
+    void add(byte[] data, int length) {
+        final long size = (long) bits.length * 64;
+        final long hash = hash(data, length);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            final long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % size;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if item certainly wasn't added
+     */
+    boolean mightContain(byte[] data, int length) {
+        final long size = (long) bits.length * 64;
+        final long hash = hash(data, length);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            final long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % size;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long[] getBits() {
+        return bits;
+    }
+
+    /**
+     * @return FNV-1a hash of bytes with final mix of MurmurHash3, so both halves are well distributed
+     */
+    private static long hash(byte[] data, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            h ^= data[i] & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53ed034L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,16 @@
+package com.scalemotion.sort4j;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Iterator over sorted items that holds resources (temporary files, memory, threads). It's closed automatically
+ * when all items are read, otherwise it should be closed explicitly. {@link #remove()} is not supported
+ * @param <T> type of item
+ */
+public interface CloseableIterator<T> extends Iterator<T>, Closeable {
+    /**
+     * Releases resources of the sort. Unlike {@link Closeable#close()} doesn't throw checked exceptions
+     */
+    public void close();
+}
@@ -0,0 +1,29 @@
+package com.scalemotion.sort4j;
+
+/**
+ * Combines items that are equal according to comparator of {@link SortingTask}, e.g. drops duplicates or
+ * sums counters of the same key. Combiner is applied to each sorted chunk before it's written to disk, in every merge
+ * pass and in the final merge, so it could be called several times for the same key with partially combined items.
+ * Result must be equal to the arguments according to comparator.
+ * <p>
+ * Use {@link #DISTINCT} to remove duplicates
+ * @param <T> item type
+ */
+public interface Combiner<T> {
+    /**
+     * Combiner that keeps the first of equal items
+     */
+    @SuppressWarnings("rawtypes")
+    public static final Combiner DISTINCT = new Combiner() {
+        public Object combine(Object first, Object second) {
+            return first;
+        }
+    };
+
+    /**
+     * @param first item that goes first in sorted order
+     * @param second item equal to the first one
+     * @return combined item
+     */
+    public T combine(T first, T second);
+}
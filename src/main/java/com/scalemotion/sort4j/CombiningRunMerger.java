@@ -0,0 +1,53 @@
+package com.scalemotion.sort4j;
+
+import java.io.IOException;
+import java.util.Comparator;
+
+/**
+ * Applies {@link Combiner} to sequence of items produced by another merger: consecutive items equal
+ * according to comparator are combined into one
+ * @param <T> item type
+ */
+class CombiningRunMerger<T> implements RunMerger<T> {
+    private final RunMerger<T> merger;
+    private final Comparator<? super T> comparator;
+    private final Combiner<T> combiner;
+    private final SortMetrics metrics;
+    private T pending;
+    private boolean hasPending;
+
+    CombiningRunMerger(RunMerger<T> merger, Comparator<? super T> comparator, Combiner<T> combiner, SortMetrics metrics) {
+        this.merger = merger;
+        this.comparator = comparator;
+        this.combiner = combiner;
+        this.metrics = metrics;
+    }
+
+    public boolean hasNext() {
+        return hasPending || merger.hasNext();
+    }
+
+    public T next() throws IOException {
+        T result = hasPending ? pending : merger.next();
+        hasPending = false;
+        pending = null;
+        long combined = 0;
+        while (merger.hasNext()) {
+            final T next = merger.next();
+            if (comparator.compare(result, next) != 0) {
+                //first item of the next group is kept until next call
+                pending = next;
+                hasPending = true;
+                break;
+            }
+            result = combiner.combine(result, next);
+            combined++;
+        }
+        metrics.addRecordsCombined(combined);
+        return result;
+    }
+
+    public void close() throws IOException {
+        merger.close();
+    }
+}
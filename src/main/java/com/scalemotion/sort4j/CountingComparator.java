@@ -0,0 +1,44 @@
+package com.scalemotion.sort4j;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Comparator that counts its calls, see {@link MergeSorter#setCountComparisons(boolean)}. Each thread
+ * increments its own counter, so counting doesn't make threads contend
+ * @param <T> item type
+ */
+class CountingComparator<T> implements Comparator<T> {
+    private final Comparator<T> comparator;
+    private final List<long[]> counters = new CopyOnWriteArrayList<long[]>();
+    private final ThreadLocal<long[]> counter = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            final long[] c = new long[1];
+            counters.add(c);
+            return c;
+        }
+    };
+
+    CountingComparator(Comparator<T> comparator) {
+        this.comparator = comparator;
+    }
+
+    public int compare(T o1, T o2) {
+        counter.get()[0]++;
+        return comparator.compare(o1, o2);
+    }
+
+    /**
+     * @return amount of calls, counters of running threads are read without synchronization,
+     * so the value is exact only when they're finished
+     */
+    long getCount() {
+        long count = 0;
+        for (long[] c : counters) {
+            count += c[0];
+        }
+        return count;
+    }
+}
@@ -18,4 +18,15 @@ public interface DataOutputFormat<T>  {
     public static interface Writer<T> extends Closeable {
         public void write(T item) throws IOException;
     }
+
+    /**
+     * Writer that knows its logical position in output
+     * @param <T> object type
+     */
+    public static interface PositionedWriter<T> extends Writer<T> {
+        /**
+         * @return amount of bytes of items written so far, including bytes that are still buffered
+         */
+        public long position();
+    }
 }
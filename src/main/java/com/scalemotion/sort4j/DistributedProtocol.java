@@ -0,0 +1,70 @@
+package com.scalemotion.sort4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Messages between {@link DistributedSorter} and {@link DistributedWorker}. Every message is a command byte
+ * followed by its fields written with {@link DataOutputStream}, items are written as length and serialized bytes:
+ * <pre>
+ * coordinator -> worker:
+ *   CONFIG  factoryClass:utf temporaryDirectory:utf memoryBufferBytes:int64 workerId:int32
+ *   MAP     file:utf start:int64 end:int64
+ *   REDUCE  lower:item? upper:item? runs:int32 (file:utf offset:int64)* output:utf
+ *   EXIT
+ * worker -> coordinator:
+ *   RUNS    records:int64 runs:int32 (file:utf blocks:int32 (offset:int64 firstItem:item)*)*
+ *   DONE    records:int64
+ *   ERROR   message:utf
+ * </pre>
+ * Optional item is a boolean flag followed by the item
+ */
+final class DistributedProtocol {
+    static final byte CONFIG = 1;
+    static final byte MAP = 2;
+    static final byte REDUCE = 3;
+    static final byte EXIT = 4;
+    static final byte RUNS = 5;
+    static final byte DONE = 6;
+    static final byte ERROR = 7;
+
+    private DistributedProtocol() {
+    }
+
+    static <T> void writeItem(DataOutputStream out, T item, Serializer<T> serializer) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        serializer.serialize(item, new DataOutputStream(bytes));
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    static <T> T readItem(DataInputStream in, Serializer<T> serializer) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return serializer.deserialize(bytes, 0, bytes.length);
+    }
+
+    static <T> void writeOptionalItem(DataOutputStream out, T item, Serializer<T> serializer) throws IOException {
+        out.writeBoolean(item != null);
+        if (item != null) {
+            writeItem(out, item, serializer);
+        }
+    }
+
+    static <T> T readOptionalItem(DataInputStream in, Serializer<T> serializer) throws IOException {
+        return in.readBoolean() ? readItem(in, serializer) : null;
+    }
+
+    /**
+     * Reads command byte, turns ERROR message into exception
+     */
+    static byte readCommand(DataInputStream in) throws IOException {
+        final byte command = in.readByte();
+        if (command == ERROR) {
+            throw new IOException("Worker failed: " + in.readUTF());
+        }
+        return command;
+    }
+}
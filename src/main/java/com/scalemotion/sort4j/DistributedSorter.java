@@ -0,0 +1,426 @@
+package com.scalemotion.sort4j;
+
+import com.scalemotion.sort4j.spill.BlockIndex;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Sorter that runs on several worker processes ({@link DistributedWorker}), possibly on different machines.
+ * Coordinator (this class) divides input files into splits and hands them to workers, each worker sorts its
+ * splits into temporary files and reports first items of their blocks. Coordinator chooses splitters from these
+ * samples, so that key space is divided into ranges of about equal size, and each worker merges one range of all
+ * temporary files into a shard of output. Shards are either concatenated into output file or left as
+ * outputFile-part-00000, outputFile-part-00001, ... (see {@link #setShardedOutput(boolean)}). Nothing is written
+ * if input is empty.
+ * <p>
+ * Workers exchange only file names, offsets and sampled items with coordinator, so input, output and temporary
+ * directory should be on a file system shared by all workers (with the same paths). Workers create tasks
+ * with {@link SortingTaskFactory}, the task should have {@link SortingTask#serializer(Serializer)}.
+ * <p>
+ * By default coordinator launches all workers as local processes with the classpath of current JVM. Set
+ * {@link #setLaunchLocalWorkers(boolean)} to false, {@link #setPort(int)} and {@link #setBindAddress(String)}
+ * to start workers on other nodes. Coordinator doesn't authenticate workers, so it listens only on loopback
+ * interface unless bind address is set, and should be exposed only to trusted network
+ * @param <T> item type
+ */
+public class DistributedSorter<T> implements Sorter<T> {
+    private static final Logger LOG = Logger.getLogger(DistributedSorter.class);
+    private static final long DEFAULT_SPLIT_SIZE = 64L * 1024 * 1024;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 60000;
+    private final Class<? extends SortingTaskFactory<T>> taskFactory;
+    private String temporaryDirectory;
+    private int workers;
+    private long memoryBufferBytes;
+    private long splitSize = DEFAULT_SPLIT_SIZE;
+    private int partitions;
+    private int port;
+    private String bindAddress;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private boolean launchLocalWorkers = true;
+    private boolean shardedOutput;
+    private List<String> workerJvmArguments = new ArrayList<String>();
+
+    /**
+     * @param taskFactory factory that creates tasks in worker processes
+     * @param temporaryDirectory directory where workers keep temporary files (should be shared by all workers)
+     * @param workers amount of worker processes
+     * @param memoryBufferBytes maximum size of in-memory chunk of each worker
+     */
+    public DistributedSorter(Class<? extends SortingTaskFactory<T>> taskFactory, String temporaryDirectory, int workers, long memoryBufferBytes) {
+        this.taskFactory = taskFactory;
+        this.temporaryDirectory = temporaryDirectory;
+        this.workers = workers;
+        this.memoryBufferBytes = memoryBufferBytes;
+    }
+
+    /**
+     * @param splitSize size of input split in bytes (64Mb by default), see {@link MergeSorter#setSplitSize(long)}
+     */
+    public void setSplitSize(long splitSize) {
+        if (splitSize <= 0) {
+            throw new IllegalArgumentException("Split size should be positive");
+        }
+        this.splitSize = splitSize;
+    }
+
+    /**
+     * @param partitions amount of key ranges (output shards), amount of workers by default
+     */
+    public void setPartitions(int partitions) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("There should be at least one partition");
+        }
+        this.partitions = partitions;
+    }
+
+    /**
+     * @param port port coordinator listens on (0 by default, which means any free port and works only for local workers)
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * @param bindAddress address coordinator listens on, e.g. 0.0.0.0 for all interfaces (loopback by default,
+     * which works only for local workers). Anyone who can connect is accepted as a worker
+     */
+    public void setBindAddress(String bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    /**
+     * @param connectTimeout time to wait for all workers to connect, in milliseconds (60 seconds by default)
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @param launchLocalWorkers if true (default), coordinator starts workers as processes on this machine,
+     * otherwise it waits for workers started elsewhere
+     */
+    public void setLaunchLocalWorkers(boolean launchLocalWorkers) {
+        this.launchLocalWorkers = launchLocalWorkers;
+    }
+
+    /**
+     * @param shardedOutput if true, each key range is left in its own file outputFile-part-NNNNN,
+     * otherwise (default) shards are concatenated into output file
+     */
+    public void setShardedOutput(boolean shardedOutput) {
+        this.shardedOutput = shardedOutput;
+    }
+
+    /**
+     * @param workerJvmArguments arguments of local worker JVMs, e.g. -Xmx2g
+     */
+    public void setWorkerJvmArguments(List<String> workerJvmArguments) {
+        this.workerJvmArguments = workerJvmArguments;
+    }
+
+    /**
+     * @param outputFile output file of the task
+     * @param partition number of key range
+     * @return name of output shard
+     */
+    public static String shardName(String outputFile, int partition) {
+        return outputFile + String.format("-part-%05d", partition);
+    }
+
+    public SortStats sort(final SortingTask<T> task) {
+        if (task.serializer() == null) {
+            throw new IllegalArgumentException("Distributed sorting requires serializer");
+        }
+        new File(temporaryDirectory).mkdirs();
+        final BlockingQueue<InputSplit> splits = new LinkedBlockingQueue<InputSplit>();
+        final SortMetrics metrics = new SortMetrics();
+        try {
+            for (String f : task.inputFiles()) {
+                for (InputSplit split : InputSplit.split(new File(f), task.inputFormat(), splitSize)) {
+                    splits.add(split);
+                    metrics.addInputBytes(split.length());
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Can't split input files: " + e.getMessage(), e);
+        }
+        final List<Process> processes = new ArrayList<Process>();
+        final List<Connection> connections = new ArrayList<Connection>();
+        final Map<String, BlockIndex<T>> runs = Collections.synchronizedMap(new LinkedHashMap<String, BlockIndex<T>>());
+        final ExecutorService executor = Executors.newFixedThreadPool(workers);
+        ServerSocket server = null;
+        boolean done = false;
+        try {
+            metrics.startPhase(SortMetrics.Phase.READING);
+            server = new ServerSocket(port, 0, InetAddress.getByName(bindAddress));
+            server.setSoTimeout(connectTimeout);
+            if (launchLocalWorkers) {
+                final String host = server.getInetAddress().isAnyLocalAddress() ? "localhost" : server.getInetAddress().getHostAddress();
+                for (int i = 0; i < workers; i++) {
+                    processes.add(launchWorker(host, server.getLocalPort(), i));
+                }
+            }
+            for (int i = 0; i < workers; i++) {
+                final Connection connection = new Connection(server.accept(), task);
+                connections.add(connection);
+                connection.configure(i);
+            }
+            LOG.debug(workers + " workers connected, " + splits.size() + " splits to sort");
+            runPhase(executor, connections, new ConnectionTask() {
+                public void run(Connection connection) throws IOException {
+                    InputSplit split;
+                    while ((split = splits.poll()) != null) {
+                        connection.map(split, runs, metrics);
+                        metrics.addBytesRead(split.length());
+                    }
+                }
+            });
+            LOG.debug("Map phase done: " + runs.size() + " runs");
+            metrics.startPhase(SortMetrics.Phase.MERGING);
+            //as MergeSorter, nothing is written for empty input
+            if (!runs.isEmpty()) {
+                reduce(executor, connections, runs, task, metrics);
+            }
+            for (Connection connection : connections) {
+                connection.exit();
+            }
+            done = true;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            executor.shutdownNow();
+            for (Connection connection : connections) {
+                connection.close();
+            }
+            if (server != null) {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    //
+                }
+            }
+            for (Process process : processes) {
+                waitFor(process);
+            }
+            for (String run : runs.keySet()) {
+                new File(run).delete();
+            }
+            metrics.startPhase(done ? SortMetrics.Phase.DONE : SortMetrics.Phase.FAILED);
+        }
+        return metrics.snapshot();
+    }
+
+    /**
+     * Merges key ranges of runs into shards and concatenates them unless output is sharded
+     */
+    private void reduce(ExecutorService executor, List<Connection> connections, final Map<String, BlockIndex<T>> runs,
+                        final SortingTask<T> task, final SortMetrics metrics) throws IOException {
+        final List<T> splitters = chooseSplitters(runs.values(), task.comparator());
+        final int ranges = splitters.size() + 1;
+        LOG.debug("Merging " + ranges + " ranges");
+        final BlockingQueue<Integer> partitionQueue = new LinkedBlockingQueue<Integer>();
+        for (int p = 0; p < ranges; p++) {
+            partitionQueue.add(p);
+        }
+        runPhase(executor, connections, new ConnectionTask() {
+            public void run(Connection connection) throws IOException {
+                Integer p;
+                while ((p = partitionQueue.poll()) != null) {
+                    final T lower = p == 0 ? null : splitters.get(p - 1);
+                    final T upper = p == ranges - 1 ? null : splitters.get(p);
+                    connection.reduce(lower, upper, runs, shardName(task.outputFile(), p), metrics);
+                }
+            }
+        });
+        if (!shardedOutput) {
+            final List<File> shards = new ArrayList<File>();
+            for (int p = 0; p < ranges; p++) {
+                shards.add(new File(shardName(task.outputFile(), p)));
+            }
+            MergeSorter.concatenate(shards, new File(task.outputFile()));
+            for (File shard : shards) {
+                shard.delete();
+            }
+        }
+    }
+
+    private Process launchWorker(String host, int port, final int id) throws IOException {
+        final List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath());
+        command.addAll(workerJvmArguments);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(DistributedWorker.class.getName());
+        command.add(host);
+        command.add(String.valueOf(port));
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        final BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        //output is drained so that worker doesn't block on full pipe
+        final Thread drain = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    String line;
+                    while ((line = output.readLine()) != null) {
+                        LOG.debug("[worker " + id + "] " + line);
+                    }
+                } catch (IOException e) {
+                    //
+                }
+            }
+        }, "sort4j-worker-" + id + "-output");
+        drain.setDaemon(true);
+        drain.start();
+        return process;
+    }
+
+    private static void waitFor(Process process) {
+        try {
+            //workers exit after EXIT command or when connection is closed
+            process.waitFor();
+        } catch (InterruptedException e) {
+            process.destroy();
+        }
+    }
+
+    /**
+     * Runs task for each worker connection in parallel and waits for all of them
+     */
+    private void runPhase(ExecutorService executor, List<Connection> connections, final ConnectionTask task) throws IOException {
+        final List<Callable<Object>> calls = new ArrayList<Callable<Object>>();
+        for (final Connection connection : connections) {
+            calls.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    task.run(connection);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Object> result : executor.invokeAll(calls)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Distributed sort failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * @return increasing splitters chosen from first items of blocks, so that ranges contain about
+     * the same amount of blocks
+     */
+    private List<T> chooseSplitters(Collection<BlockIndex<T>> indexes, Comparator<T> comparator) {
+        final List<T> samples = new ArrayList<T>();
+        synchronized (indexes) {
+            for (BlockIndex<T> index : indexes) {
+                for (int i = 0; i < index.size(); i++) {
+                    samples.add(index.firstItem(i));
+                }
+            }
+        }
+        Collections.sort(samples, comparator);
+        final int ranges = partitions > 0 ? partitions : workers;
+        final List<T> splitters = new ArrayList<T>();
+        for (int p = 1; p < ranges && !samples.isEmpty(); p++) {
+            final T splitter = samples.get(p * samples.size() / ranges);
+            if (splitters.isEmpty() || comparator.compare(splitters.get(splitters.size() - 1), splitter) < 0) {
+                splitters.add(splitter);
+            }
+        }
+        return splitters;
+    }
+
+    private abstract class ConnectionTask {
+        abstract void run(Connection connection) throws IOException;
+    }
+
+    /**
+     * Coordinator side of connection with one worker
+     */
+    private class Connection implements Closeable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final SortingTask<T> task;
+
+        private Connection(Socket socket, SortingTask<T> task) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.task = task;
+        }
+
+        void configure(int workerId) throws IOException {
+            out.writeByte(DistributedProtocol.CONFIG);
+            out.writeUTF(taskFactory.getName());
+            out.writeUTF(new File(temporaryDirectory).getAbsolutePath());
+            out.writeLong(memoryBufferBytes);
+            out.writeInt(workerId);
+            out.flush();
+        }
+
+        void map(InputSplit split, Map<String, BlockIndex<T>> runs, SortMetrics metrics) throws IOException {
+            out.writeByte(DistributedProtocol.MAP);
+            out.writeUTF(split.getFile().getAbsolutePath());
+            out.writeLong(split.getStart());
+            out.writeLong(split.getEnd());
+            out.flush();
+            expect(DistributedProtocol.RUNS);
+            metrics.addRecordsRead(in.readLong());
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String file = in.readUTF();
+                final BlockIndex<T> index = new BlockIndex<T>();
+                final int blocks = in.readInt();
+                for (int b = 0; b < blocks; b++) {
+                    final long offset = in.readLong();
+                    index.add(DistributedProtocol.readItem(in, task.serializer()), offset);
+                }
+                runs.put(file, index);
+                metrics.addRunSpilled();
+            }
+        }
+
+        void reduce(T lower, T upper, Map<String, BlockIndex<T>> runs, String output, SortMetrics metrics) throws IOException {
+            out.writeByte(DistributedProtocol.REDUCE);
+            DistributedProtocol.writeOptionalItem(out, lower, task.serializer());
+            DistributedProtocol.writeOptionalItem(out, upper, task.serializer());
+            out.writeInt(runs.size());
+            for (Map.Entry<String, BlockIndex<T>> run : runs.entrySet()) {
+                out.writeUTF(run.getKey());
+                out.writeLong(lower == null ? 0 : run.getValue().offsetBefore(lower, task.comparator()));
+            }
+            out.writeUTF(output);
+            out.flush();
+            expect(DistributedProtocol.DONE);
+            metrics.addRecordsWritten(in.readLong());
+        }
+
+        void exit() throws IOException {
+            out.writeByte(DistributedProtocol.EXIT);
+            out.flush();
+        }
+
+        private void expect(byte command) throws IOException {
+            final byte received = DistributedProtocol.readCommand(in);
+            if (received != command) {
+                throw new IOException("Unexpected response " + received + " from worker");
+            }
+        }
+
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.scalemotion.sort4j;
+
+import com.scalemotion.sort4j.spill.BlockIndex;
+import com.scalemotion.sort4j.spill.SpillFormat;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Worker process of {@link DistributedSorter}. Connects to coordinator, sorts input splits it's given
+ * into temporary files (map phase) and merges key ranges of all temporary files into output shards (reduce phase).
+ * Files are exchanged through file system shared by all workers, only file names, offsets and sampled items
+ * are sent over the socket, see {@link DistributedProtocol}. If sort fails or connection is lost, worker deletes all
+ * temporary files it wrote, including those coordinator doesn't know about yet.
+ * <p>
+ * Local workers are launched by coordinator, on other nodes run
+ * <pre>
+ * java -cp &lt;classpath with sort4j and task factory&gt; com.scalemotion.sort4j.DistributedWorker &lt;coordinator host&gt; &lt;port&gt;
+ * </pre>
+ * @param <T> item type
+ */
+public class DistributedWorker<T> {
+    private static final Logger LOG = Logger.getLogger(DistributedWorker.class);
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private SortingTask<T> task;
+    private SpillFormat<T> spillFormat;
+    private String temporaryDirectory;
+    private long memoryBufferBytes;
+    private int workerId;
+    private int runCounter;
+    private final List<File> writtenRuns = new ArrayList<File>();
+
+    DistributedWorker(Socket socket) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * @param args coordinator host and port
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: DistributedWorker <coordinator host> <port>");
+            System.exit(1);
+        }
+        final Socket socket = new Socket(args[0], Integer.parseInt(args[1]));
+        try {
+            new DistributedWorker<Object>(socket).run();
+        } finally {
+            socket.close();
+        }
+    }
+
+    void run() throws IOException {
+        try {
+            while (true) {
+                final byte command = in.readByte();
+                if (command == DistributedProtocol.CONFIG) {
+                    configure(in.readUTF(), in.readUTF(), in.readLong(), in.readInt());
+                } else if (command == DistributedProtocol.MAP) {
+                    map(new InputSplit(new File(in.readUTF()), in.readLong(), in.readLong()));
+                } else if (command == DistributedProtocol.REDUCE) {
+                    reduce();
+                } else if (command == DistributedProtocol.EXIT) {
+                    return;
+                } else {
+                    throw new IOException("Unknown command " + command);
+                }
+                out.flush();
+            }
+        } catch (Exception e) {
+            LOG.error("Worker " + workerId + " failed: " + e.getMessage(), e);
+            //sort is failed, runs of splits not yet reported to coordinator would be left otherwise
+            for (File run : writtenRuns) {
+                run.delete();
+            }
+            out.writeByte(DistributedProtocol.ERROR);
+            out.writeUTF(String.valueOf(e.getMessage()));
+            out.flush();
+        }
+    }
+
+    private void configure(String factoryClass, String temporaryDirectory, long memoryBufferBytes, int workerId) throws Exception {
+        //class is checked before it's initialized, so coordinator can't make worker run static code of other classes
+        final Class<?> type = Class.forName(factoryClass, false, getClass().getClassLoader());
+        if (!SortingTaskFactory.class.isAssignableFrom(type)) {
+            throw new IllegalArgumentException(factoryClass + " is not a SortingTaskFactory");
+        }
+        @SuppressWarnings("unchecked")
+        final SortingTaskFactory<T> factory = (SortingTaskFactory<T>) type.getConstructor().newInstance();
+        this.task = factory.createTask();
+        if (task.serializer() == null) {
+            throw new IllegalArgumentException("Task of " + factoryClass + " has no serializer");
+        }
+        this.spillFormat = new SpillFormat<T>(task.serializer());
+        this.temporaryDirectory = temporaryDirectory;
+        this.memoryBufferBytes = memoryBufferBytes;
+        this.workerId = workerId;
+        new File(temporaryDirectory).mkdirs();
+    }
+
+    /**
+     * Sorts split into runs and reports them with their block indexes
+     */
+    private void map(InputSplit split) throws IOException {
+        final List<File> runs = new ArrayList<File>();
+        final List<BlockIndex<T>> indexes = new ArrayList<BlockIndex<T>>();
+        final List<T> buffer = new ArrayList<T>();
+        long bufferSize = 0;
+        long records = 0;
+        final DataInputFormat.Reader<T> reader = task.inputFormat().initialize(split.open());
+        try {
+            while (reader.hasNext()) {
+                final T item = reader.nextItem();
+                records++;
+                buffer.add(item);
+                bufferSize += task.memoryCalculator().sizeof(item);
+                if (bufferSize >= memoryBufferBytes) {
+                    writeRun(buffer, runs, indexes);
+                    bufferSize = 0;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (!buffer.isEmpty()) {
+            writeRun(buffer, runs, indexes);
+        }
+        LOG.debug("Worker " + workerId + " sorted " + split + " into " + runs.size() + " runs");
+        out.writeByte(DistributedProtocol.RUNS);
+        out.writeLong(records);
+        out.writeInt(runs.size());
+        for (int i = 0; i < runs.size(); i++) {
+            final BlockIndex<T> index = indexes.get(i);
+            out.writeUTF(runs.get(i).getAbsolutePath());
+            out.writeInt(index.size());
+            for (int b = 0; b < index.size(); b++) {
+                out.writeLong(index.offset(b));
+                DistributedProtocol.writeItem(out, index.firstItem(b), task.serializer());
+            }
+        }
+    }
+
+    private void writeRun(List<T> buffer, List<File> runs, List<BlockIndex<T>> indexes) throws IOException {
+        if (task.keyExtractor() != null) {
+            PrefixSorter.sort(buffer, task.keyExtractor(), task.comparator());
+        } else {
+            Collections.sort(buffer, task.comparator());
+        }
+        final File file = new File(temporaryDirectory, "sort4j-worker-" + workerId + "-" + (runCounter++) + "-" + Math.random());
+        writtenRuns.add(file);
+        final BlockIndex<T> index = new BlockIndex<T>();
+        final DataOutputFormat.Writer<T> writer = spillFormat.initialize(new FileOutputStream(file), index);
+        try {
+            for (T item : buffer) {
+                writer.write(item);
+            }
+        } finally {
+            writer.close();
+        }
+        buffer.clear();
+        runs.add(file);
+        indexes.add(index);
+    }
+
+    /**
+     * Merges range of items of all runs into output shard
+     */
+    private void reduce() throws IOException {
+        final T lower = DistributedProtocol.readOptionalItem(in, task.serializer());
+        final T upper = DistributedProtocol.readOptionalItem(in, task.serializer());
+        final int count = in.readInt();
+        final List<DataInputFormat.Reader<T>> readers = new ArrayList<DataInputFormat.Reader<T>>();
+        RunMerger<T> merger = null;
+        long records = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                final FileInputStream file = new FileInputStream(in.readUTF());
+                file.getChannel().position(in.readLong());
+                readers.add(new RangeReader<T>(spillFormat.initialize(new BufferedInputStream(file, 64 * 1024)),
+                        lower, upper, task.comparator()));
+            }
+            final String output = in.readUTF();
+            merger = MergeStrategy.LOSER_TREE.create(readers, task.comparator(), task.keyExtractor());
+            if (task.combiner() != null) {
+                merger = new CombiningRunMerger<T>(merger, task.comparator(), task.combiner(), new SortMetrics());
+            }
+            final DataOutputFormat.Writer<T> writer = task.outputFormat().initialize(new FileOutputStream(output));
+            try {
+                while (merger.hasNext()) {
+                    writer.write(merger.next());
+                    records++;
+                }
+            } finally {
+                writer.close();
+            }
+        } finally {
+            if (merger != null) {
+                merger.close();
+            } else {
+                for (DataInputFormat.Reader<T> r : readers) {
+                    r.close();
+                }
+            }
+        }
+        out.writeByte(DistributedProtocol.DONE);
+        out.writeLong(records);
+    }
+}
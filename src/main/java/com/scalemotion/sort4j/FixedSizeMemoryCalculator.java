@@ -0,0 +1,24 @@
+package com.scalemotion.sort4j;
+
+/**
+ * Calculator for objects of fixed size, e.g. boxed numbers or small records with primitive fields.
+ * Result includes object header, alignment and reference to the object from the in-memory chunk
+ * @param <T> object type
+ */
+public class FixedSizeMemoryCalculator<T> implements MemoryCalculator<T> {
+    private final int size;
+
+    /**
+     * @param fieldBytes total size of object fields in bytes (8 for {@link Long}, 4 for {@link Integer})
+     */
+    public FixedSizeMemoryCalculator(int fieldBytes) {
+        this.size = (int) ObjectSizes.align(ObjectSizes.OBJECT_HEADER + fieldBytes) + ObjectSizes.REFERENCE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int sizeof(T item) {
+        return size;
+    }
+}
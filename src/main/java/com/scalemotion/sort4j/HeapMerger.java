@@ -0,0 +1,114 @@
+package com.scalemotion.sort4j;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * {@link RunMerger} that keeps runs in a priority queue ordered by their current item
+ * @param <T> type of item
+ */
+class HeapMerger<T> implements RunMerger<T> {
+    private final List<? extends DataInputFormat.Reader<T>> runs;
+    private final PriorityQueue<InputProxy> queue;
+    private final KeyExtractor<? super T> keyExtractor;
+
+    HeapMerger(List<? extends DataInputFormat.Reader<T>> runs, final Comparator<? super T> comparator, KeyExtractor<? super T> keyExtractor) throws IOException {
+        this.runs = runs;
+        this.keyExtractor = keyExtractor;
+        this.queue = new PriorityQueue<InputProxy>(Math.max(1, runs.size()), new Comparator<InputProxy>() {
+            public int compare(InputProxy o1, InputProxy o2) {
+                //prefixes are stored with flipped sign bit, so signed comparison gives unsigned order
+                if (o1.prefix != o2.prefix) {
+                    return o1.prefix < o2.prefix ? -1 : 1;
+                }
+                int result = comparator.compare(o1.peek(), o2.peek());
+                return result != 0 ? result : o1.index - o2.index;
+            }
+        });
+        for (int i = 0; i < runs.size(); i++) {
+            final InputProxy proxy = new InputProxy(runs.get(i), i);
+            if (!proxy.isEmpty()) {
+                queue.add(proxy);
+            }
+        }
+    }
+
+    public boolean hasNext() {
+        return !queue.isEmpty();
+    }
+
+    public T next() throws IOException {
+        final InputProxy top = queue.poll();
+        if (top == null) {
+            throw new IllegalStateException("All runs are merged");
+        }
+        final T element = top.pop();
+        if (!top.isEmpty()) {
+            queue.add(top);
+        }
+        return element;
+    }
+
+    public void close() throws IOException {
+        IOException error = null;
+        for (DataInputFormat.Reader<T> r : runs) {
+            try {
+                r.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private class InputProxy {
+        private final DataInputFormat.Reader<T> input;
+        private final int index;
+        private T item;
+        private long prefix;
+        private boolean empty = false;
+
+        private InputProxy(DataInputFormat.Reader<T> input, int index) throws IOException {
+            this.input = input;
+            this.index = index;
+            readNext();
+        }
+
+        public T peek() {
+            if (empty) {
+                throw new IllegalStateException("Can't peek, it's empty");
+            }
+            return item;
+        }
+
+        public T pop() throws IOException {
+            if (empty) {
+                throw new IllegalStateException("Can't pop, it's empty");
+            }
+            T pop = item;
+            readNext();
+            return pop;
+        }
+
+        private void readNext() throws IOException {
+            if (!input.hasNext()) {
+                empty = true;
+                item = null;
+            } else {
+                empty = false;
+                item = input.nextItem();
+                if (keyExtractor != null) {
+                    prefix = keyExtractor.prefix(item) ^ Long.MIN_VALUE;
+                }
+            }
+        }
+
+        public boolean isEmpty() {
+            return empty;
+        }
+    }
+}
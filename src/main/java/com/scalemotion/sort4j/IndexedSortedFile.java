@@ -0,0 +1,195 @@
+package com.scalemotion.sort4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Sorted file with sparse index written by the final merge (see {@link SortingTask#outputIndex(int)}).
+ * Index is kept in memory, so lookup reads only the blocks that may contain requested items. Blocks
+ * are read with positional reads, one instance could be used by several threads
+ * @param <T> item type
+ */
+public class IndexedSortedFile<T> implements Closeable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private final RandomAccessFile file;
+    private final SparseIndex<T> index;
+    private final DataInputFormat<T> format;
+    private final Comparator<? super T> comparator;
+
+    /**
+     * @param file sorted file, its index should be next to it
+     * @param task task the file was sorted with: input format reads the file, serializer reads index
+     * and comparator defines order
+     * @throws IOException if file or index can't be read
+     */
+    public IndexedSortedFile(String file, SortingTask<T> task) throws IOException {
+        this.index = SparseIndex.read(new File(SparseIndex.indexFile(file)), task.serializer());
+        this.file = new RandomAccessFile(file, "r");
+        this.format = task.inputFormat();
+        this.comparator = task.comparator();
+    }
+
+    /**
+     * @param key item to look for
+     * @return items equal to key, empty list if there are no such items
+     * @throws IOException if file can't be read
+     */
+    public List<T> get(T key) throws IOException {
+        if (index.size() == 0) {
+            return Collections.emptyList();
+        }
+        //equal items may occupy several blocks, the first one that might contain them is read
+        int block = index.blockBefore(key, comparator);
+        while (!index.mightContain(block, key)) {
+            if (block + 1 == index.size() || comparator.compare(index.firstItem(block + 1), key) > 0) {
+                return Collections.emptyList();
+            }
+            block++;
+        }
+        final List<T> result = new ArrayList<T>();
+        final DataInputFormat.Reader<T> reader = open(block);
+        try {
+            while (reader.hasNext()) {
+                final T item = reader.nextItem();
+                final int c = comparator.compare(item, key);
+                if (c > 0) {
+                    break;
+                }
+                if (c == 0) {
+                    result.add(item);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    /**
+     * @param from lower bound (inclusive), null to read from the beginning
+     * @param to upper bound (exclusive), null to read to the end
+     * @return items in range, iterator should be closed if it's not read to the end
+     * @throws IOException if file can't be read
+     */
+    public CloseableIterator<T> scan(T from, T to) throws IOException {
+        final RangeReader<T> reader;
+        if (index.size() == 0) {
+            reader = null;
+        } else {
+            reader = new RangeReader<T>(open(from == null ? 0 : index.blockBefore(from, comparator)), from, to, comparator);
+        }
+        return new CloseableIterator<T>() {
+            private boolean closed;
+
+            public boolean hasNext() {
+                if (closed || reader == null) {
+                    return false;
+                }
+                if (!reader.hasNext()) {
+                    close();
+                    return false;
+                }
+                return true;
+            }
+
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return reader.nextItem();
+                } catch (IOException e) {
+                    close();
+                    throw new RuntimeException("Can't read sorted file: " + e.getMessage(), e);
+                }
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            public void close() {
+                if (closed || reader == null) {
+                    return;
+                }
+                closed = true;
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    //
+                }
+            }
+        };
+    }
+
+    /**
+     * @return amount of indexed blocks
+     */
+    public int getBlocks() {
+        return index.size();
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private DataInputFormat.Reader<T> open(int block) {
+        return format.initialize(new PositionalInputStream(file.getChannel(), index.offset(block), index.offset(index.size())));
+    }
+
+    /**
+     * Stream of file range read with positional reads, so streams of the same channel don't interfere
+     */
+    private static class PositionalInputStream extends InputStream {
+        private final FileChannel channel;
+        private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+        private long position;
+        private final long end;
+        private int bufferPosition;
+        private int bufferLimit;
+
+        PositionalInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (bufferPosition == bufferLimit && !fill()) {
+                return -1;
+            }
+            return buffer[bufferPosition++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (bufferPosition == bufferLimit && !fill()) {
+                return -1;
+            }
+            final int count = Math.min(len, bufferLimit - bufferPosition);
+            System.arraycopy(buffer, bufferPosition, b, off, count);
+            bufferPosition += count;
+            return count;
+        }
+
+        private boolean fill() throws IOException {
+            if (position >= end) {
+                return false;
+            }
+            final int read = channel.read(ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - position)), position);
+            if (read <= 0) {
+                return false;
+            }
+            position += read;
+            bufferPosition = 0;
+            bufferLimit = read;
+            return true;
+        }
+    }
+}
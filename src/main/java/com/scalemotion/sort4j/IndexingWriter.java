@@ -0,0 +1,55 @@
+package com.scalemotion.sort4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writer of sorted output that builds its {@link SparseIndex}. Offset of each block is the position
+ * of output format's writer before the first item of the block, writer is not flushed, so its buffering
+ * is kept. Index is written to sidecar file when writer is closed
+ * @param <T> item type
+ */
+class IndexingWriter<T> implements DataOutputFormat.Writer<T> {
+    private final DataOutputFormat.PositionedWriter<T> writer;
+    private final SparseIndex<T> index;
+    private final File indexFile;
+    private long written;
+    private boolean closed;
+
+    /**
+     * @param file output file, index is written next to it
+     * @param task task with output format, index settings and serializer of index items
+     * @param out stream of output file
+     */
+    IndexingWriter(String file, SortingTask<T> task, OutputStream out) {
+        if (task.serializer() == null) {
+            throw new IllegalArgumentException("Output index requires serializer");
+        }
+        final DataOutputFormat.Writer<T> writer = task.outputFormat().initialize(out);
+        if (!(writer instanceof DataOutputFormat.PositionedWriter)) {
+            throw new IllegalArgumentException("Output index requires writer of output format to report its position");
+        }
+        this.writer = (DataOutputFormat.PositionedWriter<T>) writer;
+        this.index = new SparseIndex<T>(task.outputIndex(), task.outputIndexBloomBits(), task.serializer());
+        this.indexFile = new File(SparseIndex.indexFile(file));
+    }
+
+    public void write(T item) throws IOException {
+        if (written++ % index.getInterval() == 0) {
+            index.addBlock(item, writer.position());
+        }
+        index.addItem(item);
+        writer.write(item);
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writer.close();
+        index.setDataLength(writer.position());
+        index.write(indexFile);
+    }
+}
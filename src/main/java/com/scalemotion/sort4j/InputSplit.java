@@ -0,0 +1,93 @@
+package com.scalemotion.sort4j;
+
+import com.google.common.io.LimitInputStream;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Byte range of input file which is read by single worker. Range boundaries are aligned to
+ * record boundaries, so range could be read with {@link DataInputFormat} as if it was a separate file
+ */
+class InputSplit {
+    private final File file;
+    private final long start;
+    private final long end;
+
+    InputSplit(File file, long start, long end) {
+        this.file = file;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Divides file into splits of approximately splitSize bytes. If format doesn't support
+     * splitting, the whole file will be returned as a single split
+     * @param file file
+     * @param format input format
+     * @param splitSize desired size of split
+     * @return list of splits that covers the whole file
+     * @throws IOException if file can't be read
+     */
+    static List<InputSplit> split(File file, DataInputFormat<?> format, long splitSize) throws IOException {
+        final long length = file.length();
+        if (length <= splitSize || !(format instanceof SplittableInputFormat) || !((SplittableInputFormat<?>) format).isSplittable()) {
+            return Collections.singletonList(new InputSplit(file, 0, length));
+        }
+        final SplittableInputFormat<?> splittable = (SplittableInputFormat<?>) format;
+        final List<InputSplit> splits = new ArrayList<InputSplit>();
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long start = 0;
+            while (start < length) {
+                long end = start + splitSize >= length ? length : splittable.recordBoundary(raf, start + splitSize);
+                if (end <= start) {
+                    throw new IllegalStateException("Input format returned boundary " + end + " before " + start + " for " + file.getAbsolutePath());
+                }
+                splits.add(new InputSplit(file, start, end));
+                start = end;
+            }
+        } finally {
+            raf.close();
+        }
+        return splits;
+    }
+
+    /**
+     * @return stream which reads bytes of this split only
+     * @throws IOException if file can't be opened
+     */
+    InputStream open() throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(start);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new LimitInputStream(in, end - start);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    long getEnd() {
+        return end;
+    }
+
+    long length() {
+        return end - start;
+    }
+
+    @Override
+    public String toString() {
+        return file.getAbsolutePath() + "[" + start + ", " + end + ")";
+    }
+}
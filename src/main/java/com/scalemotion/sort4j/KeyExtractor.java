@@ -0,0 +1,18 @@
+package com.scalemotion.sort4j;
+
+/**
+ * Extracts 64-bit prefix of the sorting key from item. Sorter compares prefixes first (as unsigned numbers)
+ * and calls comparator only if prefixes are equal, so in-memory chunks could be sorted by radix sort
+ * and most of comparisons during merge are comparisons of numbers.
+ * <p>
+ * Prefix must be consistent with comparator of {@link SortingTask}: if comparator says that a &lt; b, then
+ * prefix(a) should be less or equal to prefix(b). Equal prefixes are allowed for different items
+ * @param <T> item type
+ */
+public interface KeyExtractor<T> {
+    /**
+     * @param item item
+     * @return prefix of item's key, compared as unsigned number
+     */
+    public long prefix(T item);
+}
@@ -0,0 +1,75 @@
+package com.scalemotion.sort4j;
+
+/**
+ * Tournament tree of losers over k sources. Each internal node of the tree keeps the index of source
+ * that lost the match in this node, the overall winner is kept in node 0. When the winner advances,
+ * only the matches on the path from its leaf to the root are replayed, so it costs ceil(log2(k))
+ * calls of {@link #beats(int, int)} and no allocations. Subclasses keep current items of sources
+ * and define the order
+ */
+abstract class LoserTree {
+    protected final int size;
+    private final int[] tree;
+
+    protected LoserTree(int size) {
+        this.size = size;
+        this.tree = new int[Math.max(1, size)];
+    }
+
+    /**
+     * Plays all matches, should be called when current items of all sources are known
+     */
+    protected void build() {
+        if (size == 0) {
+            return;
+        }
+        //leaves are nodes size..2*size-1, winner of each match is propagated up, loser stays in node
+        final int[] winners = new int[2 * size];
+        for (int i = 0; i < size; i++) {
+            winners[size + i] = i;
+        }
+        for (int node = size - 1; node >= 1; node--) {
+            final int left = winners[2 * node];
+            final int right = winners[2 * node + 1];
+            if (beats(left, right)) {
+                winners[node] = left;
+                tree[node] = right;
+            } else {
+                winners[node] = right;
+                tree[node] = left;
+            }
+        }
+        tree[0] = winners[1];
+    }
+
+    /**
+     * @param first source index
+     * @param second source index
+     * @return true if current item of the first source should go before current item of the second one.
+     * Exhausted sources should lose to any other source
+     */
+    protected abstract boolean beats(int first, int second);
+
+    /**
+     * @return index of source with the smallest current item
+     */
+    protected int winner() {
+        return tree[0];
+    }
+
+    /**
+     * Replays matches of source after its current item has changed
+     * @param source source index (usually the winner)
+     */
+    protected void replay(int source) {
+        int winner = source;
+        for (int node = (source + size) >> 1; node >= 1; node >>= 1) {
+            final int loser = tree[node];
+            if (beats(loser, winner)) {
+                tree[node] = winner;
+                winner = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+}
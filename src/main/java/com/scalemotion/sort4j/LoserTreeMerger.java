@@ -0,0 +1,95 @@
+package com.scalemotion.sort4j;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * {@link RunMerger} based on tournament tree of losers (see {@link LoserTree}): each item costs exactly
+ * ceil(log2(k)) comparisons and no allocations. If {@link KeyExtractor} is set,
+ * prefixes of current items are cached and compared before calling comparator
+ * @param <T> type of item
+ */
+class LoserTreeMerger<T> extends LoserTree implements RunMerger<T> {
+    private final List<? extends DataInputFormat.Reader<T>> runs;
+    private final Comparator<? super T> comparator;
+    private final KeyExtractor<? super T> keyExtractor;
+    private final Object[] heads;
+    private final long[] prefixes;
+    private final boolean[] exhausted;
+
+    LoserTreeMerger(List<? extends DataInputFormat.Reader<T>> runs, Comparator<? super T> comparator, KeyExtractor<? super T> keyExtractor) throws IOException {
+        super(runs.size());
+        this.runs = runs;
+        this.comparator = comparator;
+        this.keyExtractor = keyExtractor;
+        this.heads = new Object[size];
+        this.prefixes = new long[size];
+        this.exhausted = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            advance(i);
+        }
+        build();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected boolean beats(int first, int second) {
+        if (exhausted[first]) {
+            return false;
+        }
+        if (exhausted[second]) {
+            return true;
+        }
+        //prefixes are stored with flipped sign bit, so signed comparison gives unsigned order
+        if (prefixes[first] != prefixes[second]) {
+            return prefixes[first] < prefixes[second];
+        }
+        final int result = comparator.compare((T) heads[first], (T) heads[second]);
+        return result < 0 || (result == 0 && first < second);
+    }
+
+    private void advance(int run) throws IOException {
+        final DataInputFormat.Reader<T> reader = runs.get(run);
+        if (reader.hasNext()) {
+            final T item = reader.nextItem();
+            heads[run] = item;
+            if (keyExtractor != null) {
+                prefixes[run] = keyExtractor.prefix(item) ^ Long.MIN_VALUE;
+            }
+        } else {
+            heads[run] = null;
+            exhausted[run] = true;
+        }
+    }
+
+    public boolean hasNext() {
+        return size > 0 && !exhausted[winner()];
+    }
+
+    @SuppressWarnings("unchecked")
+    public T next() throws IOException {
+        if (!hasNext()) {
+            throw new IllegalStateException("All runs are merged");
+        }
+        final int winner = winner();
+        final T item = (T) heads[winner];
+        advance(winner);
+        replay(winner);
+        return item;
+    }
+
+    public void close() throws IOException {
+        IOException error = null;
+        for (DataInputFormat.Reader<T> r : runs) {
+            try {
+                r.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package com.scalemotion.sort4j;
+
+import com.scalemotion.sort4j.text.TextInputFormat;
+import com.scalemotion.sort4j.text.TextOutputFormat;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sorter of UTF-8 text files which never decodes lines to strings. Input splits are mapped into memory
+ * ({@link MappedByteBuffer}), each line is kept as (offset, length) slice of mapped bytes and lines are
+ * compared as unsigned bytes, which for UTF-8 is the order of code points. Temporary files are plain text
+ * files, they are read through {@link FileChannel} into reusable buffers, so merge doesn't allocate
+ * anything per line either.
+ * <p>
+ * Order of code points differs from {@link String#compareTo(String)} only for lines that contain both
+ * supplementary characters and characters from U+E000..U+FFFF range, so comparator of the task
+ * should not be changed. Input format should be {@link TextInputFormat} with UTF-8 charset, output
+ * format should be {@link TextOutputFormat} with UTF-8 charset. Line breaks of the input could be either
+ * "\n" or "\r\n", output uses line break of output format. Memory calculator is not used: each line
+ * takes 44 bytes of memoryBufferBytes regardless of its length (lines themselves are not on heap). Split ends
+ * at the end of a line, so a line longer than 1Gb could make it larger than 2Gb, which can't be mapped, such
+ * input is rejected
+ * <p>
+ * Mapping of each split is released as soon as the split is sorted. Java has no public API for that, so
+ * JDK internals are used; where they are not accessible mappings are released only when buffers are garbage
+ * collected, and address space and file handles of sorted splits may stay reserved until then
+ */
+public class MappedTextSorter implements Sorter<String> {
+    private static final Logger LOG = Logger.getLogger(MappedTextSorter.class);
+    private static final long DEFAULT_SPLIT_SIZE = 64L * 1024 * 1024;
+    private static final long MAX_SPLIT_SIZE = 1024L * 1024 * 1024;
+    private static final int DEFAULT_MAX_MERGE_FAN_IN = 128;
+    /**
+     * Heap bytes of a line: prefix, offset and length in the index, keys and order of sort, radix sort copies of both
+     * and scratch of merge sort
+     */
+    private static final int BYTES_PER_LINE = (8 + 4 + 4) + (8 + 4) + (8 + 4) + 4;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte LINE_FEED = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+    private int executionThreads;
+    private long memoryBufferBytes;
+    private String temporaryDirectory;
+    private long splitSize = DEFAULT_SPLIT_SIZE;
+    private int maxMergeFanIn = DEFAULT_MAX_MERGE_FAN_IN;
+
+    /**
+     * @param temporaryDirectory directory where sorter will keep temporary files
+     * @param threads amount of working threads
+     * @param memoryBufferBytes maximum size of line indexes of all threads
+     */
+    public MappedTextSorter(String temporaryDirectory, int threads, long memoryBufferBytes) {
+        this.temporaryDirectory = temporaryDirectory;
+        this.executionThreads = threads;
+        this.memoryBufferBytes = memoryBufferBytes;
+    }
+
+    /**
+     * @param splitSize size of input split in bytes (64Mb by default, at most 1Gb), each split is mapped into
+     * memory as a whole
+     */
+    public void setSplitSize(long splitSize) {
+        if (splitSize <= 0 || splitSize > MAX_SPLIT_SIZE) {
+            throw new IllegalArgumentException("Split size should be positive and not larger than " + MAX_SPLIT_SIZE);
+        }
+        this.splitSize = splitSize;
+    }
+
+    /**
+     * @param maxMergeFanIn maximum amount of simultaneously merged files (128 by default),
+     * see {@link MergeSorter#setMaxMergeFanIn(int)}
+     */
+    public void setMaxMergeFanIn(int maxMergeFanIn) {
+        if (maxMergeFanIn < 2) {
+            throw new IllegalArgumentException("Merge fan-in should be at least 2");
+        }
+        this.maxMergeFanIn = maxMergeFanIn;
+    }
+
+    public SortStats sort(final SortingTask<String> task) {
+        if (!(task.inputFormat() instanceof TextInputFormat) || !isUtf8(((TextInputFormat) task.inputFormat()).getCharset())) {
+            throw new IllegalArgumentException("inputFormat should be UTF-8 " + TextInputFormat.class.getSimpleName());
+        }
+        if (!(task.outputFormat() instanceof TextOutputFormat) || !isUtf8(((TextOutputFormat) task.outputFormat()).getCharset())) {
+            throw new IllegalArgumentException("outputFormat should be UTF-8 " + TextOutputFormat.class.getSimpleName());
+        }
+        if (!(task.comparator() instanceof ComparableComparator)) {
+            throw new IllegalArgumentException("Only natural order of lines is supported");
+        }
+        final byte[] lineBreak = ((TextOutputFormat) task.outputFormat()).getLineBreak().getBytes(UTF8);
+        return new SplitSortJob(temporaryDirectory, executionThreads, maxMergeFanIn) {
+            @Override
+            void sortSplits(BlockingQueue<InputSplit> splits, AtomicBoolean hasErrors) throws Exception {
+                workerMain(splits, this, hasErrors);
+            }
+
+            @Override
+            void checkSplit(InputSplit split) {
+                if (split.length() > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Split " + split.getFile().getAbsolutePath() + " [" + split.getStart()
+                            + ", " + split.getEnd() + ") is larger than 2Gb and can't be mapped, input has too long lines");
+                }
+            }
+
+            @Override
+            void mergeFiles(List<File> files, File output) throws IOException {
+                MappedTextSorter.this.mergeFiles(files, output, new byte[] {LINE_FEED}, null);
+            }
+
+            @Override
+            void mergeOutput(List<File> files) throws IOException {
+                MappedTextSorter.this.mergeFiles(files, new File(task.outputFile()), lineBreak, metrics);
+            }
+        }.run(task.inputFiles(), task.inputFormat(), splitSize);
+    }
+
+    private static boolean isUtf8(String charset) {
+        return Charset.forName(charset).equals(UTF8);
+    }
+
+    private void workerMain(BlockingQueue<InputSplit> splits, SplitSortJob job, AtomicBoolean hasErrors) throws IOException {
+        final int capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE / 2, memoryBufferBytes / executionThreads / BYTES_PER_LINE));
+        final LineIndex index = new LineIndex(capacity);
+        InputSplit split;
+        while (!hasErrors.get() && (split = splits.poll()) != null) {
+            if (split.length() == 0) {
+                continue;
+            }
+            final RandomAccessFile file = new RandomAccessFile(split.getFile(), "r");
+            try {
+                final MappedByteBuffer data = file.getChannel().map(FileChannel.MapMode.READ_ONLY, split.getStart(), split.length());
+                final int limit = data.limit();
+                long lines = 0;
+                int lineStart = 0;
+                for (int i = 0; i <= limit; i++) {
+                    if (i == limit ? lineStart < limit : data.get(i) == LINE_FEED) {
+                        int end = i;
+                        if (end > lineStart && data.get(end - 1) == CARRIAGE_RETURN) {
+                            end--;
+                        }
+                        index.add(data, lineStart, end - lineStart);
+                        lines++;
+                        if (index.size == capacity) {
+                            spill(data, index, job);
+                        }
+                        lineStart = i + 1;
+                    }
+                }
+                job.metrics.addBytesRead(limit);
+                job.metrics.addRecordsRead(lines);
+                //lines are slices of this split's mapping, so they can't be kept after the split
+                if (index.size > 0) {
+                    spill(data, index, job);
+                }
+                unmap(data);
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    private void spill(ByteBuffer data, LineIndex index, SplitSortJob job) throws IOException {
+        long time = System.currentTimeMillis();
+        final int[] order = index.sort(data);
+        LOG.debug("Sorting of " + index.size + " lines done in " + (System.currentTimeMillis() - time) + "ms");
+        final File file = job.newTemporaryFile();
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            final byte[] buffer = new byte[IO_BUFFER_SIZE];
+            final ByteBuffer view = data.duplicate();
+            int position = 0;
+            for (int i = 0; i < index.size; i++) {
+                final int line = order[i];
+                final int length = index.lengths[line];
+                if (position + length + 1 > buffer.length) {
+                    out.write(buffer, 0, position);
+                    position = 0;
+                }
+                if (length + 1 > buffer.length) {
+                    final byte[] large = new byte[length + 1];
+                    ((Buffer) view).position(index.offsets[line]);
+                    view.get(large, 0, length);
+                    large[length] = LINE_FEED;
+                    out.write(large);
+                    continue;
+                }
+                ((Buffer) view).position(index.offsets[line]);
+                view.get(buffer, position, length);
+                position += length;
+                buffer[position++] = LINE_FEED;
+            }
+            out.write(buffer, 0, position);
+        } finally {
+            out.close();
+        }
+        index.clear();
+        job.addRun(file);
+    }
+
+    /**
+     * @param metrics metrics to count written lines in, null if lines are not counted
+     */
+    private void mergeFiles(List<File> files, File output, byte[] lineBreak, SortMetrics metrics) throws IOException {
+        final LineCursor[] cursors = new LineCursor[files.size()];
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(output), IO_BUFFER_SIZE);
+        try {
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = new LineCursor(new FileInputStream(files.get(i)).getChannel());
+            }
+            final LineMerger merger = new LineMerger(cursors);
+            long written = 0;
+            while (merger.hasNext()) {
+                final LineCursor top = merger.top();
+                out.write(top.window, top.lineStart, top.lineLength);
+                out.write(lineBreak);
+                merger.advance();
+                if (metrics != null && ++written == MergeSorter.WRITTEN_RECORDS_BATCH) {
+                    metrics.addRecordsWritten(written);
+                    written = 0;
+                }
+            }
+            if (metrics != null) {
+                metrics.addRecordsWritten(written);
+            }
+        } finally {
+            out.close();
+            for (LineCursor cursor : cursors) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        for (File f : files) {
+            f.delete();
+        }
+    }
+
+    /**
+     * Releases mapping without waiting for garbage collector, buffer should not be used afterwards.
+     * Does nothing if JDK doesn't allow it
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        try {
+            //Java 9 and later
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception e) {
+            //try cleaner of the buffer
+        }
+        try {
+            final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            LOG.debug("Can't unmap buffer, it's left to garbage collector: " + e);
+        }
+    }
+
+    /**
+     * @return first 8 bytes of line as big-endian number padded with zeros
+     */
+    private static long prefix(ByteBuffer data, int offset, int length) {
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = (prefix << 8) | (i < length ? data.get(offset + i) & 0xFF : 0);
+        }
+        return prefix;
+    }
+
+    private static long prefix(byte[] data, int offset, int length) {
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = (prefix << 8) | (i < length ? data[offset + i] & 0xFF : 0);
+        }
+        return prefix;
+    }
+
+    /**
+     * Slices of lines of one mapped split
+     */
+    private static class LineIndex {
+        private final long[] prefixes;
+        private final int[] offsets;
+        private final int[] lengths;
+        private int size;
+
+        private LineIndex(int capacity) {
+            prefixes = new long[capacity];
+            offsets = new int[capacity];
+            lengths = new int[capacity];
+        }
+
+        void add(ByteBuffer data, int offset, int length) {
+            prefixes[size] = prefix(data, offset, length);
+            offsets[size] = offset;
+            lengths[size] = length;
+            size++;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        /**
+         * @return indexes of lines in sorted order: radix sort of prefixes and merge sort of lines with equal prefixes
+         */
+        int[] sort(ByteBuffer data) {
+            final long[] keys = new long[size];
+            final int[] order = new int[size];
+            System.arraycopy(prefixes, 0, keys, 0, size);
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            PrefixSorter.radixSort(keys, order);
+            int[] scratch = null;
+            int start = 0;
+            for (int i = 1; i <= size; i++) {
+                if (i == size || keys[i] != keys[start]) {
+                    if (i - start > 1) {
+                        if (scratch == null) {
+                            scratch = new int[size];
+                        }
+                        mergeSort(data, order, scratch, start, i);
+                    }
+                    start = i;
+                }
+            }
+            return order;
+        }
+
+        private void mergeSort(ByteBuffer data, int[] order, int[] scratch, int from, int to) {
+            if (to - from <= INSERTION_SORT_THRESHOLD) {
+                for (int i = from + 1; i < to; i++) {
+                    final int line = order[i];
+                    int j = i - 1;
+                    while (j >= from && compare(data, order[j], line) > 0) {
+                        order[j + 1] = order[j];
+                        j--;
+                    }
+                    order[j + 1] = line;
+                }
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            mergeSort(data, order, scratch, from, middle);
+            mergeSort(data, order, scratch, middle, to);
+            if (compare(data, order[middle - 1], order[middle]) <= 0) {
+                return;
+            }
+            System.arraycopy(order, from, scratch, from, to - from);
+            int left = from;
+            int right = middle;
+            for (int i = from; i < to; i++) {
+                if (right >= to || (left < middle && compare(data, scratch[left], scratch[right]) <= 0)) {
+                    order[i] = scratch[left++];
+                } else {
+                    order[i] = scratch[right++];
+                }
+            }
+        }
+
+        /**
+         * Compares lines with equal prefixes, so first bytes are skipped
+         */
+        private int compare(ByteBuffer data, int first, int second) {
+            final int firstOffset = offsets[first];
+            final int secondOffset = offsets[second];
+            final int firstLength = lengths[first];
+            final int secondLength = lengths[second];
+            final int common = Math.min(firstLength, secondLength);
+            for (int i = Math.min(8, common); i < common; i++) {
+                final int a = data.get(firstOffset + i) & 0xFF;
+                final int b = data.get(secondOffset + i) & 0xFF;
+                if (a != b) {
+                    return a - b;
+                }
+            }
+            return firstLength - secondLength;
+        }
+    }
+
+    /**
+     * Current line of temporary file. Line is a slice of reusable window, the window is refilled
+     * from the channel when it has no more complete lines
+     */
+    private static class LineCursor implements Closeable {
+        private final FileChannel channel;
+        private byte[] window = new byte[IO_BUFFER_SIZE];
+        private int limit;
+        private int next;
+        private boolean eof;
+        private int lineStart;
+        private int lineLength;
+        private long prefix;
+
+        private LineCursor(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * @return false if there are no more lines
+         */
+        boolean advance() throws IOException {
+            int scanFrom = next;
+            while (true) {
+                for (int i = scanFrom; i < limit; i++) {
+                    if (window[i] == LINE_FEED) {
+                        setLine(next, i - next);
+                        next = i + 1;
+                        return true;
+                    }
+                }
+                if (eof) {
+                    if (next < limit) {
+                        setLine(next, limit - next);
+                        next = limit;
+                        return true;
+                    }
+                    return false;
+                }
+                scanFrom = fill();
+            }
+        }
+
+        private void setLine(int start, int length) {
+            lineStart = start;
+            lineLength = length;
+            prefix = prefix(window, start, length) ^ Long.MIN_VALUE;
+        }
+
+        /**
+         * Moves incomplete line to the beginning of window and reads more data
+         * @return position from which line break should be searched
+         */
+        private int fill() throws IOException {
+            final int remaining = limit - next;
+            if (next == 0 && limit == window.length) {
+                final byte[] grown = new byte[window.length * 2];
+                System.arraycopy(window, 0, grown, 0, limit);
+                window = grown;
+            } else {
+                System.arraycopy(window, next, window, 0, remaining);
+            }
+            next = 0;
+            limit = remaining;
+            final int read = channel.read(ByteBuffer.wrap(window, limit, window.length - limit));
+            if (read < 0) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+            return remaining;
+        }
+
+        int compareTo(LineCursor other) {
+            final int common = Math.min(lineLength, other.lineLength);
+            for (int i = Math.min(8, common); i < common; i++) {
+                final int a = window[lineStart + i] & 0xFF;
+                final int b = other.window[other.lineStart + i] & 0xFF;
+                if (a != b) {
+                    return a - b;
+                }
+            }
+            return lineLength - other.lineLength;
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static class LineMerger extends LoserTree {
+        private final LineCursor[] cursors;
+        private final boolean[] exhausted;
+
+        private LineMerger(LineCursor[] cursors) throws IOException {
+            super(cursors.length);
+            this.cursors = cursors;
+            this.exhausted = new boolean[size];
+            for (int i = 0; i < size; i++) {
+                exhausted[i] = !cursors[i].advance();
+            }
+            build();
+        }
+
+        @Override
+        protected boolean beats(int first, int second) {
+            if (exhausted[first]) {
+                return false;
+            }
+            if (exhausted[second]) {
+                return true;
+            }
+            final LineCursor a = cursors[first];
+            final LineCursor b = cursors[second];
+            if (a.prefix != b.prefix) {
+                return a.prefix < b.prefix;
+            }
+            final int result = a.compareTo(b);
+            return result < 0 || (result == 0 && first < second);
+        }
+
+        boolean hasNext() {
+            return size > 0 && !exhausted[winner()];
+        }
+
+        LineCursor top() {
+            return cursors[winner()];
+        }
+
+        void advance() throws IOException {
+            final int winner = winner();
+            exhausted[winner] = !cursors[winner].advance();
+            replay(winner);
+        }
+    }
+}
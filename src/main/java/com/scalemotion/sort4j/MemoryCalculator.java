@@ -1,7 +1,8 @@
 package com.scalemotion.sort4j;
 
 /**
- * Interface that defines the size of object in bytes
+ * Interface that defines the size of object in bytes. Size should include object headers and the reference
+ * to the object (see {@link ObjectSizes}), otherwise real heap usage will be much larger than memory budget of the sorter
  * @param <T>
  */
 public interface MemoryCalculator<T> {
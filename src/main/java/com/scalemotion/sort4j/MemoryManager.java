@@ -0,0 +1,126 @@
+package com.scalemotion.sort4j;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+
+/**
+ * Memory budget shared by sorting threads. Threads reserve memory for their in-memory chunks in granules
+ * and release it when chunk is written to disk, merges reserve their read-ahead blocks from what is left. Each registered consumer is entitled to equal share of the budget,
+ * but may borrow more while at least one share stays free, so when some threads are idle or finished the rest
+ * of them sort larger chunks.
+ * <p>
+ * Memory calculators can only estimate object sizes, so reservations are also refused when
+ * {@link MemoryMXBean} reports that heap usage is above threshold (0.9 of maximum heap by default): consumer
+ * writes its chunk to disk earlier instead of running out of memory. Consumer that holds nothing is always allowed
+ * to reserve, so sorting makes progress even under memory pressure.
+ * <p>
+ * One manager could be shared by several sorters running at the same time, see {@link MergeSorter#setMemoryManager(MemoryManager)}
+ */
+public class MemoryManager {
+    private static final double DEFAULT_HEAP_USAGE_THRESHOLD = 0.9;
+    private static final long MAX_GRANULE = 1024 * 1024;
+    private final long totalBytes;
+    private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    private volatile double heapUsageThreshold = DEFAULT_HEAP_USAGE_THRESHOLD;
+    private long reservedBytes;
+    private int consumers;
+
+    /**
+     * @param totalBytes memory budget in bytes
+     */
+    public MemoryManager(long totalBytes) {
+        if (totalBytes <= 0) {
+            throw new IllegalArgumentException("Memory budget should be positive");
+        }
+        this.totalBytes = totalBytes;
+    }
+
+    /**
+     * @param heapUsageThreshold fraction of maximum heap size, reservations are refused if heap usage is higher
+     * (0.9 by default, 1 disables the check)
+     */
+    public void setHeapUsageThreshold(double heapUsageThreshold) {
+        if (heapUsageThreshold <= 0 || heapUsageThreshold > 1) {
+            throw new IllegalArgumentException("Threshold should be in (0, 1]");
+        }
+        this.heapUsageThreshold = heapUsageThreshold;
+    }
+
+    /**
+     * @return memory budget in bytes
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return currently reserved bytes
+     */
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * @param consumers expected amount of consumers
+     * @return recommended size of single reservation
+     */
+    long granule(int consumers) {
+        return Math.max(1, Math.min(MAX_GRANULE, totalBytes / Math.max(1, consumers) / 16));
+    }
+
+    synchronized void register() {
+        consumers++;
+    }
+
+    synchronized void unregister() {
+        consumers--;
+    }
+
+    /**
+     * @param bytes amount of bytes to reserve
+     * @param held amount of bytes consumer already holds
+     * @return true if memory is reserved, false if consumer should free what it holds
+     */
+    boolean tryReserve(long bytes, long held) {
+        if (held > 0 && heapUsageExceeded()) {
+            return false;
+        }
+        synchronized (this) {
+            final long share = totalBytes / Math.max(1, consumers);
+            final boolean allowed = held == 0
+                    || (reservedBytes + bytes <= totalBytes && held + bytes <= share)
+                    || reservedBytes + bytes <= totalBytes - share;
+            if (allowed) {
+                reservedBytes += bytes;
+            }
+            return allowed;
+        }
+    }
+
+    /**
+     * Reserves memory only if it's free, regardless of shares and heap usage. Used for buffers that could be
+     * done without, such as read-ahead blocks
+     * @return true if memory is reserved
+     */
+    synchronized boolean tryReserveFree(long bytes) {
+        if (reservedBytes + bytes > totalBytes) {
+            return false;
+        }
+        reservedBytes += bytes;
+        return true;
+    }
+
+    synchronized void release(long bytes) {
+        reservedBytes -= bytes;
+    }
+
+    private boolean heapUsageExceeded() {
+        final double threshold = heapUsageThreshold;
+        if (threshold >= 1) {
+            return false;
+        }
+        final MemoryUsage heap = memoryBean.getHeapMemoryUsage();
+        return heap.getMax() > 0 && heap.getUsed() > heap.getMax() * threshold;
+    }
+}
@@ -1,35 +1,103 @@
 package com.scalemotion.sort4j;
 
+import com.scalemotion.sort4j.spill.BlockIndex;
+import com.scalemotion.sort4j.spill.SpillCodec;
+import com.scalemotion.sort4j.spill.SpillFormat;
 import org.apache.log4j.Logger;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Merge sort for large files. Divides data into chunks, sorts each small chunk in memory
  * and then merges them. memoryBufferBytes param defines if chunk fits in memory
+ * <p>
+ * Memory is managed by {@link MemoryManager}: threads reserve it as their chunks grow, so a thread may
+ * use more than its share while other threads don't need it, and chunks are written to disk earlier if heap is
+ * nearly full. Size of items is estimated by {@link MemoryCalculator} of the task.
+ * <p>
+ * The last chunk of each thread is never written to disk: such chunks are sorted in parallel and merged
+ * in memory together with temporary files, so if the whole input fits into memory no temporary files are created.
+ * <p>
+ * Besides files, sorter accepts {@link Iterator} or {@link InputStream} and returns lazily merged iterator,
+ * see {@link #sort(Iterator, SortingTask)}.
+ * <p>
+ * If {@link SortingTask#limit(long)} is set, threads keep only the smallest items in bounded heaps, so the first N items
+ * are selected without writing temporary files as long as N items of each thread fit into memory.
+ * <p>
+ * Each working thread keeps reading input while its previous chunk is sorted and written to disk
+ * in background. Chunk being written keeps its reservation until it's on disk, so the next chunk grows only
+ * as far as memory borrowed from the budget allows. Time spent in each of the stages is
+ * available via {@link #getMetrics()}, progress of sort is reported to {@link SortListener}s and could be
+ * published via JMX (see {@link #setJmxName(String)})
+ * <p>
+ * With {@link #setCheckpointing(boolean)} progress is recorded in a manifest in temporary directory, so
+ * sort restarted after crash continues from the last checkpoint
+ * <p>
+ * State of each sort is kept apart, so one sorter could run several sorts at the same time. Sort running in
+ * a thread that gets interrupted stops and fails. To share threads and memory between sorts use {@link SortService}
  * @param <T>
  */
 public class MergeSorter<T> implements Sorter<T> {
-    private BlockingQueue<File> inputFiles = new LinkedBlockingQueue<File>();
+    private static final long DEFAULT_SPLIT_SIZE = 64L * 1024 * 1024;
+    private static final int DEFAULT_MAX_MERGE_FAN_IN = 128;
+    private static final int DEFAULT_READ_AHEAD_THREADS = 2;
+    private static final int MIN_READ_AHEAD_BLOCK = 4 * 1024;
+    private static final int MAX_READ_AHEAD_BLOCK = 8 * 1024 * 1024;
+    private static final int MIN_IN_MEMORY_SLICE = 1024;
+    private static final int MEMORY_RUN_SAMPLE_STRIDE = 512;
+    static final int WRITTEN_RECORDS_BATCH = 4096;
+    private static final int CANCEL_CHECK_MASK = 4095;
     private static final Logger LOG = Logger.getLogger(MergeSorter.class);
     private int executionThreads;
-    private int memoryBufferBytes;
-    private String temporaryDirectory;
-    private AtomicBoolean hasErrors = new AtomicBoolean();
+    private long splitSize = DEFAULT_SPLIT_SIZE;
+    private int maxMergeFanIn = DEFAULT_MAX_MERGE_FAN_IN;
+    private int readAheadThreads = DEFAULT_READ_AHEAD_THREADS;
+    private int finalMergeThreads = 1;
+    private MergeStrategy mergeStrategy = MergeStrategy.LOSER_TREE;
+    private long memoryBufferBytes;
+    private MemoryManager memoryManager;
+    private List<String> temporaryDirectories;
+    private SpillPlacement spillPlacement = SpillPlacement.ROUND_ROBIN;
+    private volatile SortMetrics metrics = new SortMetrics();
+    private SpillCodec spillCodec;
+    private boolean checkpointing;
+    private boolean countComparisons;
+    private final List<SortListener> listeners = new CopyOnWriteArrayList<SortListener>();
+    private String jmxName;
+    private final AtomicLong sortSequence = new AtomicLong();
+    private ExecutorService sharedExecutor;
 
     /**
      * @param temporaryDirectory directory where sorter will keep temporary files
      * @param threads amount of working threads
      * @param memoryBufferBytes maximum size of in-memory chunk
      */
-    public MergeSorter(String temporaryDirectory, int threads, int memoryBufferBytes) {
+    public MergeSorter(String temporaryDirectory, int threads, long memoryBufferBytes) {
         this.memoryBufferBytes = memoryBufferBytes;
         this.executionThreads = threads;
-        this.temporaryDirectory = temporaryDirectory;
+        this.temporaryDirectories = Collections.singletonList(temporaryDirectory);
+    }
+
+    /**
+     * Placement of temporary files over temporary directories
+     */
+    public enum SpillPlacement {
+        /**
+         * Directories are used in turn
+         */
+        ROUND_ROBIN,
+        /**
+         * Directory with the most free space per file being written is used
+         */
+        FREE_SPACE
     }
 
     /**
@@ -42,94 +110,712 @@ public class MergeSorter<T> implements Sorter<T> {
     /**
      * @param memoryBufferBytes maximum amount of in-memory chunk
      */
-    public void setMemoryBufferBytes(int memoryBufferBytes) {
+    public void setMemoryBufferBytes(long memoryBufferBytes) {
         this.memoryBufferBytes = memoryBufferBytes;
     }
 
+    /**
+     * Sets memory manager shared with other sorters. By default each sort creates its own manager
+     * with memoryBufferBytes budget
+     * @param memoryManager shared memory manager, null to use own one
+     */
+    public void setMemoryManager(MemoryManager memoryManager) {
+        this.memoryManager = memoryManager;
+    }
+
     /**
      * @param temporaryDirectory temporary directory
      */
     public void setTemporaryDirectory(String temporaryDirectory) {
-        this.temporaryDirectory = temporaryDirectory;
+        this.temporaryDirectories = Collections.singletonList(temporaryDirectory);
+    }
+
+    /**
+     * Sets several temporary directories, usually on different disks. Temporary files are spread over them
+     * by {@link #setSpillPlacement(SpillPlacement)}, each directory gets its own read-ahead threads, so merge
+     * reads from all disks at once. Bytes written to and read from each directory are reported by
+     * {@link SortMetrics#getDirectoryBytesWritten()} and {@link SortMetrics#getDirectoryBytesRead()}
+     * @param temporaryDirectories temporary directories
+     */
+    public void setTemporaryDirectories(List<String> temporaryDirectories) {
+        if (temporaryDirectories.isEmpty()) {
+            throw new IllegalArgumentException("At least one temporary directory is required");
+        }
+        this.temporaryDirectories = new ArrayList<String>(temporaryDirectories);
+    }
+
+    /**
+     * @param spillPlacement placement of temporary files over temporary directories ({@link SpillPlacement#ROUND_ROBIN} by default)
+     */
+    public void setSpillPlacement(SpillPlacement spillPlacement) {
+        this.spillPlacement = spillPlacement;
+    }
+
+    /**
+     * Sets the size of byte ranges input files are divided into. Each range is read by
+     * single worker thread, so large file is read by all threads simultaneously. Splitting
+     * works only for input formats that implement {@link SplittableInputFormat}, other files are
+     * read by one thread
+     * @param splitSize size of input split in bytes (64Mb by default)
+     */
+    public void setSplitSize(long splitSize) {
+        if (splitSize <= 0) {
+            throw new IllegalArgumentException("Split size should be positive");
+        }
+        this.splitSize = splitSize;
+    }
+
+    /**
+     * Sets the maximum amount of temporary files merged at once. If phase-1 of sorting produces
+     * more files, they are merged in several passes: intermediate merges run in parallel on working threads,
+     * the final merge always reads at most maxMergeFanIn files
+     * @param maxMergeFanIn maximum amount of simultaneously merged files (128 by default)
+     */
+    public void setMaxMergeFanIn(int maxMergeFanIn) {
+        if (maxMergeFanIn < 2) {
+            throw new IllegalArgumentException("Merge fan-in should be at least 2");
+        }
+        this.maxMergeFanIn = maxMergeFanIn;
+    }
+
+    /**
+     * Sets amount of background threads that read temporary files ahead of merge. Each merged file
+     * gets two blocks: one is consumed by merge while another one is being read. Blocks are reserved from memory
+     * budget left after in-memory chunks, so block size is that memory divided by amount of files merged
+     * simultaneously (4Kb..8Mb). Files for which less than 4Kb blocks are left are read without read-ahead.
+     * With several temporary directories each of them gets its own threads.
+     * Time merge waited for blocks is reported by {@link SortMetrics#getMergeStallMillis()}
+     * @param readAheadThreads amount of I/O threads per temporary directory (2 by default), 0 disables read-ahead
+     */
+    public void setReadAheadThreads(int readAheadThreads) {
+        if (readAheadThreads < 0) {
+            throw new IllegalArgumentException("Amount of read-ahead threads can't be negative");
+        }
+        this.readAheadThreads = readAheadThreads;
+    }
+
+    /**
+     * Sets amount of threads of the final merge. If it's more than 1, key space is divided into ranges
+     * using samples of temporary files, ranges are merged in parallel into segments which are concatenated into
+     * output file, so output format should produce files that could be concatenated (like text files).
+     * Works only for tasks with {@link SortingTask#serializer(Serializer)} and without {@link SortingTask#limit(long)},
+     * {@link SortingTask#mergeWith(String)} and {@link SortingTask#outputIndex(int)}
+     * @param finalMergeThreads amount of threads (1 by default)
+     */
+    public void setFinalMergeThreads(int finalMergeThreads) {
+        if (finalMergeThreads < 1) {
+            throw new IllegalArgumentException("Final merge needs at least one thread");
+        }
+        this.finalMergeThreads = finalMergeThreads;
+    }
+
+    /**
+     * @param mergeStrategy algorithm of merging sorted runs ({@link MergeStrategy#LOSER_TREE} by default)
+     */
+    public void setMergeStrategy(MergeStrategy mergeStrategy) {
+        this.mergeStrategy = mergeStrategy;
+    }
+
+    /**
+     * Sets compression of temporary files, see {@link com.scalemotion.sort4j.spill.DeflateCodec} and
+     * {@link com.scalemotion.sort4j.spill.LzCodec}. Compression ratio and time are reported by {@link #getMetrics()}.
+     * Works only for tasks with {@link SortingTask#serializer(Serializer)}
+     * @param spillCodec codec, null to disable compression (default)
+     */
+    public void setSpillCodec(SpillCodec spillCodec) {
+        this.spillCodec = spillCodec;
+    }
+
+    /**
+     * Enables checkpoints of {@link #sort(SortingTask)}. Sorter records in a manifest in the (first) temporary
+     * directory which input splits are written to temporary files and which intermediate merges are done.
+     * If sort fails or process dies, the same task restarted with the same temporary directories skips recorded
+     * splits and merges, unfinished temporary files are deleted. Task is identified by input files (including
+     * their sizes and modification times), output file and settings that affect temporary files.
+     * <p>
+     * Each thread writes its chunk to disk at the end of every split, so no chunks are kept in memory
+     * and there are more temporary files. Streams and iterators are sorted without checkpoints
+     * @param checkpointing true to record progress of sorts (false by default)
+     */
+    public void setCheckpointing(boolean checkpointing) {
+        this.checkpointing = checkpointing;
+    }
+
+    /**
+     * @param listener receives phases of sorts and spilled runs
+     */
+    public void addListener(SortListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Enables counting of comparator calls, reported by {@link SortMetrics#getComparisons()}.
+     * Each call increments thread-local counter, which costs a few percent of sorting time
+     * @param countComparisons true to count comparisons (false by default)
+     */
+    public void setCountComparisons(boolean countComparisons) {
+        this.countComparisons = countComparisons;
+    }
+
+    /**
+     * Publishes metrics of sorts as MBeans in platform MBean server. Each running sort registers its metrics
+     * under this name with added sort=N key, N is a sequence number of the sort in this sorter. Bean is
+     * unregistered when the sort finishes
+     * @param jmxName object name, e.g. com.scalemotion.sort4j:type=MergeSorter,name=orders; null to disable (default)
+     */
+    public void setJmxName(String jmxName) {
+        this.jmxName = jmxName;
+    }
+
+    /**
+     * Runs working threads, spills and merges of sorts on given executor instead of threads created for each sort,
+     * so several sorters (or concurrent sorts of one sorter) share the same threads, see {@link SortService}.
+     * Without executor each sort starts its working threads, a pool for spills and intermediate merges and, for
+     * parallel final merge, a pool of {@link #setFinalMergeThreads(int)} threads.
+     * <p>
+     * Working threads wait for their spills, so executor should have at least twice as many threads as
+     * working threads of all sorts running at the same time, otherwise sorts deadlock. Size of {@link ThreadPoolExecutor}
+     * is checked against one sort when executor is set and when sort starts, size of other executors can't be checked.
+     * Executor is not shut down by sorter
+     * @param executor shared executor, null to create threads for each sort (default)
+     */
+    public void setExecutor(ExecutorService executor) {
+        checkExecutor(executor);
+        this.sharedExecutor = executor;
+    }
+
+    /**
+     * @throws IllegalArgumentException if executor can't run working threads and spills of one sort
+     */
+    private void checkExecutor(ExecutorService executor) {
+        if (!(executor instanceof ThreadPoolExecutor)) {
+            return;
+        }
+        final ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+        //pool grows above core size only when its queue is full
+        final int threads = pool.getQueue().remainingCapacity() == 0 ? pool.getMaximumPoolSize() : pool.getCorePoolSize();
+        if (threads < 2 * executionThreads) {
+            throw new IllegalArgumentException("Executor has " + threads + " threads, sort with " + executionThreads
+                    + " working threads needs at least " + 2 * executionThreads);
+        }
     }
 
-    private void workerMain(final SortingTask<T> task, List<File> filesToMerge) throws Exception{
-        final long maxMemoryPerBuffer = memoryBufferBytes / executionThreads;
-        final AtomicInteger records = new AtomicInteger();
+    /**
+     * @param memoryChunks receives the last chunk of the thread which is kept in memory
+     * @param memoryChunkBytes receives memory reserved for the kept chunk
+     */
+    private void workerMain(final SortContext<T> context, final SortingTask<T> task, final List<File> filesToMerge, List<List<T>> memoryChunks,
+                            AtomicLong memoryChunkBytes, ExecutorService spillExecutor, MemoryManager memory) throws Exception {
+        //two buffers are used: one is being filled while another one is sorted and spilled,
+        //memory reserved for the buffer is released when it's written to disk
+        final long granule = memory.granule(executionThreads);
+        final AtomicLong held = new AtomicLong();
+        long reserved = 0;
+        long spillingReserved = 0;
+        final int itemOverhead = task.keyExtractor() != null ? PrefixSorter.BYTES_PER_ITEM : 0;
+        long records = 0;
+        long stallNanos = 0;
+        long startTime = System.nanoTime();
+        final long startCpu = SortMetrics.threadCpuNanos();
         List<T> buffer = new ArrayList<T>();
-        int bufferSize = 0;
-        while (!hasErrors.get()) {
-            FileInputStream s;
-            DataInputFormat.Reader<T> reader = null;
-            File f = inputFiles.poll();
-            if (f == null) {
-                break;
-            }
-            try {
-                s = new FileInputStream(f);
-                reader = task.inputFormat().initialize(s);
-                while (reader.hasNext()) {
-                    if (hasErrors.get()) {
-                        return;
+        List<T> spare = new ArrayList<T>();
+        //with limit only the smallest items are kept, items of combiner can't be dropped before they are combined
+        final TopN<T> top = task.limit() <= Integer.MAX_VALUE && task.combiner() == null
+                ? new TopN<T>((int) task.limit(), context.comparator) : null;
+        Future<List<T>> spilling = null;
+        //with checkpoints runs never span splits: split is done when its last run is written
+        List<File> splitRuns = filesToMerge;
+        InputSplit pendingSplit = null;
+        List<File> pendingRuns = null;
+        long bufferSize = 0;
+        memory.register();
+        try {
+            while (!context.hasErrors.get()) {
+                DataInputFormat.Reader<T> reader = context.inputStreams.poll();
+                InputSplit split = reader == null ? context.inputSplits.poll() : null;
+                if (reader == null && split == null) {
+                    break;
+                }
+                try {
+                    if (reader == null) {
+                        reader = task.inputFormat().initialize(context.metrics.countBytesRead(split.open()));
                     }
-                    final T item = reader.nextItem();
-                    records.incrementAndGet();
-                    buffer.add(item);
-                    bufferSize += task.memoryCalculator().sizeof(item);
-                    if (bufferSize >= maxMemoryPerBuffer) {
-                        final List<T> bufferToFlush = buffer;
-                        flush(bufferToFlush, task, filesToMerge);
-                        buffer = new ArrayList<T>();
+                    if (context.manifest != null) {
+                        splitRuns = Collections.synchronizedList(new ArrayList<File>());
+                    }
+                    while (reader.hasNext()) {
+                        if (context.hasErrors.get()) {
+                            return;
+                        }
+                        final T item = reader.nextItem();
+                        records++;
+                        if (top != null) {
+                            final T dropped = top.offer(item);
+                            if (dropped == item) {
+                                continue;
+                            }
+                            if (dropped != null) {
+                                bufferSize -= task.memoryCalculator().sizeof(dropped) + itemOverhead;
+                            }
+                        } else {
+                            buffer.add(item);
+                        }
+                        bufferSize += task.memoryCalculator().sizeof(item) + itemOverhead;
+                        if (bufferSize > reserved) {
+                            final long needed = Math.max(granule, bufferSize - reserved);
+                            if (memory.tryReserve(needed, held.get())) {
+                                reserved += needed;
+                                held.addAndGet(needed);
+                                continue;
+                            }
+                            long stallStart = System.nanoTime();
+                            if (spilling != null) {
+                                spare = spilling.get();
+                            }
+                            stallNanos += System.nanoTime() - stallStart;
+                            if (pendingSplit != null) {
+                                commitSplit(context, pendingSplit, pendingRuns, filesToMerge);
+                                pendingSplit = null;
+                            }
+                            if (top != null) {
+                                top.drainTo(buffer);
+                            }
+                            spilling = spillExecutor.submit(flushTask(context, buffer, task, splitRuns, memory, reserved, held));
+                            spillingReserved = reserved;
+                            buffer = spare;
+                            bufferSize = 0;
+                            reserved = 0;
+                        }
+                    }
+                } finally {
+                    closeQuietly(reader);
+                }
+                if (context.manifest != null && split != null) {
+                    long stallStart = System.nanoTime();
+                    if (spilling != null) {
+                        spare = spilling.get();
+                        spilling = null;
+                    }
+                    stallNanos += System.nanoTime() - stallStart;
+                    if (pendingSplit != null) {
+                        commitSplit(context, pendingSplit, pendingRuns, filesToMerge);
+                        pendingSplit = null;
+                    }
+                    if (top != null) {
+                        top.drainTo(buffer);
+                    }
+                    if (buffer.isEmpty()) {
+                        commitSplit(context, split, splitRuns, filesToMerge);
+                    } else {
+                        spilling = spillExecutor.submit(flushTask(context, buffer, task, splitRuns, memory, reserved, held));
+                        spillingReserved = reserved;
+                        buffer = spare;
                         bufferSize = 0;
+                        reserved = 0;
+                        pendingSplit = split;
+                        pendingRuns = splitRuns;
                     }
                 }
-            } finally {
-                closeQuietly(reader);
             }
-        }
-        if (bufferSize != 0) {
-            flush(buffer, task, filesToMerge);
+            long stallStart = System.nanoTime();
+            if (spilling != null) {
+                spilling.get();
+                spilling = null;
+            }
+            stallNanos += System.nanoTime() - stallStart;
+            if (pendingSplit != null) {
+                commitSplit(context, pendingSplit, pendingRuns, filesToMerge);
+            }
+            if (top != null) {
+                top.drainTo(buffer);
+            }
+            if (bufferSize != 0) {
+                memoryChunks.add(buffer);
+                memoryChunkBytes.addAndGet(reserved);
+                reserved = 0;
+            }
+        } finally {
+            if (spilling != null && spilling.cancel(false)) {
+                memory.release(spillingReserved);
+            }
+            memory.release(reserved);
+            memory.unregister();
+            context.metrics.addRecordsRead(records);
+            context.metrics.addReadStallNanos(stallNanos);
+            context.metrics.addReadNanos(System.nanoTime() - startTime - stallNanos);
+            context.metrics.addReadCpuNanos(SortMetrics.threadCpuNanos() - startCpu);
         }
     }
 
-    public void sort(final SortingTask<T> task) {
-        new File(temporaryDirectory).mkdirs();
+    /**
+     * @return writer of output file that adds written records to metrics
+     */
+    private DataOutputFormat.Writer<T> countRecordsWritten(final SortContext<T> context, final DataOutputFormat.Writer<T> writer) {
+        return new DataOutputFormat.Writer<T>() {
+            private long written;
+
+            public void write(T item) throws IOException {
+                writer.write(item);
+                if (++written == WRITTEN_RECORDS_BATCH) {
+                    context.metrics.addRecordsWritten(written);
+                    written = 0;
+                }
+            }
+
+            public void close() throws IOException {
+                context.metrics.addRecordsWritten(written);
+                written = 0;
+                writer.close();
+            }
+        };
+    }
+
+    private void commitSplit(final SortContext<T> context, InputSplit split, List<File> runs, List<File> filesToMerge) throws IOException {
+        context.manifest.splitDone(split, runs);
+        filesToMerge.addAll(runs);
+    }
+
+    private Callable<List<T>> flushTask(final SortContext<T> context, final List<T> buffer, final SortingTask<T> task, final List<File> filesToMerge,
+                                        final MemoryManager memory, final long reserved, final AtomicLong held) {
+        return new Callable<List<T>>() {
+            public List<T> call() throws Exception {
+                try {
+                    flush(context, buffer, task, filesToMerge);
+                } finally {
+                    memory.release(reserved);
+                    held.addAndGet(-reserved);
+                }
+                return buffer;
+            }
+        };
+    }
+
+    /**
+     * @return counters of the last started sort, counters of each sort are also returned by {@link #sort(SortingTask)}
+     */
+    public SortMetrics getMetrics() {
+        return metrics;
+    }
+
+    public SortStats sort(final SortingTask<T> task) {
+        if (task.mergeWith() != null && new File(task.mergeWith()).getAbsoluteFile().equals(new File(task.outputFile()).getAbsoluteFile())) {
+            throw new IllegalArgumentException("Output file should differ from file merged with");
+        }
+        if (task.outputIndex() > 0 && task.serializer() == null) {
+            throw new IllegalArgumentException("Output index requires serializer");
+        }
+        final SortContext<T> context = prepare(task);
         final List<File> filesToMerge = Collections.synchronizedList(new ArrayList<File>());
-        for (final String f : task.inputFiles()) {
-            inputFiles.add(new File(f));
-        }
-        LOG.debug("Added " + inputFiles.size() + " to queue. Starting " + executionThreads + " threads");
-        List<Thread> workerThreads = new ArrayList<Thread>();
-        for (int i = 0; i < executionThreads; i++) {
-            Thread t = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        workerMain(task, filesToMerge);
-                    } catch (Exception e) {
-                        LOG.error("Exception during phase-1 of sorting: " + e.getMessage(), e);
-                        hasErrors.set(true);
+        try {
+            if (checkpointing) {
+                context.manifest = openManifest(context, task);
+                filesToMerge.addAll(context.manifest.getRuns());
+            }
+            for (final String f : task.inputFiles()) {
+                for (InputSplit split : InputSplit.split(new File(f), task.inputFormat(), splitSize)) {
+                    if (context.manifest == null || !context.manifest.isDone(split)) {
+                        context.inputSplits.add(split);
+                        context.metrics.addInputBytes(split.length());
                     }
                 }
-            });
-            t.start();
-            workerThreads.add(t);
+            }
+        } catch (IOException e) {
+            abort(context);
+            throw new RuntimeException("Can't split input files: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            abort(context);
+            throw e;
         }
-        for (Thread t : workerThreads) {
-            try {
-                t.join();
-            } catch (InterruptedException e) {
-                throw new RuntimeException("Interrupted", e);
+        LOG.debug("Added " + context.inputSplits.size() + " splits to queue. Starting " + executionThreads + " threads");
+        final ExecutorService executor = sharedExecutor != null ? sharedExecutor : Executors.newFixedThreadPool(executionThreads);
+        final MemoryManager memory = context.memory;
+        final List<List<T>> memoryChunks = Collections.synchronizedList(new ArrayList<List<T>>());
+        final AtomicLong memoryChunkBytes = new AtomicLong();
+        boolean done = false;
+        try {
+            context.metrics.startPhase(SortMetrics.Phase.READING);
+            phase1(context, task, filesToMerge, memoryChunks, memoryChunkBytes, executor, memory);
+            final List<List<T>> memoryRuns = sortInMemory(context, memoryChunks, task, executor);
+            context.metrics.startPhase(SortMetrics.Phase.MERGING);
+            merge(context, filesToMerge, memoryRuns, task, executor);
+            if (context.manifest != null) {
+                context.manifest.delete();
+            }
+            done = true;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            if (context.manifest != null) {
+                context.manifest.close();
             }
+            memory.release(memoryChunkBytes.get());
+            if (executor != sharedExecutor) {
+                executor.shutdownNow();
+            }
+            //runs of failed sort are kept for restart if progress is checkpointed
+            if (done || context.manifest == null) {
+                deleteTemporaryFiles(context);
+            }
+            context.directories.shutdown();
+            context.metrics.startPhase(done ? SortMetrics.Phase.DONE : SortMetrics.Phase.FAILED);
+            unregisterMBean(context);
         }
+        return context.metrics.snapshot();
+    }
+
+    /**
+     * Sorts items of iterator. Input and output files of the task are ignored, temporary files are
+     * written only if items don't fit into memory. Input is consumed by one of sorter's threads, chunks are
+     * sorted and spilled in parallel. Method returns as soon as the last item is read (and intermediate merges
+     * are done if there are too many temporary files), items are merged while caller reads them.
+     * <p>
+     * Temporary files and memory of the sort are held until returned iterator is closed
+     * @param input items to sort
+     * @param task task that defines comparator, memory calculator and format of temporary files
+     * @return sorted items, iterator should be closed if it's not read to the end
+     */
+    public CloseableIterator<T> sort(final Iterator<? extends T> input, SortingTask<T> task) {
+        return sortStream(prepare(task), new DataInputFormat.Reader<T>() {
+            public boolean hasNext() {
+                return input.hasNext();
+            }
+
+            public T nextItem() {
+                return input.next();
+            }
+
+            public void close() {
+            }
+        }, task);
+    }
+
+    /**
+     * Sorts items read from stream with input format of the task, see {@link #sort(Iterator, SortingTask)}.
+     * Stream is closed when it's read to the end
+     * @param input stream to sort
+     * @param task task that defines input format, comparator, memory calculator and format of temporary files
+     * @return sorted items, iterator should be closed if it's not read to the end
+     */
+    public CloseableIterator<T> sort(InputStream input, SortingTask<T> task) {
+        final SortContext<T> context = prepare(task);
+        final DataInputFormat.Reader<T> reader;
+        try {
+            reader = task.inputFormat().initialize(context.metrics.countBytesRead(input));
+        } catch (RuntimeException e) {
+            abort(context);
+            throw e;
+        }
+        return sortStream(context, reader, task);
+    }
+
+    private CloseableIterator<T> sortStream(final SortContext<T> context, DataInputFormat.Reader<T> input, final SortingTask<T> task) {
+        context.inputStreams.add(input);
+        final List<File> filesToMerge = Collections.synchronizedList(new ArrayList<File>());
+        final ExecutorService executor = sharedExecutor != null ? sharedExecutor : Executors.newFixedThreadPool(executionThreads);
+        final TemporaryDirectories streamDirectories = context.directories;
+        final MemoryManager memory = context.memory;
+        final List<List<T>> memoryChunks = Collections.synchronizedList(new ArrayList<List<T>>());
+        final AtomicLong memoryChunkBytes = new AtomicLong();
+        final List<File> runs = new ArrayList<File>();
+        final SortMetrics streamMetrics = context.metrics;
+        RunMerger<T> merger = null;
         try {
-            merge(filesToMerge, task);
+            streamMetrics.startPhase(SortMetrics.Phase.READING);
+            phase1(context, task, filesToMerge, memoryChunks, memoryChunkBytes, executor, memory);
+            streamMetrics.startPhase(SortMetrics.Phase.MERGING);
+            runs.addAll(filesToMerge);
+            while (runs.size() > maxMergeFanIn) {
+                final List<File> merged = mergePass(context, runs, task, executor);
+                runs.clear();
+                runs.addAll(merged);
+            }
+            merger = openRuns(context, runs, sortInMemory(context, memoryChunks, task, executor), task, 1, null);
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            if (executor != sharedExecutor) {
+                executor.shutdownNow();
+            }
+            if (merger == null) {
+                memory.release(memoryChunkBytes.get());
+                deleteTemporaryFiles(context);
+                streamDirectories.shutdown();
+                streamMetrics.startPhase(SortMetrics.Phase.FAILED);
+                unregisterMBean(context);
+            }
+        }
+        final RunMerger<T> result = merger;
+        return new CloseableIterator<T>() {
+            private boolean closed;
+            private long returned;
+
+            public boolean hasNext() {
+                if (closed) {
+                    return false;
+                }
+                if (!result.hasNext() || returned >= task.limit()) {
+                    close();
+                    return false;
+                }
+                return true;
+            }
+
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    returned++;
+                    return result.next();
+                } catch (IOException e) {
+                    close();
+                    throw new RuntimeException("Can't read temporary file: " + e.getMessage(), e);
+                }
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            public void close() {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                closeQuietly(result);
+                deleteTemporaryFiles(context);
+                memory.release(memoryChunkBytes.get());
+                streamDirectories.shutdown();
+                streamMetrics.startPhase(SortMetrics.Phase.DONE);
+                unregisterMBean(context);
+            }
+        };
+    }
+
+    private SortContext<T> prepare(SortingTask<T> task) {
+        checkExecutor(sharedExecutor);
+        final SortContext<T> context = new SortContext<T>();
+        context.metrics.setListeners(listeners);
+        if (countComparisons) {
+            final CountingComparator<T> counting = new CountingComparator<T>(task.comparator());
+            context.metrics.setComparator(counting);
+            context.comparator = counting;
+        } else {
+            context.comparator = task.comparator();
+        }
+        context.spillFormat = task.serializer() == null ? null : new SpillFormat<T>(task.serializer(), spillCodec);
+        context.metrics.setSpillFormat(context.spillFormat);
+        context.directories = new TemporaryDirectories(temporaryDirectories, spillPlacement, readAheadThreads);
+        context.memory = memoryManager != null ? memoryManager : new MemoryManager(memoryBufferBytes);
+        context.metrics.setTemporaryDirectories(context.directories);
+        if (jmxName != null) {
+            registerMBean(context);
+        }
+        metrics = context.metrics;
+        return context;
+    }
+
+    /**
+     * Releases resources of the sort that failed before its phases started
+     */
+    private void abort(SortContext<T> context) {
+        if (context.manifest != null) {
+            context.manifest.close();
+        }
+        context.directories.shutdown();
+        context.metrics.startPhase(SortMetrics.Phase.FAILED);
+        unregisterMBean(context);
+    }
+
+    /**
+     * Registers metrics of the sort under {@link #jmxName} with sort number added
+     */
+    private void registerMBean(SortContext<T> context) {
+        final String name = jmxName + ",sort=" + sortSequence.incrementAndGet();
+        try {
+            context.mbeanName = new ObjectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(context.metrics, context.mbeanName);
+        } catch (JMException e) {
+            context.mbeanName = null;
+            LOG.warn("Can't register metrics as " + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void unregisterMBean(SortContext<T> context) {
+        if (context.mbeanName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(context.mbeanName);
+        } catch (JMException e) {
+            LOG.warn("Can't unregister metrics " + context.mbeanName + ": " + e.getMessage(), e);
+        }
+        context.mbeanName = null;
+    }
+
+    /**
+     * Opens manifest of the task and deletes temporary files of the task that are not recorded in it
+     */
+    private SortManifest openManifest(final SortContext<T> context, SortingTask<T> task) throws IOException {
+        final SortManifest result = new SortManifest(context.directories.getDirectories().get(0), SortManifest.describe(task, splitSize, spillCodec));
+        final List<File> runs = result.getRuns();
+        for (File directory : context.directories.getDirectories()) {
+            final File[] files = directory.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File f : files) {
+                if (result.isTemporaryFile(f) && !runs.contains(f.getAbsoluteFile())) {
+                    f.delete();
+                }
+            }
+        }
+        return result;
+    }
+
+    private void phase1(final SortContext<T> context, final SortingTask<T> task, final List<File> filesToMerge, final List<List<T>> memoryChunks,
+                        final AtomicLong memoryChunkBytes, final ExecutorService spillExecutor, final MemoryManager memory) {
+        final ExecutorService workerExecutor = sharedExecutor != null ? sharedExecutor : Executors.newFixedThreadPool(executionThreads);
+        final CountDownLatch finished = new CountDownLatch(executionThreads);
+        try {
+            for (int i = 0; i < executionThreads; i++) {
+                workerExecutor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            workerMain(context, task, filesToMerge, memoryChunks, memoryChunkBytes, spillExecutor, memory);
+                        } catch (Exception e) {
+                            LOG.error("Exception during phase-1 of sorting: " + e.getMessage(), e);
+                            context.hasErrors.set(true);
+                        } finally {
+                            finished.countDown();
+                        }
+                    }
+                });
+            }
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                //workers stop at the next item, they are waited for so that memory of their chunks is released
+                context.hasErrors.set(true);
+                awaitUninterruptibly(finished);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted", e);
+            }
+        } finally {
+            if (workerExecutor != sharedExecutor) {
+                workerExecutor.shutdown();
+            }
+        }
+        LOG.debug("Phase-1 of sorting done: " + context.metrics);
+        if (context.hasErrors.get()) {
+            throw new RuntimeException("Phase-1 of sorting failed, see log for details");
         }
     }
 
     private static void closeQuietly(Closeable reader) {
+        if (reader == null) {
+            return;
+        }
         try {
             reader.close();
         } catch (IOException e) {
@@ -137,134 +823,558 @@ public class MergeSorter<T> implements Sorter<T> {
         }
     }
 
-    private void merge(List<File> filesToMerge, final SortingTask<T> task) throws IOException {
-        LOG.debug("Merging " + filesToMerge.size() + " files");
-        if (filesToMerge.isEmpty()) {
-			return;
-		}
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-		FileOutputStream output = new FileOutputStream(task.outputFile());
-        PriorityQueue<InputProxy> queue = new PriorityQueue<InputProxy>(filesToMerge.size(), new Comparator<InputProxy>() {
-            public int compare(InputProxy o1, InputProxy o2) {
-                return task.comparator().compare(o1.peek(), o2.peek());
+    /**
+     * Sorts chunks kept in memory in parallel: chunks are cut into slices of about equal size, one per thread,
+     * so even single large chunk is sorted by all threads
+     * @return sorted slices
+     */
+    private List<List<T>> sortInMemory(final SortContext<T> context, List<List<T>> chunks, final SortingTask<T> task, ExecutorService executor) throws IOException {
+        long total = 0;
+        for (List<T> chunk : chunks) {
+            total += chunk.size();
+        }
+        final int sliceSize = (int) Math.max(MIN_IN_MEMORY_SLICE, (total + executionThreads - 1) / executionThreads);
+        final List<List<T>> slices = new ArrayList<List<T>>();
+        final List<Callable<Object>> sorts = new ArrayList<Callable<Object>>();
+        for (List<T> chunk : chunks) {
+            for (int from = 0; from < chunk.size(); from += sliceSize) {
+                final List<T> slice = chunk.subList(from, Math.min(chunk.size(), from + sliceSize));
+                slices.add(slice);
+                sorts.add(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        sortBuffer(context, slice, task);
+                        return null;
+                    }
+                });
             }
-        });
-        Set<DataInputFormat.Reader<T>> toClose = new HashSet<DataInputFormat.Reader<T>>();
-        for (File f : filesToMerge) {
-            final DataInputFormat.Reader<T> reader;
+        }
+        try {
+            for (Future<Object> sorted : executor.invokeAll(sorts)) {
+                sorted.get();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("In-memory sort failed: " + e.getCause().getMessage(), e.getCause());
+        }
+        return slices;
+    }
+
+    /**
+     * Merges temporary files and sorted in-memory runs into output file. Intermediate merge passes
+     * involve only temporary files
+     */
+    private void merge(final SortContext<T> context, List<File> filesToMerge, List<List<T>> memoryRuns, final SortingTask<T> task, ExecutorService executor) throws IOException {
+        LOG.debug("Merging " + filesToMerge.size() + " files and " + memoryRuns.size() + " in-memory runs");
+        if (filesToMerge.isEmpty() && memoryRuns.isEmpty() && task.mergeWith() == null) {
+            return;
+        }
+        List<File> runs = new ArrayList<File>(filesToMerge);
+        while (runs.size() > maxMergeFanIn) {
+            runs = mergePass(context, runs, task, executor);
+        }
+        //runs restored from manifest have no block indexes
+        if (finalMergeThreads > 1 && context.spillFormat != null && task.limit() == Long.MAX_VALUE && task.mergeWith() == null
+                && task.outputIndex() == 0 && context.runIndexes.keySet().containsAll(runs)) {
+            parallelMerge(context, runs, memoryRuns, task);
+        } else {
+            final FileOutputStream output = new FileOutputStream(task.outputFile());
+            final DataOutputFormat.Writer<T> writer;
             try {
-                reader = task.inputFormat().initialize(new FileInputStream(f));
-            } catch (Exception e) {
-                throw new RuntimeException("Can't initiailize reader for " + f.getAbsolutePath(), e);
+                writer = countRecordsWritten(context, task.outputIndex() > 0
+                        ? new IndexingWriter<T>(task.outputFile(), task, output) : task.outputFormat().initialize(output));
+            } catch (RuntimeException e) {
+                closeQuietly(output);
+                throw e;
+            }
+            mergeFiles(context, runs, memoryRuns, writer, task, 1, task.mergeWith());
+            for (File f : runs) {
+                deleteRun(context, f);
             }
-            final InputProxy proxy = new InputProxy(reader);
-            assert !proxy.isEmpty();
-            queue.add(proxy);
-            toClose.add(reader);
         }
-        final DataOutputFormat.Writer<T> writer = task.outputFormat().initialize(output);
+        LOG.debug("Merge done: " + context.metrics);
+    }
+
+    /**
+     * Runs one pass of intermediate merges in parallel
+     * @return runs left after the pass
+     */
+    private List<File> mergePass(final SortContext<T> context, List<File> runs, final SortingTask<T> task, ExecutorService executor) throws IOException {
+        final List<List<File>> groups = planMergePass(runs, maxMergeFanIn);
+        final List<File> result = new ArrayList<File>(runs);
+        final List<Callable<File>> merges = new ArrayList<Callable<File>>();
+        final int concurrentMerges = Math.min(groups.size(), executionThreads);
+        long bytes = 0;
+        for (final List<File> group : groups) {
+            result.removeAll(group);
+            for (File f : group) {
+                bytes += f.length();
+            }
+            merges.add(new Callable<File>() {
+                public File call() throws Exception {
+                    final File file = newTemporaryFile(context);
+                    mergeFiles(context, group, Collections.<List<T>>emptyList(), spillWriter(context, file, task), task, concurrentMerges, null);
+                    if (context.manifest != null) {
+                        context.manifest.merged(file, group);
+                    }
+                    for (File f : group) {
+                        deleteRun(context, f);
+                    }
+                    return file;
+                }
+            });
+        }
+        LOG.debug("Intermediate merge pass: " + groups.size() + " merges of " + runs.size() + " runs, " + bytes + " bytes to rewrite");
+        try {
+            for (Future<File> merged : executor.invokeAll(merges)) {
+                result.add(merged.get());
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Intermediate merge failed: " + e.getCause().getMessage(), e.getCause());
+        }
+        return result;
+    }
+
+    /**
+     * Chooses runs for one pass of intermediate merges. Smallest runs are merged first, the first merge
+     * takes only as many runs as needed for every further merge (including the final one) to have exactly
+     * fanIn inputs, which minimizes the amount of rewritten bytes. Pass stops as soon as the final merge
+     * could be done with at most fanIn runs
+     * @param runs sorted runs
+     * @param fanIn maximum amount of runs merged at once
+     * @return groups of runs that should be merged, empty if all runs could be merged at once
+     */
+    static List<List<File>> planMergePass(List<File> runs, int fanIn) {
+        final List<File> bySize = new ArrayList<File>(runs);
+        Collections.sort(bySize, new Comparator<File>() {
+            public int compare(File o1, File o2) {
+                long l1 = o1.length();
+                long l2 = o2.length();
+                return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+            }
+        });
+        final List<List<File>> groups = new ArrayList<List<File>>();
+        int remaining = bySize.size();
+        int next = 0;
+        int groupSize = (remaining - 2) % (fanIn - 1) + 2;
+        while (remaining > fanIn && bySize.size() - next >= 2) {
+            groupSize = Math.min(Math.min(groupSize, bySize.size() - next), remaining - fanIn + 1);
+            groups.add(new ArrayList<File>(bySize.subList(next, next + groupSize)));
+            next += groupSize;
+            remaining -= groupSize - 1;
+            groupSize = fanIn;
+        }
+        return groups;
+    }
+
+    /**
+     * @param concurrentMerges amount of merges running at the same time, they share memory for read-ahead blocks
+     * @param sortedFile existing sorted file merged with runs, null if there is no such file
+     */
+    private void mergeFiles(final SortContext<T> context, List<File> filesToMerge, List<List<T>> memoryRuns, DataOutputFormat.Writer<T> writer,
+                            final SortingTask<T> task, int concurrentMerges, String sortedFile) throws IOException {
+        final long startTime = System.nanoTime();
+        final long startCpu = SortMetrics.threadCpuNanos();
+        RunMerger<T> merger = null;
         try {
-            while (!queue.isEmpty()) {
-                final InputProxy top = queue.poll();
-                final T element = top.pop();
-                writer.write(element);
-                if (!top.isEmpty()) {
-                    queue.add(top);
+            merger = openRuns(context, filesToMerge, memoryRuns, task, concurrentMerges, sortedFile);
+            long written = 0;
+            //with limit the rest of runs is not read at all
+            while (merger.hasNext() && written++ < task.limit()) {
+                if ((written & CANCEL_CHECK_MASK) == 0 && Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Merge interrupted");
                 }
+                writer.write(merger.next());
             }
             writer.close();
         } finally {
-            try {
-                writer.close();
-            } catch (Exception e) {
-                //
+            closeQuietly(writer);
+            closeQuietly(merger);
+        }
+        context.metrics.addMergeNanos(System.nanoTime() - startTime);
+        context.metrics.addMergeCpuNanos(SortMetrics.threadCpuNanos() - startCpu);
+    }
+
+    /**
+     * Opens readers of temporary files (with read-ahead) and in-memory runs
+     * @param concurrentMerges amount of merges running at the same time, they share memory for read-ahead blocks
+     * @param sortedFile existing sorted file merged with runs, null if there is no such file
+     * @return merger of the runs
+     */
+    private RunMerger<T> openRuns(final SortContext<T> context, List<File> filesToMerge, List<List<T>> memoryRuns, SortingTask<T> task, int concurrentMerges,
+                                  String sortedFile) throws IOException {
+        final int blockSize = readAheadBlockSize(context, concurrentMerges * filesToMerge.size());
+        final List<DataInputFormat.Reader<T>> readers = new ArrayList<DataInputFormat.Reader<T>>();
+        boolean opened = false;
+        try {
+            for (File f : filesToMerge) {
+                readers.add(openRun(context, f, 0, blockSize, task));
+            }
+            for (List<T> run : memoryRuns) {
+                readers.add(memoryRunReader(run));
+            }
+            final RunMerger<T> merger;
+            if (sortedFile == null) {
+                merger = newMerger(context, readers, task);
+            } else {
+                final List<DataInputFormat.Reader<T>> runs = new ArrayList<DataInputFormat.Reader<T>>(readers);
+                final DataInputFormat.Reader<T> existing = task.inputFormat().initialize(new FileInputStream(sortedFile));
+                readers.add(existing);
+                //combiner is applied to both existing and new items
+                merger = combine(context, new UpdatingRunMerger<T>(mergeStrategy.create(runs, context.comparator, task.keyExtractor()),
+                        existing, context.comparator, task.replaceEqual()), task);
+            }
+            opened = true;
+            return merger;
+        } finally {
+            if (!opened) {
+                for (DataInputFormat.Reader<T> r : readers) {
+                    closeQuietly(r);
+                }
             }
         }
+    }
 
+    private RunMerger<T> newMerger(final SortContext<T> context, List<DataInputFormat.Reader<T>> readers, SortingTask<T> task) throws IOException {
+        return combine(context, mergeStrategy.create(readers, context.comparator, task.keyExtractor()), task);
+    }
 
-        for (File f : filesToMerge) {
-            f.delete();
-        }
+    private RunMerger<T> combine(final SortContext<T> context, RunMerger<T> merger, SortingTask<T> task) {
+        return task.combiner() == null ? merger : new CombiningRunMerger<T>(merger, context.comparator, task.combiner(), context.metrics);
+    }
 
-        for (DataInputFormat.Reader<T> r : toClose) {
-            try {
-                r.close();
-            } catch (Exception e) {
-                //
+    /**
+     * @param files amount of files read at the same time
+     * @return size of read-ahead block, files share memory left after in-memory chunks, 0 if too little is left
+     */
+    private int readAheadBlockSize(final SortContext<T> context, int files) {
+        final long free = context.memory.getTotalBytes() - context.memory.getReservedBytes();
+        final long size = Math.min(MAX_READ_AHEAD_BLOCK, free / Math.max(1, files) / 2);
+        return size < MIN_READ_AHEAD_BLOCK ? 0 : (int) size;
+    }
+
+    /**
+     * @param offset position in the file to start reading from
+     * @param blockSize size of read-ahead blocks, file is read without read-ahead if it's 0 or blocks can't be reserved
+     */
+    private DataInputFormat.Reader<T> openRun(final SortContext<T> context, File f, long offset, int blockSize, SortingTask<T> task) {
+        try {
+            InputStream in = context.directories.openInput(f, offset);
+            final ExecutorService ioExecutor = context.directories.ioExecutor(f);
+            if (ioExecutor != null && blockSize > 0 && context.memory.tryReserveFree(2L * blockSize)) {
+                in = new ReadAheadInputStream(in, blockSize, ioExecutor, context.metrics, context.memory);
             }
+            return spillInputFormat(context, task).initialize(in);
+        } catch (Exception e) {
+            throw new RuntimeException("Can't initiailize reader for " + f.getAbsolutePath(), e);
         }
     }
 
-    private void flush(final List<T> buffer, final SortingTask<T> task, final List<File> filesToMerge) throws Exception {
-        if (buffer.isEmpty()) {
-            throw new IllegalStateException("Can't flush empty buffer");
+    /**
+     * Merges runs by P threads: key space is divided into P ranges by splitters sampled from block indexes
+     * of temporary files and from in-memory runs, each thread merges one range of all runs into its own segment
+     * file, segments are concatenated into output file. Equal items always get into the same range
+     */
+    private void parallelMerge(final SortContext<T> context, final List<File> runs, final List<List<T>> memoryRuns, final SortingTask<T> task) throws IOException {
+        final long startTime = System.nanoTime();
+        final List<T> samples = new ArrayList<T>();
+        for (File f : runs) {
+            final BlockIndex<T> index = context.runIndexes.get(f);
+            for (int i = 0; i < index.size(); i++) {
+                samples.add(index.firstItem(i));
+            }
         }
-        final File file = new File(temporaryDirectory, "sort4j-temp-" + Math.random());
-        final DataOutputFormat.Writer<T> writer = task.outputFormat().initialize(new FileOutputStream(file));
+        for (List<T> run : memoryRuns) {
+            for (int i = 0; i < run.size(); i += MEMORY_RUN_SAMPLE_STRIDE) {
+                samples.add(run.get(i));
+            }
+        }
+        Collections.sort(samples, context.comparator);
+        final List<T> splitters = new ArrayList<T>();
+        for (int p = 1; p < finalMergeThreads; p++) {
+            final T splitter = samples.get(p * samples.size() / finalMergeThreads);
+            if (splitters.isEmpty() || context.comparator.compare(splitters.get(splitters.size() - 1), splitter) < 0) {
+                splitters.add(splitter);
+            }
+        }
+        final int partitions = splitters.size() + 1;
+        LOG.debug("Parallel merge of " + runs.size() + " files and " + memoryRuns.size() + " in-memory runs in " + partitions + " ranges");
+        final int blockSize = readAheadBlockSize(context, partitions * runs.size());
+        final List<File> segments = new ArrayList<File>();
+        final List<Callable<Object>> merges = new ArrayList<Callable<Object>>();
+        for (int p = 0; p < partitions; p++) {
+            final T lower = p == 0 ? null : splitters.get(p - 1);
+            final T upper = p == partitions - 1 ? null : splitters.get(p);
+            final File segment = newTemporaryFile(context);
+            segments.add(segment);
+            merges.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    final long startCpu = SortMetrics.threadCpuNanos();
+                    final List<DataInputFormat.Reader<T>> readers = new ArrayList<DataInputFormat.Reader<T>>();
+                    final DataOutputFormat.Writer<T> writer = countRecordsWritten(context, task.outputFormat().initialize(context.directories.openOutput(segment)));
+                    RunMerger<T> merger = null;
+                    try {
+                        for (File f : runs) {
+                            final long offset = lower == null ? 0 : context.runIndexes.get(f).offsetBefore(lower, context.comparator);
+                            readers.add(new RangeReader<T>(openRun(context, f, offset, blockSize, task), lower, upper, context.comparator));
+                        }
+                        for (List<T> run : memoryRuns) {
+                            final int from = lower == null ? 0 : lowerBound(run, lower, context.comparator);
+                            final int to = upper == null ? run.size() : lowerBound(run, upper, context.comparator);
+                            readers.add(memoryRunReader(run.subList(from, to)));
+                        }
+                        merger = newMerger(context, readers, task);
+                        long written = 0;
+                        while (merger.hasNext()) {
+                            if ((++written & CANCEL_CHECK_MASK) == 0 && Thread.currentThread().isInterrupted()) {
+                                throw new InterruptedIOException("Merge interrupted");
+                            }
+                            writer.write(merger.next());
+                        }
+                        writer.close();
+                    } finally {
+                        closeQuietly(writer);
+                        if (merger != null) {
+                            closeQuietly(merger);
+                        } else {
+                            for (DataInputFormat.Reader<T> r : readers) {
+                                closeQuietly(r);
+                            }
+                        }
+                        context.metrics.addMergeCpuNanos(SortMetrics.threadCpuNanos() - startCpu);
+                    }
+                    return null;
+                }
+            });
+        }
+        final ExecutorService mergeExecutor = sharedExecutor != null ? sharedExecutor : Executors.newFixedThreadPool(partitions);
         try {
-            long time = System.currentTimeMillis();
-            Collections.sort(buffer, task.comparator());
-            time = System.currentTimeMillis() - time;
-            LOG.debug("Sorting of  " + buffer.size() + " items done in " + time + "ms, flushing sorting result to temporary file");
-            time = System.currentTimeMillis();
-            for (T i : buffer) {
-                writer.write(i);
+            for (Future<Object> merged : mergeExecutor.invokeAll(merges)) {
+                merged.get();
             }
-            writer.close();
-            time = System.currentTimeMillis() - time;
-            LOG.debug(buffer.size() + " sorted items was written in " + time + "ms");
-            buffer.clear();
+            concatenate(segments, new File(task.outputFile()));
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Parallel merge failed: " + e.getCause().getMessage(), e.getCause());
         } finally {
-            try {
-                writer.close();
-            } catch (IOException e) {
-                //
+            if (mergeExecutor != sharedExecutor) {
+                mergeExecutor.shutdownNow();
+            }
+            for (File segment : segments) {
+                deleteRun(context, segment);
             }
         }
-        filesToMerge.add(file);
+        for (File f : runs) {
+            deleteRun(context, f);
+        }
+        context.metrics.addMergeNanos(System.nanoTime() - startTime);
     }
 
-    private class InputProxy {
-        private DataInputFormat.Reader<T> input;
-        private T item;
-        private boolean empty = false;
-
-        private InputProxy(DataInputFormat.Reader<T> input) throws IOException {
-            this.input = input;
-            readNext();
+    /**
+     * @return index of the first item which is not less than given one
+     */
+    private static <T> int lowerBound(List<T> sorted, T item, Comparator<? super T> comparator) {
+        int low = 0;
+        int high = sorted.size();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (comparator.compare(sorted.get(middle), item) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
         }
+        return low;
+    }
 
-        public T peek() {
-            if (empty) {
-                throw new IllegalStateException("Can't peek, it's empty");
+    /**
+     * Writes files one after another into output file
+     */
+    static void concatenate(List<File> segments, File output) throws IOException {
+        final FileChannel out = new FileOutputStream(output).getChannel();
+        try {
+            for (File segment : segments) {
+                final FileChannel in = new FileInputStream(segment).getChannel();
+                try {
+                    final long size = in.size();
+                    long position = 0;
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                } finally {
+                    in.close();
+                }
             }
-            return item;
+        } finally {
+            out.close();
         }
+    }
+
+    private void deleteRun(final SortContext<T> context, File f) {
+        context.runIndexes.remove(f);
+        context.temporaryFiles.remove(f);
+        f.delete();
+    }
 
-        public T pop() throws IOException {
-            if (empty) {
-                throw new IllegalStateException("Can't pop, it's empty");
+    /**
+     * Deletes temporary files of the sort that are left, e.g. runs and intermediate merges of failed sort
+     */
+    private void deleteTemporaryFiles(final SortContext<T> context) {
+        for (File f : new ArrayList<File>(context.temporaryFiles)) {
+            deleteRun(context, f);
+        }
+    }
+
+    /**
+     * @return writer of temporary file, block index of the file is kept if temporary files are binary
+     */
+    private DataOutputFormat.Writer<T> spillWriter(final SortContext<T> context, File file, SortingTask<T> task) throws IOException {
+        if (context.spillFormat == null) {
+            return task.outputFormat().initialize(context.directories.openOutput(file));
+        }
+        final BlockIndex<T> index = new BlockIndex<T>();
+        context.runIndexes.put(file, index);
+        return context.spillFormat.initialize(context.directories.openOutput(file), index);
+    }
+
+    private static <T> DataInputFormat.Reader<T> memoryRunReader(List<T> run) {
+        final Iterator<T> items = run.iterator();
+        return new DataInputFormat.Reader<T>() {
+            public boolean hasNext() {
+                return items.hasNext();
+            }
+
+            public T nextItem() {
+                return items.next();
+            }
+
+            public void close() {
             }
-            T pop = item;
-            readNext();
-            return pop;
+        };
+    }
+
+    private void sortBuffer(final SortContext<T> context, List<T> buffer, SortingTask<T> task) {
+        long time = System.nanoTime();
+        final long startCpu = SortMetrics.threadCpuNanos();
+        if (task.keyExtractor() != null) {
+            PrefixSorter.sort(buffer, task.keyExtractor(), context.comparator);
+        } else {
+            Collections.sort(buffer, context.comparator);
         }
+        time = System.nanoTime() - time;
+        context.metrics.addSortNanos(time);
+        context.metrics.addSortCpuNanos(SortMetrics.threadCpuNanos() - startCpu);
+        LOG.debug("Sorting of  " + buffer.size() + " items done in " + TimeUnit.NANOSECONDS.toMillis(time) + "ms");
+    }
 
-        private void readNext() throws IOException {
-            if (!input.hasNext()) {
-                empty = true;
+    private void writeCombined(final SortContext<T> context, List<T> sorted, DataOutputFormat.Writer<T> writer, SortingTask<T> task) throws IOException {
+        final Combiner<T> combiner = task.combiner();
+        T current = null;
+        long combined = 0;
+        long written = 0;
+        for (T i : sorted) {
+            if (current != null && context.comparator.compare(current, i) == 0) {
+                current = combiner.combine(current, i);
+                combined++;
             } else {
-                empty = false;
-                item = input.nextItem();
+                if (current != null) {
+                    writer.write(current);
+                    //groups after the first limit ones can't get into output
+                    if (++written == task.limit()) {
+                        current = null;
+                        break;
+                    }
+                }
+                current = i;
             }
         }
-
-        public T getItem() {
-            return item;
+        if (current != null) {
+            writer.write(current);
         }
+        context.metrics.addRecordsCombined(combined);
+    }
 
-        public boolean isEmpty() {
-            return empty;
+    private void flush(final SortContext<T> context, final List<T> buffer, final SortingTask<T> task, final List<File> filesToMerge) throws Exception {
+        if (buffer.isEmpty()) {
+            throw new IllegalStateException("Can't flush empty buffer");
         }
+        final File file = newTemporaryFile(context);
+        final DataOutputFormat.Writer<T> writer = spillWriter(context, file, task);
+        try {
+            sortBuffer(context, buffer, task);
+            long time = System.nanoTime();
+            final long startCpu = SortMetrics.threadCpuNanos();
+            if (task.combiner() == null) {
+                final int count = (int) Math.min(buffer.size(), task.limit());
+                for (int i = 0; i < count; i++) {
+                    writer.write(buffer.get(i));
+                }
+            } else {
+                writeCombined(context, buffer, writer, task);
+            }
+            writer.close();
+            time = System.nanoTime() - time;
+            context.metrics.addSpillNanos(time);
+            context.metrics.addSpillCpuNanos(SortMetrics.threadCpuNanos() - startCpu);
+            context.metrics.addRunSpilled();
+            LOG.debug(buffer.size() + " sorted items was written in " + TimeUnit.NANOSECONDS.toMillis(time) + "ms");
+            buffer.clear();
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                //
+            }
+        }
+        filesToMerge.add(file);
+    }
+
+    /**
+     * @return format of temporary files: binary format if task has serializer, task's input format otherwise
+     */
+    private DataInputFormat<T> spillInputFormat(final SortContext<T> context, SortingTask<T> task) {
+        return context.spillFormat == null ? task.inputFormat() : context.spillFormat;
+    }
+
+    private File newTemporaryFile(final SortContext<T> context) {
+        final File file = context.manifest != null ? context.directories.newFile(context.manifest.newRunName()) : context.directories.newFile();
+        context.temporaryFiles.add(file);
+        return file;
+    }
+
+    /**
+     * State of one sort, so that sorter could run several sorts at the same time
+     */
+    private static class SortContext<T> {
+        private final BlockingQueue<InputSplit> inputSplits = new LinkedBlockingQueue<InputSplit>();
+        private final Queue<DataInputFormat.Reader<T>> inputStreams = new ConcurrentLinkedQueue<DataInputFormat.Reader<T>>();
+        private final AtomicBoolean hasErrors = new AtomicBoolean();
+        private final SortMetrics metrics = new SortMetrics();
+        private final Map<File, BlockIndex<T>> runIndexes = new ConcurrentHashMap<File, BlockIndex<T>>();
+        private final Set<File> temporaryFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+        private Comparator<T> comparator;
+        private SpillFormat<T> spillFormat;
+        private TemporaryDirectories directories;
+        private MemoryManager memory;
+        private SortManifest manifest;
+        private ObjectName mbeanName;
     }
 }
@@ -0,0 +1,56 @@
+package com.scalemotion.sort4j;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Algorithm used for merging sorted runs. Both algorithms are stable: items which are equal
+ * according to comparator are returned in the order of runs
+ */
+public enum MergeStrategy {
+    /**
+     * Binary heap of runs (based on {@link java.util.PriorityQueue}). Needs about 2*log2(k)
+     * comparisons per item, where k is amount of runs
+     */
+    HEAP {
+        @Override
+        public <T> RunMerger<T> create(List<? extends DataInputFormat.Reader<T>> runs, Comparator<? super T> comparator, KeyExtractor<? super T> keyExtractor) throws IOException {
+            return new HeapMerger<T>(runs, comparator, keyExtractor);
+        }
+    },
+    /**
+     * Tournament tree of losers. Needs log2(k) comparisons per item and doesn't allocate memory
+     * while merging
+     */
+    LOSER_TREE {
+        @Override
+        public <T> RunMerger<T> create(List<? extends DataInputFormat.Reader<T>> runs, Comparator<? super T> comparator, KeyExtractor<? super T> keyExtractor) throws IOException {
+            return new LoserTreeMerger<T>(runs, comparator, keyExtractor);
+        }
+    };
+
+    /**
+     * Creates merger that reads first item of each run
+     * @param runs readers of sorted runs
+     * @param comparator comparator which defines order of items in runs
+     * @param <T> type of item
+     * @return merger
+     * @throws IOException if some of readers failed
+     */
+    public <T> RunMerger<T> create(List<? extends DataInputFormat.Reader<T>> runs, Comparator<? super T> comparator) throws IOException {
+        return create(runs, comparator, null);
+    }
+
+    /**
+     * Creates merger that reads first item of each run and compares prefixes of items
+     * before calling comparator
+     * @param runs readers of sorted runs
+     * @param comparator comparator which defines order of items in runs
+     * @param keyExtractor extractor of key prefixes consistent with comparator, could be null
+     * @param <T> type of item
+     * @return merger
+     * @throws IOException if some of readers failed
+     */
+    public abstract <T> RunMerger<T> create(List<? extends DataInputFormat.Reader<T>> runs, Comparator<? super T> comparator, KeyExtractor<? super T> keyExtractor) throws IOException;
+}
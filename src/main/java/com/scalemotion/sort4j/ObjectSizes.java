@@ -0,0 +1,31 @@
+package com.scalemotion.sort4j;
+
+/**
+ * Conservative estimates of heap layout used by built-in {@link MemoryCalculator}s. Values match 64-bit JVM
+ * without compressed references, so on JVMs with compressed references estimates are slightly larger than real sizes
+ */
+public final class ObjectSizes {
+    /**
+     * Size of object header
+     */
+    public static final int OBJECT_HEADER = 16;
+    /**
+     * Size of array header (object header and length)
+     */
+    public static final int ARRAY_HEADER = 24;
+    /**
+     * Size of reference, every item also takes a reference slot in the in-memory chunk
+     */
+    public static final int REFERENCE = 8;
+
+    private ObjectSizes() {
+    }
+
+    /**
+     * @param bytes size of object
+     * @return size rounded up to 8 bytes as objects are aligned in heap
+     */
+    public static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
@@ -0,0 +1,97 @@
+package com.scalemotion.sort4j;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Sorts items by prefixes produced by {@link KeyExtractor}: prefixes are sorted by LSD radix sort,
+ * ranges of equal prefixes are sorted with comparator. Sort is stable
+ */
+final class PrefixSorter {
+    /**
+     * Approximate amount of extra memory needed for each item during sorting
+     */
+    static final int BYTES_PER_ITEM = 40;
+    private static final int RADIX_THRESHOLD = 64;
+
+    private PrefixSorter() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> void sort(List<T> items, KeyExtractor<? super T> extractor, Comparator<? super T> comparator) {
+        final int size = items.size();
+        if (size < RADIX_THRESHOLD) {
+            Collections.sort(items, comparator);
+            return;
+        }
+        final Object[] values = items.toArray();
+        final long[] keys = new long[size];
+        final int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = extractor.prefix((T) values[i]);
+            order[i] = i;
+        }
+        radixSort(keys, order);
+        final Object[] sorted = new Object[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = values[order[i]];
+        }
+        int start = 0;
+        for (int i = 1; i <= size; i++) {
+            if (i == size || keys[i] != keys[start]) {
+                if (i - start > 1) {
+                    Arrays.sort((T[]) sorted, start, i, comparator);
+                }
+                start = i;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            items.set(i, (T) sorted[i]);
+        }
+    }
+
+    /**
+     * Sorts keys as unsigned numbers, applying the same permutation to order
+     */
+    static void radixSort(long[] keys, int[] order) {
+        final int size = keys.length;
+        long[] sourceKeys = keys;
+        int[] sourceOrder = order;
+        long[] targetKeys = new long[size];
+        int[] targetOrder = new int[size];
+        final int[] counts = new int[256];
+        for (int shift = 0; shift < 64; shift += 8) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < size; i++) {
+                counts[(int) (sourceKeys[i] >>> shift) & 0xFF]++;
+            }
+            //all keys have the same byte, nothing to do on this pass
+            if (counts[(int) (sourceKeys[0] >>> shift) & 0xFF] == size) {
+                continue;
+            }
+            int offset = 0;
+            for (int b = 0; b < 256; b++) {
+                final int count = counts[b];
+                counts[b] = offset;
+                offset += count;
+            }
+            for (int i = 0; i < size; i++) {
+                final int position = counts[(int) (sourceKeys[i] >>> shift) & 0xFF]++;
+                targetKeys[position] = sourceKeys[i];
+                targetOrder[position] = sourceOrder[i];
+            }
+            final long[] swapKeys = sourceKeys;
+            sourceKeys = targetKeys;
+            targetKeys = swapKeys;
+            final int[] swapOrder = sourceOrder;
+            sourceOrder = targetOrder;
+            targetOrder = swapOrder;
+        }
+        if (sourceKeys != keys) {
+            System.arraycopy(sourceKeys, 0, keys, 0, size);
+            System.arraycopy(sourceOrder, 0, order, 0, size);
+        }
+    }
+}
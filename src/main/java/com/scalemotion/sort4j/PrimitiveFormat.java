@@ -0,0 +1,43 @@
+package com.scalemotion.sort4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Format of primitive values (longs, ints, doubles) which could be read and written without boxing,
+ * required by {@link PrimitiveMergeSorter}. Values are represented by sorting keys: longs whose signed
+ * order is the natural order of values (for instance, doubles are mapped to keys by flipping bits of
+ * negative numbers). Format also implements boxed {@link DataInputFormat} and {@link DataOutputFormat},
+ * so it could be used with {@link MergeSorter} as well
+ * @param <T> boxed type of value
+ */
+public interface PrimitiveFormat<T> extends SplittableInputFormat<T>, DataOutputFormat<T> {
+    /**
+     * @param in input stream
+     * @return reader of keys
+     */
+    public KeyReader initializeKeyReader(InputStream in);
+
+    /**
+     * @param out output stream
+     * @return writer of keys
+     */
+    public KeyWriter initializeKeyWriter(OutputStream out);
+
+    /**
+     * Reader of sorting keys
+     */
+    public static interface KeyReader extends Closeable {
+        public boolean hasNext() throws IOException;
+        public long nextKey() throws IOException;
+    }
+
+    /**
+     * Writer of sorting keys
+     */
+    public static interface KeyWriter extends Closeable {
+        public void writeKey(long key) throws IOException;
+    }
+}
@@ -0,0 +1,384 @@
+package com.scalemotion.sort4j;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Merge sort for large files of primitive values (see {@link com.scalemotion.sort4j.primitive.BinaryPrimitiveFormat}
+ * and {@link com.scalemotion.sort4j.primitive.TextPrimitiveFormat}). Works like {@link MergeSorter}, but values
+ * are never boxed: chunks are kept in long arrays and sorted by radix sort, temporary files contain raw
+ * 64-bit keys and merge compares longs. Memory calculator of the task is not used, each value takes
+ * 8 bytes of memoryBufferBytes, one third of the buffer is used as scratch space of radix sort.
+ * <p>
+ * Only natural order of values is supported, so comparator of the task should not be changed.
+ * Both input and output formats of the task should implement {@link PrimitiveFormat}
+ * @param <T> boxed type of value
+ */
+public class PrimitiveMergeSorter<T> implements Sorter<T> {
+    private static final Logger LOG = Logger.getLogger(PrimitiveMergeSorter.class);
+    private static final long DEFAULT_SPLIT_SIZE = 64L * 1024 * 1024;
+    private static final int DEFAULT_MAX_MERGE_FAN_IN = 128;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    private static final int RADIX_THRESHOLD = 1024;
+    private int executionThreads;
+    private long memoryBufferBytes;
+    private String temporaryDirectory;
+    private long splitSize = DEFAULT_SPLIT_SIZE;
+    private int maxMergeFanIn = DEFAULT_MAX_MERGE_FAN_IN;
+
+    /**
+     * @param temporaryDirectory directory where sorter will keep temporary files
+     * @param threads amount of working threads
+     * @param memoryBufferBytes maximum size of in-memory chunks of all threads
+     */
+    public PrimitiveMergeSorter(String temporaryDirectory, int threads, long memoryBufferBytes) {
+        this.temporaryDirectory = temporaryDirectory;
+        this.executionThreads = threads;
+        this.memoryBufferBytes = memoryBufferBytes;
+    }
+
+    /**
+     * @param splitSize size of input split in bytes (64Mb by default), see {@link MergeSorter#setSplitSize(long)}
+     */
+    public void setSplitSize(long splitSize) {
+        if (splitSize <= 0) {
+            throw new IllegalArgumentException("Split size should be positive");
+        }
+        this.splitSize = splitSize;
+    }
+
+    /**
+     * @param maxMergeFanIn maximum amount of simultaneously merged files (128 by default),
+     * see {@link MergeSorter#setMaxMergeFanIn(int)}
+     */
+    public void setMaxMergeFanIn(int maxMergeFanIn) {
+        if (maxMergeFanIn < 2) {
+            throw new IllegalArgumentException("Merge fan-in should be at least 2");
+        }
+        this.maxMergeFanIn = maxMergeFanIn;
+    }
+
+    public SortStats sort(final SortingTask<T> task) {
+        final PrimitiveFormat<T> inputFormat = primitiveFormat(task.inputFormat(), "inputFormat");
+        final PrimitiveFormat<T> outputFormat = primitiveFormat(task.outputFormat(), "outputFormat");
+        if (!(task.comparator() instanceof ComparableComparator)) {
+            throw new IllegalArgumentException("Only natural order of values is supported");
+        }
+        return new SplitSortJob(temporaryDirectory, executionThreads, maxMergeFanIn) {
+            @Override
+            void sortSplits(BlockingQueue<InputSplit> splits, AtomicBoolean hasErrors) throws Exception {
+                workerMain(inputFormat, splits, this, hasErrors);
+            }
+
+            @Override
+            void mergeFiles(List<File> files, File output) throws IOException {
+                PrimitiveMergeSorter.this.mergeFiles(files, new RunWriter(new FileOutputStream(output)));
+            }
+
+            @Override
+            void mergeOutput(List<File> files) throws IOException {
+                PrimitiveMergeSorter.this.mergeFiles(files,
+                        countRecordsWritten(metrics, outputFormat.initializeKeyWriter(new FileOutputStream(task.outputFile()))));
+            }
+        }.run(task.inputFiles(), inputFormat, splitSize);
+    }
+
+    @SuppressWarnings("unchecked")
+    private PrimitiveFormat<T> primitiveFormat(Object format, String name) {
+        if (!(format instanceof PrimitiveFormat)) {
+            throw new IllegalArgumentException(name + " should implement " + PrimitiveFormat.class.getSimpleName());
+        }
+        return (PrimitiveFormat<T>) format;
+    }
+
+    private void workerMain(PrimitiveFormat<T> format, BlockingQueue<InputSplit> splits, SplitSortJob job,
+                            AtomicBoolean hasErrors) throws Exception {
+        //two buffers (one is filled while another one is spilled) and scratch space of radix sort
+        final int capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8, memoryBufferBytes / executionThreads / 3 / 8));
+        final long[] scratch = new long[capacity];
+        long[] buffer = new long[capacity];
+        long[] spare = null;
+        int size = 0;
+        Future<long[]> spilling = null;
+        try {
+            InputSplit split;
+            while (!hasErrors.get() && (split = splits.poll()) != null) {
+                final PrimitiveFormat.KeyReader reader = format.initializeKeyReader(job.metrics.countBytesRead(split.open()));
+                long records = 0;
+                try {
+                    while (reader.hasNext()) {
+                        buffer[size++] = reader.nextKey();
+                        records++;
+                        if (size == capacity) {
+                            if (spilling != null) {
+                                spare = spilling.get();
+                            }
+                            spilling = job.executor().submit(spillTask(buffer, size, scratch, job));
+                            buffer = spare != null ? spare : new long[capacity];
+                            size = 0;
+                        }
+                    }
+                } finally {
+                    reader.close();
+                    job.metrics.addRecordsRead(records);
+                }
+            }
+            if (spilling != null) {
+                spilling.get();
+                spilling = null;
+            }
+            if (size > 0) {
+                spill(buffer, size, scratch, job);
+            }
+        } finally {
+            if (spilling != null) {
+                spilling.cancel(false);
+            }
+        }
+    }
+
+    private Callable<long[]> spillTask(final long[] buffer, final int size, final long[] scratch, final SplitSortJob job) {
+        return new Callable<long[]>() {
+            public long[] call() throws Exception {
+                spill(buffer, size, scratch, job);
+                return buffer;
+            }
+        };
+    }
+
+    private void spill(long[] buffer, int size, long[] scratch, SplitSortJob job) throws IOException {
+        long time = System.currentTimeMillis();
+        sortKeys(buffer, size, scratch);
+        LOG.debug("Sorting of " + size + " values done in " + (System.currentTimeMillis() - time) + "ms");
+        final File file = job.newTemporaryFile();
+        final RunWriter writer = new RunWriter(new FileOutputStream(file));
+        try {
+            for (int i = 0; i < size; i++) {
+                writer.writeKey(buffer[i]);
+            }
+        } finally {
+            writer.close();
+        }
+        job.addRun(file);
+    }
+
+    /**
+     * Sorts first size keys of buffer as signed numbers
+     */
+    static void sortKeys(long[] buffer, int size, long[] scratch) {
+        if (size < RADIX_THRESHOLD) {
+            Arrays.sort(buffer, 0, size);
+            return;
+        }
+        long[] source = buffer;
+        long[] target = scratch;
+        final int[] counts = new int[256];
+        for (int shift = 0; shift < 64; shift += 8) {
+            //sign bit is flipped on the last pass, so negative numbers go first
+            final int flip = shift == 56 ? 0x80 : 0;
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < size; i++) {
+                counts[((int) (source[i] >>> shift) & 0xFF) ^ flip]++;
+            }
+            if (counts[((int) (source[0] >>> shift) & 0xFF) ^ flip] == size) {
+                continue;
+            }
+            int offset = 0;
+            for (int b = 0; b < 256; b++) {
+                final int count = counts[b];
+                counts[b] = offset;
+                offset += count;
+            }
+            for (int i = 0; i < size; i++) {
+                target[counts[((int) (source[i] >>> shift) & 0xFF) ^ flip]++] = source[i];
+            }
+            final long[] swap = source;
+            source = target;
+            target = swap;
+        }
+        if (source != buffer) {
+            System.arraycopy(source, 0, buffer, 0, size);
+        }
+    }
+
+    private void mergeFiles(List<File> files, PrimitiveFormat.KeyWriter writer) throws IOException {
+        final RunReader[] readers = new RunReader[files.size()];
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = new RunReader(new FileInputStream(files.get(i)));
+            }
+            final KeyMerger merger = new KeyMerger(readers);
+            while (merger.hasNext()) {
+                writer.writeKey(merger.next());
+            }
+        } finally {
+            writer.close();
+            for (RunReader r : readers) {
+                if (r != null) {
+                    r.close();
+                }
+            }
+        }
+        for (File f : files) {
+            f.delete();
+        }
+    }
+
+    /**
+     * @return writer of output file that adds written keys to metrics
+     */
+    private static PrimitiveFormat.KeyWriter countRecordsWritten(final SortMetrics metrics, final PrimitiveFormat.KeyWriter writer) {
+        return new PrimitiveFormat.KeyWriter() {
+            private long written;
+
+            public void writeKey(long key) throws IOException {
+                writer.writeKey(key);
+                if (++written == MergeSorter.WRITTEN_RECORDS_BATCH) {
+                    metrics.addRecordsWritten(written);
+                    written = 0;
+                }
+            }
+
+            public void close() throws IOException {
+                metrics.addRecordsWritten(written);
+                written = 0;
+                writer.close();
+            }
+        };
+    }
+
+    /**
+     * Writes keys of temporary file as raw 64-bit big-endian numbers
+     */
+    private static class RunWriter implements PrimitiveFormat.KeyWriter {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[IO_BUFFER_SIZE];
+        private int position;
+
+        private RunWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        public void writeKey(long key) throws IOException {
+            if (position == buffer.length) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+            for (int i = 7; i >= 0; i--) {
+                buffer[position + i] = (byte) key;
+                key >>>= 8;
+            }
+            position += 8;
+        }
+
+        public void close() throws IOException {
+            try {
+                out.write(buffer, 0, position);
+                position = 0;
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Reads keys written by {@link RunWriter}
+     */
+    private static class RunReader implements PrimitiveFormat.KeyReader {
+        private final InputStream in;
+        private final byte[] buffer = new byte[IO_BUFFER_SIZE];
+        private int position;
+        private int limit;
+
+        private RunReader(InputStream in) {
+            this.in = in;
+        }
+
+        public boolean hasNext() throws IOException {
+            if (position < limit) {
+                return true;
+            }
+            position = 0;
+            limit = 0;
+            int read;
+            //buffer size is a multiple of 8 and file contains whole keys, so key never crosses buffers
+            while (limit < buffer.length && (read = in.read(buffer, limit, buffer.length - limit)) >= 0) {
+                limit += read;
+            }
+            if (limit % 8 != 0) {
+                throw new IOException("Truncated temporary file");
+            }
+            return limit > 0;
+        }
+
+        public long nextKey() throws IOException {
+            if (!hasNext()) {
+                throw new IllegalStateException("End of stream");
+            }
+            long key = 0;
+            for (int i = 0; i < 8; i++) {
+                key = (key << 8) | (buffer[position++] & 0xFF);
+            }
+            return key;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Tournament tree of losers over primitive keys
+     */
+    private static class KeyMerger extends LoserTree {
+        private final RunReader[] runs;
+        private final long[] heads;
+        private final boolean[] exhausted;
+
+        private KeyMerger(RunReader[] runs) throws IOException {
+            super(runs.length);
+            this.runs = runs;
+            this.heads = new long[size];
+            this.exhausted = new boolean[size];
+            for (int i = 0; i < size; i++) {
+                advance(i);
+            }
+            build();
+        }
+
+        @Override
+        protected boolean beats(int first, int second) {
+            if (exhausted[first]) {
+                return false;
+            }
+            return exhausted[second] || heads[first] < heads[second] || (heads[first] == heads[second] && first < second);
+        }
+
+        private void advance(int run) throws IOException {
+            if (runs[run].hasNext()) {
+                heads[run] = runs[run].nextKey();
+            } else {
+                exhausted[run] = true;
+            }
+        }
+
+        boolean hasNext() {
+            return size > 0 && !exhausted[winner()];
+        }
+
+        long next() throws IOException {
+            final int winner = winner();
+            final long key = heads[winner];
+            advance(winner);
+            replay(winner);
+            return key;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.scalemotion.sort4j;
+
+import java.io.IOException;
+import java.util.Comparator;
+
+/**
+ * Reader of items from lower (inclusive) to upper (exclusive) bound, null bound means no bound
+ */
+class RangeReader<T> implements DataInputFormat.Reader<T> {
+    private final DataInputFormat.Reader<T> reader;
+    private final T upper;
+    private final Comparator<? super T> comparator;
+    private T next;
+    private boolean hasNext;
+
+    RangeReader(DataInputFormat.Reader<T> reader, T lower, T upper, Comparator<? super T> comparator) throws IOException {
+        this.reader = reader;
+        this.upper = upper;
+        this.comparator = comparator;
+        //reading starts from the block that may contain lower bound, items before it are skipped
+        while (reader.hasNext()) {
+            final T item = reader.nextItem();
+            if (lower == null || comparator.compare(item, lower) >= 0) {
+                setNext(item);
+                break;
+            }
+        }
+    }
+
+    private void setNext(T item) {
+        hasNext = upper == null || comparator.compare(item, upper) < 0;
+        next = hasNext ? item : null;
+    }
+
+    public boolean hasNext() {
+        return hasNext;
+    }
+
+    public T nextItem() throws IOException {
+        if (!hasNext) {
+            throw new IllegalStateException("End of range");
+        }
+        final T result = next;
+        if (reader.hasNext()) {
+            setNext(reader.nextItem());
+        } else {
+            hasNext = false;
+            next = null;
+        }
+        return result;
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,150 @@
+package com.scalemotion.sort4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Input stream that reads underlying stream in large blocks on background I/O threads. Two blocks are used:
+ * as soon as one of them is taken for reading, the other one is queued for refill, so the block is usually
+ * ready when reader gets to its end. I/O executor serves requests in order of submission, and the run that
+ * started its current block earliest is the one that will need the next block first. Time reader spent
+ * waiting for blocks is counted as merge stall, blocks read are counted as read-ahead blocks
+ */
+class ReadAheadInputStream extends InputStream {
+    private final InputStream in;
+    private final ExecutorService ioExecutor;
+    private final SortMetrics metrics;
+    private final MemoryManager memory;
+    private byte[] current;
+    private byte[] spare;
+    private int position;
+    private int limit;
+    private Future<Integer> pending;
+    private boolean eof;
+
+    /**
+     * @param in underlying stream, closed by this stream
+     * @param blockSize size of each of two blocks
+     * @param ioExecutor executor that reads blocks
+     * @param metrics metrics to report stall time and read blocks to
+     * @param memory manager the blocks are reserved from, they are released when stream is closed
+     */
+    ReadAheadInputStream(InputStream in, int blockSize, ExecutorService ioExecutor, SortMetrics metrics, MemoryManager memory) {
+        this.in = in;
+        this.ioExecutor = ioExecutor;
+        this.metrics = metrics;
+        this.memory = memory;
+        this.current = new byte[blockSize];
+        this.spare = new byte[blockSize];
+        this.pending = fill(spare);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !nextBlock()) {
+            return -1;
+        }
+        return current[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position == limit && !nextBlock()) {
+            return -1;
+        }
+        final int count = Math.min(len, limit - position);
+        System.arraycopy(current, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (current == null) {
+            return;
+        }
+        if (pending != null) {
+            //block being read can't be abandoned while its thread still uses the stream
+            try {
+                pending.get();
+            } catch (Exception e) {
+                //
+            }
+            pending = null;
+        }
+        memory.release(2L * current.length);
+        current = null;
+        spare = null;
+        in.close();
+    }
+
+    /**
+     * Takes prefetched block and schedules refill of the drained one
+     * @return false if there is no more data
+     */
+    private boolean nextBlock() throws IOException {
+        if (eof) {
+            return false;
+        }
+        final int read;
+        try {
+            if (pending.isDone()) {
+                read = pending.get();
+            } else {
+                final long start = System.nanoTime();
+                read = pending.get();
+                metrics.addMergeStallNanos(System.nanoTime() - start);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for read-ahead");
+        } catch (ExecutionException e) {
+            pending = null;
+            throw new IOException("Read-ahead failed: " + e.getCause().getMessage(), e.getCause());
+        }
+        if (read <= 0) {
+            eof = true;
+            pending = null;
+            return false;
+        }
+        final byte[] drained = current;
+        current = spare;
+        spare = drained;
+        position = 0;
+        limit = read;
+        pending = read < current.length ? null : fill(spare);
+        if (pending == null) {
+            //short block means end of stream, next call ends reading
+            eof = true;
+        }
+        return true;
+    }
+
+    private Future<Integer> fill(final byte[] block) {
+        return ioExecutor.submit(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                int total = 0;
+                int read;
+                while (total < block.length && (read = in.read(block, total, block.length - total)) > 0) {
+                    total += read;
+                }
+                if (total > 0) {
+                    metrics.addReadAheadBlock();
+                }
+                return total;
+            }
+        });
+    }
+}
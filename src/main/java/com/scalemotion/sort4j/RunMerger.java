@@ -0,0 +1,22 @@
+package com.scalemotion.sort4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Merges several sorted sequences of items into one sorted sequence. Closing merger closes
+ * all underlying readers
+ * @param <T> type of item
+ */
+public interface RunMerger<T> extends Closeable {
+    /**
+     * @return true if there are more items
+     */
+    public boolean hasNext();
+
+    /**
+     * @return next item in sorted order
+     * @throws IOException if underlying reader failed
+     */
+    public T next() throws IOException;
+}
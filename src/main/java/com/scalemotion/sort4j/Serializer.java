@@ -0,0 +1,28 @@
+package com.scalemotion.sort4j;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Defines binary representation of objects in temporary files. Unlike {@link DataInputFormat} and
+ * {@link DataOutputFormat}, serializer doesn't need to delimit records: length of each record is stored
+ * separately, so any sequence of bytes is allowed
+ * @param <T> object type
+ */
+public interface Serializer<T> {
+    /**
+     * @param item object
+     * @param out output the object should be written to
+     * @throws IOException if output failed
+     */
+    public void serialize(T item, DataOutput out) throws IOException;
+
+    /**
+     * @param data buffer which contains serialized object
+     * @param offset offset of object in buffer
+     * @param length length of serialized object
+     * @return object
+     * @throws IOException if data is corrupted
+     */
+    public T deserialize(byte[] data, int offset, int length) throws IOException;
+}
@@ -0,0 +1,20 @@
+package com.scalemotion.sort4j;
+
+/**
+ * Receives progress of a sort, see {@link MergeSorter#addListener(SortListener)}. Methods are called
+ * from sorting threads, so they should be fast and thread-safe
+ */
+public interface SortListener {
+    /**
+     * Called when sort enters next phase, including {@link SortMetrics.Phase#DONE} and {@link SortMetrics.Phase#FAILED}
+     * @param phase new phase
+     * @param metrics counters of the sort
+     */
+    public void phaseChanged(SortMetrics.Phase phase, SortMetrics metrics);
+
+    /**
+     * Called when sorted chunk is written to temporary file
+     * @param metrics counters of the sort
+     */
+    public void runSpilled(SortMetrics metrics);
+}
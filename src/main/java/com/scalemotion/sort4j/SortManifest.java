@@ -0,0 +1,242 @@
+package com.scalemotion.sort4j;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checkpoint of a sort, see {@link MergeSorter#setCheckpointing(boolean)}. Manifest is an append-only log
+ * in the temporary directory: each line records either an input split whose items are all in temporary files
+ * (together with these files) or an intermediate merge (output file and merged files). Lines are synced to disk
+ * before files they mention are deleted, a line torn by crash is ignored.
+ * <p>
+ * Manifest is identified by fingerprint of the task: input files with their sizes and modification times,
+ * output file and settings that change contents of temporary files. Restarted sort with the same
+ * fingerprint skips recorded splits and continues merging recorded runs
+ */
+class SortManifest implements Closeable {
+    private static final Logger LOG = Logger.getLogger(SortManifest.class);
+    private static final String HEADER = "sort4j-manifest\t1";
+    private static final String TASK = "task";
+    private static final String SPLIT = "split";
+    private static final String MERGE = "merge";
+    private final File file;
+    private final String runPrefix;
+    private final String sessionPrefix;
+    private final Set<String> doneSplits = new HashSet<String>();
+    private final Set<File> runs = new LinkedHashSet<File>();
+    private final AtomicInteger runCounter = new AtomicInteger();
+    private FileOutputStream out;
+
+    /**
+     * Opens manifest of the task, loads it if it exists
+     * @param directory directory of manifest
+     * @param description description of the task, see {@link #describe}
+     */
+    SortManifest(File directory, String description) throws IOException {
+        final String fingerprint = fingerprint(description);
+        this.file = new File(directory, "sort4j-" + fingerprint + ".manifest");
+        this.runPrefix = "sort4j-" + fingerprint + "-";
+        this.sessionPrefix = runPrefix + Long.toString(System.currentTimeMillis(), 36) + "-";
+        final long valid = file.exists() ? load(description) : -1;
+        if (valid < 0) {
+            doneSplits.clear();
+            runs.clear();
+            out = new FileOutputStream(file);
+            append(HEADER);
+            append(TASK + "\t" + description);
+        } else {
+            //drop line torn by crash
+            final RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+            try {
+                truncated.setLength(valid);
+            } finally {
+                truncated.close();
+            }
+            out = new FileOutputStream(file, true);
+            LOG.debug("Resuming sort from " + file + ": " + doneSplits.size() + " splits done, " + runs.size() + " runs");
+        }
+    }
+
+    /**
+     * @return length of valid part of manifest, -1 if manifest belongs to other task or its runs are missing
+     */
+    private long load(String description) throws IOException {
+        final String content = FileUtils.readFileToString(file, "UTF-8");
+        final String complete = content.substring(0, content.lastIndexOf('\n') + 1);
+        final String[] lines = complete.split("\n");
+        if (lines.length < 2 || !lines[0].equals(HEADER) || !lines[1].equals(TASK + "\t" + description)) {
+            LOG.debug("Manifest " + file + " belongs to other task, starting over");
+            return -1;
+        }
+        for (int i = 2; i < lines.length; i++) {
+            final String[] fields = lines[i].split("\t");
+            if (fields[0].equals(SPLIT)) {
+                doneSplits.add(fields[1] + "\t" + fields[2] + "\t" + fields[3]);
+                for (int f = 4; f < fields.length; f++) {
+                    runs.add(new File(fields[f]));
+                }
+            } else if (fields[0].equals(MERGE)) {
+                for (int f = 2; f < fields.length; f++) {
+                    runs.remove(new File(fields[f]));
+                }
+                runs.add(new File(fields[1]));
+            } else {
+                throw new IOException("Corrupted manifest " + file + ": " + lines[i]);
+            }
+        }
+        for (File run : runs) {
+            if (!run.exists()) {
+                LOG.debug("Run " + run + " of manifest " + file + " is missing, starting over");
+                return -1;
+            }
+        }
+        return complete.getBytes("UTF-8").length;
+    }
+
+    /**
+     * @return description of the task, sorts with equal descriptions produce the same temporary files
+     */
+    static String describe(SortingTask<?> task, long splitSize, Object spillCodec) {
+        final StringBuilder description = new StringBuilder();
+        for (String input : task.inputFiles()) {
+            final File f = new File(input);
+            description.append(f.getAbsolutePath()).append(';').append(f.length()).append(';').append(f.lastModified()).append(';');
+        }
+        description.append(new File(task.outputFile()).getAbsolutePath())
+                .append(";split=").append(splitSize)
+                .append(";comparator=").append(className(task.comparator()))
+                .append(";serializer=").append(className(task.serializer()))
+                .append(";combiner=").append(className(task.combiner()))
+                .append(";codec=").append(className(spillCodec))
+                .append(";limit=").append(task.limit());
+        return description.toString().replace('\t', ' ').replace('\n', ' ');
+    }
+
+    private static String className(Object o) {
+        return o == null ? "none" : o.getClass().getName();
+    }
+
+    private static String fingerprint(String description) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(description.getBytes("UTF-8"));
+            final StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return true if all items of split are in recorded runs
+     */
+    synchronized boolean isDone(InputSplit split) {
+        return doneSplits.contains(key(split));
+    }
+
+    /**
+     * @return runs left after recorded splits and merges
+     */
+    synchronized List<File> getRuns() {
+        return new ArrayList<File>(runs);
+    }
+
+    /**
+     * @return name of new temporary file, names start with prefix of the task
+     */
+    String newRunName() {
+        return sessionPrefix + runCounter.incrementAndGet();
+    }
+
+    /**
+     * @return true if file is temporary file of the task
+     */
+    boolean isTemporaryFile(File f) {
+        return f.getName().startsWith(runPrefix);
+    }
+
+    /**
+     * Records that all items of split are written to given runs, runs are synced to disk first
+     */
+    void splitDone(InputSplit split, List<File> splitRuns) throws IOException {
+        for (File run : splitRuns) {
+            sync(run);
+        }
+        recordSplit(split, splitRuns);
+    }
+
+    private synchronized void recordSplit(InputSplit split, List<File> splitRuns) throws IOException {
+        final StringBuilder line = new StringBuilder(SPLIT).append('\t').append(key(split));
+        for (File run : splitRuns) {
+            line.append('\t').append(run.getAbsolutePath());
+        }
+        append(line.toString());
+        doneSplits.add(key(split));
+        runs.addAll(splitRuns);
+    }
+
+    /**
+     * Records intermediate merge, output is synced to disk first. Merged runs could be deleted after this call
+     */
+    void merged(File output, List<File> inputs) throws IOException {
+        sync(output);
+        recordMerge(output, inputs);
+    }
+
+    private synchronized void recordMerge(File output, List<File> inputs) throws IOException {
+        final StringBuilder line = new StringBuilder(MERGE).append('\t').append(output.getAbsolutePath());
+        for (File input : inputs) {
+            line.append('\t').append(input.getAbsolutePath());
+        }
+        append(line.toString());
+        runs.removeAll(inputs);
+        runs.add(output);
+    }
+
+    /**
+     * Forces closed file to disk, so it survives a crash once it's recorded
+     */
+    private static void sync(File file) throws IOException {
+        final RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            f.getFD().sync();
+        } finally {
+            f.close();
+        }
+    }
+
+    private void append(String line) throws IOException {
+        out.write((line + "\n").getBytes("UTF-8"));
+        out.getFD().sync();
+    }
+
+    private static String key(InputSplit split) {
+        return split.getFile().getAbsolutePath() + "\t" + split.getStart() + "\t" + split.getEnd();
+    }
+
+    /**
+     * Deletes manifest when sort is done
+     */
+    void delete() {
+        close();
+        file.delete();
+    }
+
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            //
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package com.scalemotion.sort4j;
+
+import com.scalemotion.sort4j.spill.SpillFormat;
+import org.apache.log4j.Logger;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters collected during sorting. Times are summed over all threads, so
+ * comparing time of stages shows which of them is a bottleneck: if reading stalls
+ * a lot waiting for previous chunk to be spilled, sorting or spilling is slower than parsing
+ * input and vice versa.
+ * <p>
+ * All counters are thread-safe and updated while sort is running, so they could be watched by
+ * {@link SortListener} or via JMX (see {@link MergeSorter#setJmxName(String)}). CPU times are measured
+ * by {@link ThreadMXBean} and are 0 if JVM doesn't support it
+ */
+public class SortMetrics implements SortMetricsMXBean {
+    private static final Logger LOG = Logger.getLogger(SortMetrics.class);
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Phase of sort
+     */
+    public enum Phase {
+        NOT_STARTED,
+        /**
+         * Input is read, chunks are sorted and written to temporary files
+         */
+        READING,
+        /**
+         * Temporary files are merged
+         */
+        MERGING,
+        DONE,
+        FAILED
+    }
+
+    private volatile Phase phase = Phase.NOT_STARTED;
+    private volatile long readingStartTime;
+    private volatile long mergingStartTime;
+    private volatile long endTime;
+    private volatile List<SortListener> listeners = Collections.emptyList();
+    private volatile CountingComparator<?> comparator;
+    private final AtomicLong inputBytes = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong recordsWritten = new AtomicLong();
+    private final AtomicLong readCpuNanos = new AtomicLong();
+    private final AtomicLong sortCpuNanos = new AtomicLong();
+    private final AtomicLong spillCpuNanos = new AtomicLong();
+    private final AtomicLong mergeCpuNanos = new AtomicLong();
+    private final AtomicLong recordsRead = new AtomicLong();
+    private final AtomicLong readNanos = new AtomicLong();
+    private final AtomicLong readStallNanos = new AtomicLong();
+    private final AtomicLong sortNanos = new AtomicLong();
+    private final AtomicLong spillNanos = new AtomicLong();
+    private final AtomicLong runsSpilled = new AtomicLong();
+    private final AtomicLong recordsCombined = new AtomicLong();
+    private final AtomicLong mergeNanos = new AtomicLong();
+    private final AtomicLong mergeStallNanos = new AtomicLong();
+    private final AtomicLong readAheadBlocks = new AtomicLong();
+    private volatile SpillFormat<?> spillFormat;
+    private volatile TemporaryDirectories temporaryDirectories;
+
+    void setSpillFormat(SpillFormat<?> spillFormat) {
+        this.spillFormat = spillFormat;
+    }
+
+    void setTemporaryDirectories(TemporaryDirectories temporaryDirectories) {
+        this.temporaryDirectories = temporaryDirectories;
+    }
+
+    void setListeners(List<SortListener> listeners) {
+        this.listeners = listeners;
+    }
+
+    void setComparator(CountingComparator<?> comparator) {
+        this.comparator = comparator;
+    }
+
+    /**
+     * @return CPU time of current thread in nanoseconds, 0 if it's not supported
+     */
+    static long threadCpuNanos() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * Switches sort to the next phase and notifies listeners
+     */
+    void startPhase(Phase phase) {
+        final long now = System.nanoTime();
+        if (phase == Phase.READING) {
+            readingStartTime = now;
+        } else if (phase == Phase.MERGING) {
+            mergingStartTime = now;
+        } else if (phase == Phase.DONE || phase == Phase.FAILED) {
+            endTime = now;
+        }
+        this.phase = phase;
+        for (SortListener listener : listeners) {
+            try {
+                listener.phaseChanged(phase, this);
+            } catch (RuntimeException e) {
+                LOG.warn("Sort listener failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    void addInputBytes(long bytes) {
+        inputBytes.addAndGet(bytes);
+    }
+
+    void addBytesRead(long bytes) {
+        bytesRead.addAndGet(bytes);
+    }
+
+    /**
+     * @return stream that adds bytes read from input to metrics
+     */
+    InputStream countBytesRead(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b >= 0) {
+                    addBytesRead(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final int read = super.read(b, off, len);
+                if (read > 0) {
+                    addBytesRead(read);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                final long skipped = super.skip(n);
+                addBytesRead(skipped);
+                return skipped;
+            }
+        };
+    }
+
+    void addRecordsWritten(long records) {
+        recordsWritten.addAndGet(records);
+    }
+
+    void addReadCpuNanos(long nanos) {
+        readCpuNanos.addAndGet(nanos);
+    }
+
+    void addSortCpuNanos(long nanos) {
+        sortCpuNanos.addAndGet(nanos);
+    }
+
+    void addSpillCpuNanos(long nanos) {
+        spillCpuNanos.addAndGet(nanos);
+    }
+
+    void addMergeCpuNanos(long nanos) {
+        mergeCpuNanos.addAndGet(nanos);
+    }
+
+    void addRecordsRead(long records) {
+        recordsRead.addAndGet(records);
+    }
+
+    void addReadNanos(long nanos) {
+        readNanos.addAndGet(nanos);
+    }
+
+    void addReadStallNanos(long nanos) {
+        readStallNanos.addAndGet(nanos);
+    }
+
+    void addSortNanos(long nanos) {
+        sortNanos.addAndGet(nanos);
+    }
+
+    void addSpillNanos(long nanos) {
+        spillNanos.addAndGet(nanos);
+    }
+
+    void addRunSpilled() {
+        runsSpilled.incrementAndGet();
+        for (SortListener listener : listeners) {
+            try {
+                listener.runSpilled(this);
+            } catch (RuntimeException e) {
+                LOG.warn("Sort listener failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    void addRecordsCombined(long records) {
+        recordsCombined.addAndGet(records);
+    }
+
+    void addMergeNanos(long nanos) {
+        mergeNanos.addAndGet(nanos);
+    }
+
+    void addMergeStallNanos(long nanos) {
+        mergeStallNanos.addAndGet(nanos);
+    }
+
+    void addReadAheadBlock() {
+        readAheadBlocks.incrementAndGet();
+    }
+
+    /**
+     * @return current phase of sort
+     */
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return estimated part of work done, 0..1. Reading is counted as the first half by bytes read,
+     * merge as the second one by records written
+     */
+    public double getProgress() {
+        switch (phase) {
+            case READING:
+                final long total = inputBytes.get();
+                return total == 0 ? 0 : 0.5 * Math.min(1, (double) bytesRead.get() / total);
+            case MERGING:
+                final long records = recordsRead.get() - recordsCombined.get();
+                return records <= 0 ? 0.5 : 0.5 + 0.5 * Math.min(1, (double) recordsWritten.get() / records);
+            case DONE:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return time left estimated by {@link #getProgress()}, in milliseconds, -1 if it can't be estimated yet
+     */
+    public long getEstimatedRemainingMillis() {
+        final double progress = getProgress();
+        if (phase == Phase.DONE) {
+            return 0;
+        }
+        if (progress <= 0 || phase == Phase.FAILED) {
+            return -1;
+        }
+        return (long) (getElapsedMillis() * (1 - progress) / progress);
+    }
+
+    /**
+     * @return wall time since the start of sort, in milliseconds
+     */
+    public long getElapsedMillis() {
+        return phaseMillis(readingStartTime, endTime);
+    }
+
+    /**
+     * @return wall time of reading phase, in milliseconds
+     */
+    public long getReadingPhaseMillis() {
+        return phaseMillis(readingStartTime, mergingStartTime != 0 ? mergingStartTime : endTime);
+    }
+
+    /**
+     * @return wall time of merging phase, in milliseconds
+     */
+    public long getMergingPhaseMillis() {
+        return phaseMillis(mergingStartTime, endTime);
+    }
+
+    private static long phaseMillis(long start, long end) {
+        if (start == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis((end != 0 ? end : System.nanoTime()) - start);
+    }
+
+    /**
+     * @return size of input to read (without splits done before restart of checkpointed sort)
+     */
+    public long getInputBytes() {
+        return inputBytes.get();
+    }
+
+    /**
+     * @return bytes read from input files
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return amount of records written to output file
+     */
+    public long getRecordsWritten() {
+        return recordsWritten.get();
+    }
+
+    /**
+     * @return amount of comparator calls, 0 unless enabled by {@link MergeSorter#setCountComparisons(boolean)}
+     */
+    public long getComparisons() {
+        final CountingComparator<?> counting = comparator;
+        return counting == null ? 0 : counting.getCount();
+    }
+
+    /**
+     * @return records written to output file per second of merging phase
+     */
+    public double getMergeRecordsPerSecond() {
+        final long millis = getMergingPhaseMillis();
+        return millis == 0 ? 0 : recordsWritten.get() * 1000.0 / millis;
+    }
+
+    /**
+     * @return CPU time of reading threads, in milliseconds
+     */
+    public long getReadCpuMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(readCpuNanos.get());
+    }
+
+    /**
+     * @return CPU time of sorting chunks in memory, in milliseconds
+     */
+    public long getSortCpuMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(sortCpuNanos.get());
+    }
+
+    /**
+     * @return CPU time of writing temporary files, in milliseconds
+     */
+    public long getSpillCpuMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(spillCpuNanos.get());
+    }
+
+    /**
+     * @return CPU time of merges, in milliseconds. Time much less than {@link #getMergeMillis()} means merge waits for disk
+     */
+    public long getMergeCpuMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mergeCpuNanos.get());
+    }
+
+    /**
+     * @return immutable copy of current values
+     */
+    public SortStats snapshot() {
+        return new SortStats(this);
+    }
+
+    /**
+     * @return amount of records read from input
+     */
+    public long getRecordsRead() {
+        return recordsRead.get();
+    }
+
+    /**
+     * @return time spent reading and parsing input, in milliseconds
+     */
+    public long getReadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(readNanos.get());
+    }
+
+    /**
+     * @return time reading threads spent waiting for previous chunk to be sorted and spilled, in milliseconds
+     */
+    public long getReadStallMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(readStallNanos.get());
+    }
+
+    /**
+     * @return time spent sorting chunks in memory, in milliseconds
+     */
+    public long getSortMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(sortNanos.get());
+    }
+
+    /**
+     * @return time spent writing sorted chunks to temporary files, in milliseconds
+     */
+    public long getSpillMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(spillNanos.get());
+    }
+
+    /**
+     * @return amount of sorted chunks written to temporary files
+     */
+    public long getRunsSpilled() {
+        return runsSpilled.get();
+    }
+
+    /**
+     * @return amount of records removed by {@link Combiner} (counted once per combine call,
+     * so it's the difference between records read and records written)
+     */
+    public long getRecordsCombined() {
+        return recordsCombined.get();
+    }
+
+    /**
+     * @return time spent merging temporary files (intermediate and final merges), in milliseconds
+     */
+    public long getMergeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mergeNanos.get());
+    }
+
+    /**
+     * @return part of merge time spent waiting for read-ahead blocks of temporary files, in milliseconds.
+     * If it's close to zero, merge is CPU-bound
+     */
+    public long getMergeStallMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mergeStallNanos.get());
+    }
+
+    /**
+     * @return blocks of temporary files read by background I/O threads, 0 if read-ahead is disabled
+     */
+    public long getReadAheadBlocks() {
+        return readAheadBlocks.get();
+    }
+
+    /**
+     * @return bytes written to temporary files before compression (0 if temporary files are not in binary format)
+     */
+    public long getSpillRawBytes() {
+        final SpillFormat<?> format = spillFormat;
+        return format == null ? 0 : format.getRawBytes();
+    }
+
+    /**
+     * @return bytes written to temporary files after compression (0 if temporary files are not in binary format)
+     */
+    public long getSpillStoredBytes() {
+        final SpillFormat<?> format = spillFormat;
+        return format == null ? 0 : format.getStoredBytes();
+    }
+
+    /**
+     * @return compressed size of temporary files divided by uncompressed one
+     */
+    public double getSpillCompressionRatio() {
+        final SpillFormat<?> format = spillFormat;
+        return format == null ? 1 : format.getCompressionRatio();
+    }
+
+    /**
+     * @return time spent compressing temporary files, in milliseconds
+     */
+    public long getCompressMillis() {
+        final SpillFormat<?> format = spillFormat;
+        return format == null ? 0 : format.getCompressMillis();
+    }
+
+    /**
+     * @return time spent decompressing temporary files, in milliseconds
+     */
+    public long getDecompressMillis() {
+        final SpillFormat<?> format = spillFormat;
+        return format == null ? 0 : format.getDecompressMillis();
+    }
+
+    /**
+     * @return bytes written to each temporary directory, shows if disks are loaded evenly
+     */
+    public Map<String, Long> getDirectoryBytesWritten() {
+        final TemporaryDirectories directories = temporaryDirectories;
+        return directories == null ? Collections.<String, Long>emptyMap() : directories.getBytesWritten();
+    }
+
+    /**
+     * @return bytes read from each temporary directory
+     */
+    public Map<String, Long> getDirectoryBytesRead() {
+        final TemporaryDirectories directories = temporaryDirectories;
+        return directories == null ? Collections.<String, Long>emptyMap() : directories.getBytesRead();
+    }
+
+    @Override
+    public String toString() {
+        return "phase: " + getPhase()
+                + ", elapsed: " + getElapsedMillis() + "ms"
+                + ", records read: " + getRecordsRead()
+                + ", bytes read: " + getBytesRead() + "/" + getInputBytes()
+                + ", records written: " + getRecordsWritten()
+                + ", read: " + getReadMillis() + "ms"
+                + ", read stall: " + getReadStallMillis() + "ms"
+                + ", sort: " + getSortMillis() + "ms"
+                + ", spill: " + getSpillMillis() + "ms"
+                + ", runs: " + getRunsSpilled()
+                + ", combined: " + getRecordsCombined()
+                + ", merge: " + getMergeMillis() + "ms"
+                + ", merge stall: " + getMergeStallMillis() + "ms"
+                + ", read-ahead blocks: " + getReadAheadBlocks()
+                + ", spill bytes: " + getSpillStoredBytes() + "/" + getSpillRawBytes()
+                + String.format(" (ratio %.2f, compress: %dms, decompress: %dms)", getSpillCompressionRatio(), getCompressMillis(), getDecompressMillis())
+                + ", directory bytes written: " + getDirectoryBytesWritten()
+                + ", read: " + getDirectoryBytesRead();
+    }
+}
@@ -0,0 +1,72 @@
+package com.scalemotion.sort4j;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link SortMetrics}, see {@link MergeSorter#setJmxName(String)}
+ */
+public interface SortMetricsMXBean {
+    public SortMetrics.Phase getPhase();
+
+    public double getProgress();
+
+    public long getEstimatedRemainingMillis();
+
+    public long getElapsedMillis();
+
+    public long getReadingPhaseMillis();
+
+    public long getMergingPhaseMillis();
+
+    public long getInputBytes();
+
+    public long getBytesRead();
+
+    public long getRecordsRead();
+
+    public long getRecordsWritten();
+
+    public long getRunsSpilled();
+
+    public long getRecordsCombined();
+
+    public long getComparisons();
+
+    public long getReadMillis();
+
+    public long getReadStallMillis();
+
+    public long getReadCpuMillis();
+
+    public long getSortMillis();
+
+    public long getSortCpuMillis();
+
+    public long getSpillMillis();
+
+    public long getSpillCpuMillis();
+
+    public long getMergeMillis();
+
+    public long getMergeCpuMillis();
+
+    public long getMergeStallMillis();
+
+    public long getReadAheadBlocks();
+
+    public double getMergeRecordsPerSecond();
+
+    public long getSpillRawBytes();
+
+    public long getSpillStoredBytes();
+
+    public double getSpillCompressionRatio();
+
+    public long getCompressMillis();
+
+    public long getDecompressMillis();
+
+    public Map<String, Long> getDirectoryBytesWritten();
+
+    public Map<String, Long> getDirectoryBytesRead();
+}
@@ -0,0 +1,125 @@
+package com.scalemotion.sort4j;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many sorting tasks on shared threads and memory. At most concurrentSorts tasks are sorted at the same time,
+ * the rest wait in queue. Running sorts share one pool of 2 * concurrentSorts * threadsPerSort threads (working threads
+ * wait for their chunks to be spilled, so half of the pool is left for spills and merges) and one {@link MemoryManager}:
+ * each working thread is entitled to equal share of the budget and borrows memory of idle ones. Read-ahead buffers
+ * of merges are not managed, each sort sizes them by its part of the budget (memoryBufferBytes / concurrentSorts).
+ * <p>
+ * Tasks are sorted by {@link MergeSorter}s created by {@link #createSorter(SortingTask)}. Returned future is
+ * completed with {@link SortStats} of the sort, cancelling it removes queued task from the queue or interrupts running sort
+ */
+public class SortService {
+    private final String temporaryDirectory;
+    private final int threadsPerSort;
+    private final long sortBufferBytes;
+    private final MemoryManager memoryManager;
+    private final ThreadPoolExecutor sorts;
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * @param temporaryDirectory directory where sorters will keep temporary files
+     * @param concurrentSorts maximum amount of sorts running at the same time
+     * @param threadsPerSort amount of working threads of each sort
+     * @param memoryBufferBytes memory budget shared by all sorts
+     */
+    public SortService(String temporaryDirectory, int concurrentSorts, int threadsPerSort, long memoryBufferBytes) {
+        if (concurrentSorts < 1 || threadsPerSort < 1) {
+            throw new IllegalArgumentException("Sort service needs at least one sort of one thread");
+        }
+        this.temporaryDirectory = temporaryDirectory;
+        this.threadsPerSort = threadsPerSort;
+        this.sortBufferBytes = memoryBufferBytes / concurrentSorts;
+        this.memoryManager = new MemoryManager(memoryBufferBytes);
+        this.sorts = newPool(concurrentSorts, "sort4j-sort-%d");
+        this.workers = newPool(2 * concurrentSorts * threadsPerSort, "sort4j-worker-%d");
+    }
+
+    /**
+     * @return pool of daemon threads which exit when idle, so service that is not shut down doesn't hold threads
+     */
+    private static ThreadPoolExecutor newPool(int threads, String nameFormat) {
+        final ThreadFactory factory = new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Queues task for sorting
+     * @param task task to sort
+     * @return future of sort result
+     */
+    public <T> ListenableFuture<SortStats> submit(final SortingTask<T> task) {
+        final MergeSorter<T> sorter = createSorter(task);
+        final ListenableFutureTask<SortStats> future = new ListenableFutureTask<SortStats>(new Callable<SortStats>() {
+            public SortStats call() throws Exception {
+                return sorter.sort(task);
+            }
+        });
+        future.addListener(new Runnable() {
+            public void run() {
+                if (future.isCancelled()) {
+                    sorts.remove(future);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        sorts.execute(future);
+        return future;
+    }
+
+    /**
+     * Creates sorter of the task, could be overridden to change settings of sorter. Sorter should keep
+     * executor and memory manager set here
+     * @param task task to sort
+     * @return sorter that uses shared threads and memory of the service
+     */
+    protected <T> MergeSorter<T> createSorter(SortingTask<T> task) {
+        final MergeSorter<T> sorter = new MergeSorter<T>(temporaryDirectory, threadsPerSort, sortBufferBytes);
+        sorter.setExecutor(workers);
+        sorter.setMemoryManager(memoryManager);
+        return sorter;
+    }
+
+    /**
+     * @return memory budget shared by sorts
+     */
+    public MemoryManager getMemoryManager() {
+        return memoryManager;
+    }
+
+    /**
+     * @return amount of tasks waiting for a free sort slot
+     */
+    int getQueuedTasks() {
+        return sorts.getQueue().size();
+    }
+
+    /**
+     * Stops accepting tasks, queued tasks are still sorted. Worker threads exit when they become idle
+     */
+    public void shutdown() {
+        sorts.shutdown();
+    }
+
+    /**
+     * Interrupts running sorts and drops queued ones
+     */
+    public void shutdownNow() {
+        sorts.shutdownNow();
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,253 @@
+package com.scalemotion.sort4j;
+
+/**
+ * Immutable copy of {@link SortMetrics}, returned by {@link Sorter#sort(SortingTask)}
+ */
+public class SortStats {
+    private final SortMetrics.Phase phase;
+    private final long elapsedMillis;
+    private final long readingPhaseMillis;
+    private final long mergingPhaseMillis;
+    private final long inputBytes;
+    private final long bytesRead;
+    private final long recordsRead;
+    private final long recordsWritten;
+    private final long runsSpilled;
+    private final long recordsCombined;
+    private final long comparisons;
+    private final long readMillis;
+    private final long readStallMillis;
+    private final long readCpuMillis;
+    private final long sortMillis;
+    private final long sortCpuMillis;
+    private final long spillMillis;
+    private final long spillCpuMillis;
+    private final long mergeMillis;
+    private final long mergeCpuMillis;
+    private final long mergeStallMillis;
+    private final long readAheadBlocks;
+    private final double mergeRecordsPerSecond;
+    private final long spillRawBytes;
+    private final long spillStoredBytes;
+
+    SortStats(SortMetrics metrics) {
+        this.phase = metrics.getPhase();
+        this.elapsedMillis = metrics.getElapsedMillis();
+        this.readingPhaseMillis = metrics.getReadingPhaseMillis();
+        this.mergingPhaseMillis = metrics.getMergingPhaseMillis();
+        this.inputBytes = metrics.getInputBytes();
+        this.bytesRead = metrics.getBytesRead();
+        this.recordsRead = metrics.getRecordsRead();
+        this.recordsWritten = metrics.getRecordsWritten();
+        this.runsSpilled = metrics.getRunsSpilled();
+        this.recordsCombined = metrics.getRecordsCombined();
+        this.comparisons = metrics.getComparisons();
+        this.readMillis = metrics.getReadMillis();
+        this.readStallMillis = metrics.getReadStallMillis();
+        this.readCpuMillis = metrics.getReadCpuMillis();
+        this.sortMillis = metrics.getSortMillis();
+        this.sortCpuMillis = metrics.getSortCpuMillis();
+        this.spillMillis = metrics.getSpillMillis();
+        this.spillCpuMillis = metrics.getSpillCpuMillis();
+        this.mergeMillis = metrics.getMergeMillis();
+        this.mergeCpuMillis = metrics.getMergeCpuMillis();
+        this.mergeStallMillis = metrics.getMergeStallMillis();
+        this.readAheadBlocks = metrics.getReadAheadBlocks();
+        this.mergeRecordsPerSecond = metrics.getMergeRecordsPerSecond();
+        this.spillRawBytes = metrics.getSpillRawBytes();
+        this.spillStoredBytes = metrics.getSpillStoredBytes();
+    }
+
+    /**
+     * @return phase of sort when snapshot was taken
+     */
+    public SortMetrics.Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return wall time of sort, in milliseconds
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return wall time of reading phase, in milliseconds
+     */
+    public long getReadingPhaseMillis() {
+        return readingPhaseMillis;
+    }
+
+    /**
+     * @return wall time of merging phase, in milliseconds
+     */
+    public long getMergingPhaseMillis() {
+        return mergingPhaseMillis;
+    }
+
+    /**
+     * @return size of input to read
+     */
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    /**
+     * @return bytes read from input files
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return amount of records read from input
+     */
+    public long getRecordsRead() {
+        return recordsRead;
+    }
+
+    /**
+     * @return amount of records written to output file
+     */
+    public long getRecordsWritten() {
+        return recordsWritten;
+    }
+
+    /**
+     * @return amount of sorted chunks written to temporary files
+     */
+    public long getRunsSpilled() {
+        return runsSpilled;
+    }
+
+    /**
+     * @return amount of records removed by combiner
+     */
+    public long getRecordsCombined() {
+        return recordsCombined;
+    }
+
+    /**
+     * @return amount of comparator calls, 0 if they were not counted
+     */
+    public long getComparisons() {
+        return comparisons;
+    }
+
+    /**
+     * @return time spent reading and parsing input, in milliseconds
+     */
+    public long getReadMillis() {
+        return readMillis;
+    }
+
+    /**
+     * @return time reading threads waited for previous chunk to be spilled, in milliseconds
+     */
+    public long getReadStallMillis() {
+        return readStallMillis;
+    }
+
+    /**
+     * @return CPU time of reading threads, in milliseconds
+     */
+    public long getReadCpuMillis() {
+        return readCpuMillis;
+    }
+
+    /**
+     * @return time spent sorting chunks in memory, in milliseconds
+     */
+    public long getSortMillis() {
+        return sortMillis;
+    }
+
+    /**
+     * @return CPU time of sorting chunks in memory, in milliseconds
+     */
+    public long getSortCpuMillis() {
+        return sortCpuMillis;
+    }
+
+    /**
+     * @return time spent writing temporary files, in milliseconds
+     */
+    public long getSpillMillis() {
+        return spillMillis;
+    }
+
+    /**
+     * @return CPU time of writing temporary files, in milliseconds
+     */
+    public long getSpillCpuMillis() {
+        return spillCpuMillis;
+    }
+
+    /**
+     * @return time spent merging, in milliseconds
+     */
+    public long getMergeMillis() {
+        return mergeMillis;
+    }
+
+    /**
+     * @return CPU time of merges, in milliseconds
+     */
+    public long getMergeCpuMillis() {
+        return mergeCpuMillis;
+    }
+
+    /**
+     * @return time merge waited for read-ahead blocks, in milliseconds
+     */
+    public long getMergeStallMillis() {
+        return mergeStallMillis;
+    }
+
+    /**
+     * @return blocks of temporary files read ahead of merge
+     */
+    public long getReadAheadBlocks() {
+        return readAheadBlocks;
+    }
+
+    /**
+     * @return records written to output file per second of merging phase
+     */
+    public double getMergeRecordsPerSecond() {
+        return mergeRecordsPerSecond;
+    }
+
+    /**
+     * @return bytes written to temporary files before compression
+     */
+    public long getSpillRawBytes() {
+        return spillRawBytes;
+    }
+
+    /**
+     * @return bytes written to temporary files after compression
+     */
+    public long getSpillStoredBytes() {
+        return spillStoredBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "phase: " + phase
+                + ", elapsed: " + elapsedMillis + "ms (reading: " + readingPhaseMillis + "ms, merging: " + mergingPhaseMillis + "ms)"
+                + ", records read: " + recordsRead
+                + ", bytes read: " + bytesRead + "/" + inputBytes
+                + ", records written: " + recordsWritten
+                + ", runs: " + runsSpilled
+                + ", combined: " + recordsCombined
+                + ", comparisons: " + comparisons
+                + ", read: " + readMillis + "ms (cpu " + readCpuMillis + "ms, stall " + readStallMillis + "ms)"
+                + ", sort: " + sortMillis + "ms (cpu " + sortCpuMillis + "ms)"
+                + ", spill: " + spillMillis + "ms (cpu " + spillCpuMillis + "ms)"
+                + ", merge: " + mergeMillis + "ms (cpu " + mergeCpuMillis + "ms, stall " + mergeStallMillis + "ms, read-ahead blocks " + readAheadBlocks + ")"
+                + String.format(", merge throughput: %.0f records/s", mergeRecordsPerSecond)
+                + ", spill bytes: " + spillStoredBytes + "/" + spillRawBytes;
+    }
+}
@@ -8,6 +8,7 @@ public interface Sorter<T> {
     /**
      * Sorts data defined by {@link SortingTask}
      * @param task task
+     * @return counters of the finished sort
      */
-    public void sort(SortingTask<T> task);
+    public SortStats sort(SortingTask<T> task);
 }
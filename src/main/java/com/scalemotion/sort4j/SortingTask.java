@@ -1,6 +1,7 @@
 package com.scalemotion.sort4j;
 
 import com.scalemotion.sort4j.text.StringMemoryCalculator;
+import com.scalemotion.sort4j.text.StringSerializer;
 import com.scalemotion.sort4j.text.TextInputFormat;
 import com.scalemotion.sort4j.text.TextOutputFormat;
 
@@ -20,6 +21,14 @@ public class SortingTask<T> {
     private String outputFile;
     private Comparator<T> comparator = new ComparableComparator();
     private MemoryCalculator<T> memoryCalculator;
+    private Serializer<T> serializer;
+    private KeyExtractor<T> keyExtractor;
+    private Combiner<T> combiner;
+    private long limit = Long.MAX_VALUE;
+    private String mergeWith;
+    private boolean replaceEqual;
+    private int outputIndex;
+    private int outputIndexBloomBits;
 
 
     /**
@@ -36,6 +45,126 @@ public class SortingTask<T> {
         return this;
     }
 
+    /**
+     * Sets serializer of items in temporary files (see {@link Serializer}). If serializer is set, temporary
+     * files are written in compact binary format ({@link com.scalemotion.sort4j.spill.SpillFormat}) and
+     * only the final result is written with output format. Otherwise temporary files are written with
+     * output format and read with input format, so formats should be able to read what they've written.
+     * If you're sorting text data, use {@link com.scalemotion.sort4j.text.StringSerializer}
+     * @param serializer serializer
+     * @return this
+     */
+    public SortingTask<T> serializer(Serializer<T> serializer) {
+        this.serializer = serializer;
+        return this;
+    }
+
+    /**
+     * Sets extractor of key prefixes (see {@link KeyExtractor}). If it's set, chunks are sorted by radix
+     * sort of prefixes and merge compares prefixes before calling comparator. Prefix must be consistent
+     * with comparator. For text data with default comparator use {@link com.scalemotion.sort4j.text.StringKeyExtractor}
+     * <p>
+     * Optional, sorting uses comparator only by default
+     * @param keyExtractor extractor
+     * @return this
+     */
+    public SortingTask<T> keyExtractor(KeyExtractor<T> keyExtractor) {
+        this.keyExtractor = keyExtractor;
+        return this;
+    }
+
+    /**
+     * Sets combiner of equal items (see {@link Combiner}). Use {@link Combiner#DISTINCT} to remove duplicates
+     * <p>
+     * Optional, all items are written to output by default
+     * @param combiner combiner
+     * @return this
+     */
+    public SortingTask<T> combiner(Combiner<T> combiner) {
+        this.combiner = combiner;
+        return this;
+    }
+
+    /**
+     * Limits output to the first limit items in sorted order. Each thread keeps only the smallest limit items it has read
+     * (unless combiner is set), temporary files contain at most limit items and merge stops as soon as limit items are written
+     * <p>
+     * Optional, all items are written by default
+     * @param limit maximum amount of items in output
+     * @return this
+     */
+    public SortingTask<T> limit(long limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit should be positive");
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Merges input files into existing file sorted with the same comparator (e.g. output of the previous sort):
+     * only input files are sorted, existing file is read once by the final merge as one more sorted run.
+     * Existing file is read with input format and should differ from output file. Its items go before
+     * equal items of input files unless {@link #replaceEqual(boolean)} is set
+     * <p>
+     * Optional, works with {@link MergeSorter#sort(SortingTask)}
+     * @param sortedFile existing sorted file
+     * @return this
+     */
+    public SortingTask<T> mergeWith(String sortedFile) {
+        this.mergeWith = sortedFile;
+        return this;
+    }
+
+    /**
+     * If set, items of the file set by {@link #mergeWith(String)} are dropped if input files contain equal items,
+     * so new items replace existing ones
+     * <p>
+     * Optional, false by default
+     * @param replaceEqual true to replace equal items
+     * @return this
+     */
+    public SortingTask<T> replaceEqual(boolean replaceEqual) {
+        this.replaceEqual = replaceEqual;
+        return this;
+    }
+
+    /**
+     * Makes the final merge write sparse index of output file to outputFile.idx: first item and offset of every
+     * block of interval items. {@link IndexedSortedFile} uses the index to find items without reading the whole file.
+     * Index items are written with serializer, and writer of output format should implement
+     * {@link DataOutputFormat.PositionedWriter} (like {@link com.scalemotion.sort4j.text.TextOutputFormat} does):
+     * its position at the beginning of each block is the offset of the block
+     * <p>
+     * Optional, works with {@link MergeSorter#sort(SortingTask)}, no index by default
+     * @param interval amount of items in block
+     * @return this
+     */
+    public SortingTask<T> outputIndex(int interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Index interval should be positive");
+        }
+        this.outputIndex = interval;
+        return this;
+    }
+
+    /**
+     * Adds Bloom filter of each block to output index (see {@link #outputIndex(int)}), so lookups of missing items
+     * usually don't read the file. Filters hash items serialized by {@link #serializer(Serializer)}, so items equal
+     * by comparator should have equal serialized form
+     * <p>
+     * Optional, no filters by default
+     * @param bitsPerItem size of filter per item, 10 bits give about 1% of false positives
+     * @return this
+     */
+    public SortingTask<T> outputIndexBloomBits(int bitsPerItem) {
+        if (bitsPerItem < 0) {
+            throw new IllegalArgumentException("Size of Bloom filter can't be negative");
+        }
+        this.outputIndexBloomBits = bitsPerItem;
+        return this;
+    }
+
     /**
      * Should be called (no default value)
      * @param outputFile output files
@@ -136,6 +265,48 @@ public class SortingTask<T> {
         return comparator;
     }
 
+    /**
+     * @return getter for {@link #combiner(Combiner)}
+     */
+    public Combiner<T> combiner() {
+        return combiner;
+    }
+
+    /**
+     * @return getter for {@link #limit(long)}, {@link Long#MAX_VALUE} if output is not limited
+     */
+    public long limit() {
+        return limit;
+    }
+
+    /**
+     * @return getter for {@link #mergeWith(String)}, null if there is no existing file
+     */
+    public String mergeWith() {
+        return mergeWith;
+    }
+
+    /**
+     * @return getter for {@link #replaceEqual(boolean)}
+     */
+    public boolean replaceEqual() {
+        return replaceEqual;
+    }
+
+    /**
+     * @return getter for {@link #outputIndex(int)}, 0 if index is not written
+     */
+    public int outputIndex() {
+        return outputIndex;
+    }
+
+    /**
+     * @return getter for {@link #outputIndexBloomBits(int)}
+     */
+    public int outputIndexBloomBits() {
+        return outputIndexBloomBits;
+    }
+
     /**
      * @return getter for {@link #memoryCalculator(MemoryCalculator)}
      */
@@ -143,12 +314,27 @@ public class SortingTask<T> {
         return memoryCalculator;
     }
 
+    /**
+     * @return getter for {@link #serializer(Serializer)}
+     */
+    public Serializer<T> serializer() {
+        return serializer;
+    }
+
+    /**
+     * @return getter for {@link #keyExtractor(KeyExtractor)}
+     */
+    public KeyExtractor<T> keyExtractor() {
+        return keyExtractor;
+    }
+
     /**
      * Sorts task with given sorter
      * @param sorter sorter
+     * @return counters of the finished sort
      */
-    public void sort(Sorter<T> sorter) {
-        sorter.sort(this);
+    public SortStats sort(Sorter<T> sorter) {
+        return sorter.sort(this);
     }
 
     /**
@@ -177,6 +363,6 @@ public class SortingTask<T> {
      * @return task template for sorting text files
      */
     public static SortingTask<String> createTextTask() {
-        return new SortingTask<String>().inputFormat(new TextInputFormat()).outputFormat(new TextOutputFormat()).memoryCalculator(new StringMemoryCalculator());
+        return new SortingTask<String>().inputFormat(new TextInputFormat()).outputFormat(new TextOutputFormat()).memoryCalculator(new StringMemoryCalculator()).serializer(new StringSerializer());
     }
 }
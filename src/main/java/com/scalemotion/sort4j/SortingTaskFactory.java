@@ -0,0 +1,15 @@
+package com.scalemotion.sort4j;
+
+/**
+ * Creates {@link SortingTask} in worker processes of {@link DistributedSorter}. Formats, comparator and serializer
+ * can't be sent to other JVM, so each worker instantiates the factory by class name (factory should have public
+ * constructor without arguments) and uses formats, comparator, serializer, key extractor and combiner of the created task.
+ * Input and output files of the created task are ignored
+ * @param <T> item type
+ */
+public interface SortingTaskFactory<T> {
+    /**
+     * @return task with formats, comparator, memory calculator and serializer
+     */
+    public SortingTask<T> createTask();
+}
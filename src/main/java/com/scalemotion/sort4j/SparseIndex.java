@@ -0,0 +1,193 @@
+package com.scalemotion.sort4j;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Sparse index of sorted file, kept in sidecar file next to it (see {@link SortingTask#outputIndex(int)}).
+ * Output is divided into blocks of the same amount of items, index keeps first item and offset of each block
+ * and optionally Bloom filter of serialized block items.
+ * <p>
+ * Sidecar layout: magic int32, version int32, interval int32, Bloom bits per item int32, data length int64, blocks int32,
+ * then for each block offset int64, first item (int32 length + serialized bytes) and, if filters are enabled,
+ * filter (int32 words + int64 words)
+ * @param <T> item type
+ */
+class SparseIndex<T> {
+    private static final int MAGIC = 0x53344958;
+    private static final int VERSION = 2;
+    private final int interval;
+    private final int bloomBitsPerItem;
+    private final Serializer<T> serializer;
+    private final ItemBytes itemBytes = new ItemBytes();
+    private final List<T> firstItems = new ArrayList<T>();
+    private final List<Long> offsets = new ArrayList<Long>();
+    private final List<BloomFilter> filters = new ArrayList<BloomFilter>();
+    private long dataLength;
+
+    SparseIndex(int interval, int bloomBitsPerItem, Serializer<T> serializer) {
+        this.interval = interval;
+        this.bloomBitsPerItem = bloomBitsPerItem;
+        this.serializer = serializer;
+    }
+
+    /**
+     * @return name of index file of sorted file
+     */
+    static String indexFile(String file) {
+        return file + ".idx";
+    }
+
+    int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Starts new block
+     */
+    void addBlock(T firstItem, long offset) {
+        firstItems.add(firstItem);
+        offsets.add(offset);
+        filters.add(bloomBitsPerItem > 0 ? new BloomFilter(interval, bloomBitsPerItem) : null);
+    }
+
+    /**
+     * Adds item to Bloom filter of the last block
+     */
+    void addItem(T item) throws IOException {
+        final BloomFilter filter = filters.get(filters.size() - 1);
+        if (filter != null) {
+            itemBytes.serialize(item);
+            filter.add(itemBytes.data(), itemBytes.size());
+        }
+    }
+
+    void setDataLength(long dataLength) {
+        this.dataLength = dataLength;
+    }
+
+    int size() {
+        return firstItems.size();
+    }
+
+    T firstItem(int block) {
+        return firstItems.get(block);
+    }
+
+    long offset(int block) {
+        return block < offsets.size() ? offsets.get(block) : dataLength;
+    }
+
+    /**
+     * @return false if block certainly doesn't contain item
+     */
+    boolean mightContain(int block, T item) throws IOException {
+        final BloomFilter filter = filters.get(block);
+        if (filter == null) {
+            return true;
+        }
+        final ItemBytes bytes = new ItemBytes();
+        bytes.serialize(item);
+        return filter.mightContain(bytes.data(), bytes.size());
+    }
+
+    /**
+     * @return the last block which starts with item less than given one (equal items may end previous block), 0 if there is no such block
+     */
+    int blockBefore(T item, Comparator<? super T> comparator) {
+        int low = 0;
+        int high = firstItems.size();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (comparator.compare(firstItems.get(middle), item) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return Math.max(0, low - 1);
+    }
+
+    void write(File file) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(interval);
+            out.writeInt(bloomBitsPerItem);
+            out.writeLong(dataLength);
+            out.writeInt(firstItems.size());
+            final ByteArrayOutputStream item = new ByteArrayOutputStream();
+            for (int i = 0; i < firstItems.size(); i++) {
+                out.writeLong(offsets.get(i));
+                item.reset();
+                serializer.serialize(firstItems.get(i), new DataOutputStream(item));
+                out.writeInt(item.size());
+                item.writeTo(out);
+                if (bloomBitsPerItem > 0) {
+                    final long[] bits = filters.get(i).getBits();
+                    out.writeInt(bits.length);
+                    for (long word : bits) {
+                        out.writeLong(word);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static <T> SparseIndex<T> read(File file, Serializer<T> serializer) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file.getAbsolutePath() + " is not an index file");
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version + " of index file " + file.getAbsolutePath());
+            }
+            final SparseIndex<T> index = new SparseIndex<T>(in.readInt(), in.readInt(), serializer);
+            index.dataLength = in.readLong();
+            final int blocks = in.readInt();
+            for (int i = 0; i < blocks; i++) {
+                index.offsets.add(in.readLong());
+                //items are kept by index, so each gets its own buffer in case deserializer doesn't copy it
+                final byte[] item = new byte[in.readInt()];
+                in.readFully(item);
+                index.firstItems.add(serializer.deserialize(item, 0, item.length));
+                if (index.bloomBitsPerItem > 0) {
+                    final long[] bits = new long[in.readInt()];
+                    for (int w = 0; w < bits.length; w++) {
+                        bits[w] = in.readLong();
+                    }
+                    index.filters.add(new BloomFilter(bits, index.bloomBitsPerItem));
+                } else {
+                    index.filters.add(null);
+                }
+            }
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reusable buffer of serialized item
+     */
+    private class ItemBytes extends ByteArrayOutputStream {
+        private final DataOutputStream out = new DataOutputStream(this);
+
+        void serialize(T item) throws IOException {
+            reset();
+            serializer.serialize(item, out);
+            out.flush();
+        }
+
+        byte[] data() {
+            return buf;
+        }
+    }
+}
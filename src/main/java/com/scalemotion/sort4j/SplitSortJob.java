@@ -0,0 +1,176 @@
+package com.scalemotion.sort4j;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One sort of {@link PrimitiveMergeSorter} or {@link MappedTextSorter}: input files are split, splits are sorted
+ * into runs by working threads and runs are merged by passes of at most maxMergeFanIn files. Subclass sorts splits
+ * and merges files, job runs the phases and deletes temporary files of failed sort. Subclass counts bytes and records
+ * it reads and writes, runs are counted by {@link #addRun(File)}
+ */
+abstract class SplitSortJob {
+    private static final Logger LOG = Logger.getLogger(SplitSortJob.class);
+    final SortMetrics metrics = new SortMetrics();
+    private final String temporaryDirectory;
+    private final int threads;
+    private final int maxMergeFanIn;
+    private final List<File> runs = Collections.synchronizedList(new ArrayList<File>());
+    private final Set<File> temporaryFiles = Collections.synchronizedSet(new HashSet<File>());
+    private ExecutorService executor;
+
+    SplitSortJob(String temporaryDirectory, int threads, int maxMergeFanIn) {
+        this.temporaryDirectory = temporaryDirectory;
+        this.threads = threads;
+        this.maxMergeFanIn = maxMergeFanIn;
+    }
+
+    /**
+     * Sorts splits taken from the queue until it is empty or hasErrors is set, called by each working thread
+     */
+    abstract void sortSplits(BlockingQueue<InputSplit> splits, AtomicBoolean hasErrors) throws Exception;
+
+    /**
+     * Checks split before sort is started, nothing by default
+     * @throws IllegalArgumentException if split can't be sorted
+     */
+    void checkSplit(InputSplit split) {
+    }
+
+    /**
+     * Merges files into temporary file and deletes them
+     */
+    abstract void mergeFiles(List<File> files, File output) throws IOException;
+
+    /**
+     * Merges files into output of the task and deletes them
+     */
+    abstract void mergeOutput(List<File> files) throws IOException;
+
+    /**
+     * @return pool of working threads which could be used for spilling
+     */
+    ExecutorService executor() {
+        return executor;
+    }
+
+    File newTemporaryFile() {
+        final File file = new File(temporaryDirectory, "sort4j-temp-" + Math.random());
+        temporaryFiles.add(file);
+        return file;
+    }
+
+    /**
+     * Adds sorted run written by phase 1
+     */
+    void addRun(File run) {
+        runs.add(run);
+        metrics.addRunSpilled();
+    }
+
+    SortStats run(List<String> inputFiles, DataInputFormat<?> format, long splitSize) {
+        new File(temporaryDirectory).mkdirs();
+        executor = Executors.newFixedThreadPool(threads);
+        boolean done = false;
+        try {
+            final BlockingQueue<InputSplit> splits = new LinkedBlockingQueue<InputSplit>();
+            try {
+                for (String f : inputFiles) {
+                    for (InputSplit split : InputSplit.split(new File(f), format, splitSize)) {
+                        checkSplit(split);
+                        splits.add(split);
+                        metrics.addInputBytes(split.length());
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Can't split input files: " + e.getMessage(), e);
+            }
+            metrics.startPhase(SortMetrics.Phase.READING);
+            phase1(splits);
+            metrics.startPhase(SortMetrics.Phase.MERGING);
+            merge(new ArrayList<File>(runs));
+            done = true;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            executor.shutdownNow();
+            if (!done) {
+                for (File f : new ArrayList<File>(temporaryFiles)) {
+                    f.delete();
+                }
+            }
+            metrics.startPhase(done ? SortMetrics.Phase.DONE : SortMetrics.Phase.FAILED);
+        }
+        return metrics.snapshot();
+    }
+
+    private void phase1(final BlockingQueue<InputSplit> splits) {
+        final AtomicBoolean hasErrors = new AtomicBoolean();
+        final List<Thread> workerThreads = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        sortSplits(splits, hasErrors);
+                    } catch (Exception e) {
+                        LOG.error("Exception during phase-1 of sorting: " + e.getMessage(), e);
+                        hasErrors.set(true);
+                    }
+                }
+            });
+            t.start();
+            workerThreads.add(t);
+        }
+        for (Thread t : workerThreads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Interrupted", e);
+            }
+        }
+        if (hasErrors.get()) {
+            throw new RuntimeException("Phase-1 of sorting failed, see log for details");
+        }
+    }
+
+    private void merge(List<File> files) throws IOException {
+        LOG.debug("Merging " + files.size() + " files");
+        if (files.isEmpty()) {
+            return;
+        }
+        List<File> runs = new ArrayList<File>(files);
+        while (runs.size() > maxMergeFanIn) {
+            final List<List<File>> groups = MergeSorter.planMergePass(runs, maxMergeFanIn);
+            final List<Callable<File>> merges = new ArrayList<Callable<File>>();
+            for (final List<File> group : groups) {
+                runs.removeAll(group);
+                merges.add(new Callable<File>() {
+                    public File call() throws Exception {
+                        final File file = newTemporaryFile();
+                        mergeFiles(group, file);
+                        return file;
+                    }
+                });
+            }
+            try {
+                for (Future<File> merged : executor.invokeAll(merges)) {
+                    runs.add(merged.get());
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Intermediate merge failed: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+        mergeOutput(runs);
+    }
+}
@@ -0,0 +1,28 @@
+package com.scalemotion.sort4j;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * {@link DataInputFormat} which allows to divide a single input file into byte ranges
+ * that could be read independently (and in parallel). Each record belongs to the range
+ * that contains its first byte, so format should only be able to find the beginning
+ * of the next record from arbitrary position of file
+ * @param <T> objects type
+ */
+public interface SplittableInputFormat<T> extends DataInputFormat<T> {
+    /**
+     * @return true if files of this format could be split (for instance, for some charsets record
+     * boundaries can't be detected reliably)
+     */
+    public boolean isSplittable();
+
+    /**
+     * Finds the offset of first record which starts at or after given position
+     * @param file file (position of file pointer could be changed by this method)
+     * @param position position in file
+     * @return offset of record start or length of file if there's no records after position
+     * @throws IOException if file can't be read
+     */
+    public long recordBoundary(RandomAccessFile file, long position) throws IOException;
+}
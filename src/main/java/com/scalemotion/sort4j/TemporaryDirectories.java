@@ -0,0 +1,211 @@
+package com.scalemotion.sort4j;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Temporary directories of one sort. Temporary files are spread over directories (usually on different disks)
+ * by {@link MergeSorter.SpillPlacement}, each directory has its own read-ahead threads, so merge reads
+ * from all disks at once. Bytes written to and read from each directory are counted
+ */
+class TemporaryDirectories {
+    private final File[] directories;
+    private final MergeSorter.SpillPlacement placement;
+    private final AtomicLong[] bytesWritten;
+    private final AtomicLong[] bytesRead;
+    private final AtomicInteger[] writers;
+    private final ExecutorService[] ioExecutors;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param directories paths of directories, created if they don't exist
+     * @param placement how files are spread over directories
+     * @param ioThreads amount of read-ahead threads per directory, 0 disables read-ahead
+     */
+    TemporaryDirectories(List<String> directories, MergeSorter.SpillPlacement placement, int ioThreads) {
+        if (directories.isEmpty()) {
+            throw new IllegalArgumentException("At least one temporary directory is required");
+        }
+        final int count = directories.size();
+        this.directories = new File[count];
+        this.placement = placement;
+        this.bytesWritten = new AtomicLong[count];
+        this.bytesRead = new AtomicLong[count];
+        this.writers = new AtomicInteger[count];
+        this.ioExecutors = new ExecutorService[count];
+        for (int i = 0; i < count; i++) {
+            this.directories[i] = new File(directories.get(i));
+            this.directories[i].mkdirs();
+            bytesWritten[i] = new AtomicLong();
+            bytesRead[i] = new AtomicLong();
+            writers[i] = new AtomicInteger();
+            ioExecutors[i] = ioThreads > 0 ? Executors.newFixedThreadPool(ioThreads) : null;
+        }
+    }
+
+    /**
+     * @return new temporary file in the directory chosen by placement
+     */
+    File newFile() {
+        return newFile("sort4j-temp-" + Math.random());
+    }
+
+    /**
+     * @param name name of the file
+     * @return new temporary file in the directory chosen by placement
+     */
+    File newFile(String name) {
+        return new File(directories[choose()], name);
+    }
+
+    /**
+     * @return temporary directories
+     */
+    List<File> getDirectories() {
+        return Arrays.asList(directories);
+    }
+
+    private int choose() {
+        final int start = (next.getAndIncrement() & Integer.MAX_VALUE) % directories.length;
+        if (placement == MergeSorter.SpillPlacement.ROUND_ROBIN) {
+            return start;
+        }
+        //free space is shared by files being written, so directory with most space per writer wins
+        int best = start;
+        double bestSpace = -1;
+        for (int i = 0; i < directories.length; i++) {
+            final int d = (start + i) % directories.length;
+            final double space = (double) directories[d].getUsableSpace() / (writers[d].get() + 1);
+            if (space > bestSpace) {
+                best = d;
+                bestSpace = space;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return stream that counts bytes written to the directory of file
+     */
+    OutputStream openOutput(File file) throws IOException {
+        final int d = indexOf(file);
+        final OutputStream out = new FileOutputStream(file);
+        if (d < 0) {
+            return out;
+        }
+        writers[d].incrementAndGet();
+        return new FilterOutputStream(out) {
+            private boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesWritten[d].incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesWritten[d].addAndGet(len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    writers[d].decrementAndGet();
+                }
+                super.close();
+            }
+        };
+    }
+
+    /**
+     * @param offset position in the file to start reading from
+     * @return stream that counts bytes read from the directory of file
+     */
+    InputStream openInput(File file, long offset) throws IOException {
+        final int d = indexOf(file);
+        final FileInputStream in = new FileInputStream(file);
+        if (offset > 0) {
+            in.getChannel().position(offset);
+        }
+        if (d < 0) {
+            return in;
+        }
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                final int b = in.read();
+                if (b >= 0) {
+                    bytesRead[d].incrementAndGet();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final int count = in.read(b, off, len);
+                if (count > 0) {
+                    bytesRead[d].addAndGet(count);
+                }
+                return count;
+            }
+        };
+    }
+
+    /**
+     * @return read-ahead executor of the directory of file, null if read-ahead is disabled
+     */
+    ExecutorService ioExecutor(File file) {
+        final int d = indexOf(file);
+        return d < 0 ? null : ioExecutors[d];
+    }
+
+    /**
+     * @return bytes written to each directory
+     */
+    Map<String, Long> getBytesWritten() {
+        return counters(bytesWritten);
+    }
+
+    /**
+     * @return bytes read from each directory
+     */
+    Map<String, Long> getBytesRead() {
+        return counters(bytesRead);
+    }
+
+    void shutdown() {
+        for (ExecutorService executor : ioExecutors) {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private Map<String, Long> counters(AtomicLong[] counters) {
+        final Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < directories.length; i++) {
+            result.put(directories[i].getPath(), counters[i].get());
+        }
+        return result;
+    }
+
+    private int indexOf(File file) {
+        final File parent = file.getParentFile();
+        for (int i = 0; i < directories.length; i++) {
+            if (directories[i].equals(parent)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
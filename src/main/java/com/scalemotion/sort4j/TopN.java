@@ -0,0 +1,49 @@
+package com.scalemotion.sort4j;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the smallest N items seen so far in a heap whose top is the largest kept item
+ * @param <T> item type
+ */
+class TopN<T> {
+    private final int limit;
+    private final Comparator<? super T> comparator;
+    private final PriorityQueue<T> heap;
+
+    TopN(int limit, Comparator<? super T> comparator) {
+        this.limit = limit;
+        this.comparator = comparator;
+        this.heap = new PriorityQueue<T>(Math.min(limit, 1024) + 1, Collections.reverseOrder(comparator));
+    }
+
+    /**
+     * @param item new item
+     * @return item that is not kept: the largest item evicted from the heap or the new item itself,
+     * null if heap has grown
+     */
+    T offer(T item) {
+        if (heap.size() < limit) {
+            heap.add(item);
+            return null;
+        }
+        //on ties earlier items win, as in stable sort
+        if (comparator.compare(item, heap.peek()) >= 0) {
+            return item;
+        }
+        final T evicted = heap.poll();
+        heap.add(item);
+        return evicted;
+    }
+
+    /**
+     * Moves kept items to the list (in no particular order)
+     */
+    void drainTo(List<T> items) {
+        items.addAll(heap);
+        heap.clear();
+    }
+}
@@ -0,0 +1,74 @@
+package com.scalemotion.sort4j;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+
+/**
+ * Merges sequence of new items produced by another merger into existing sorted file, see
+ * {@link SortingTask#mergeWith(String)}. Existing items go before equal new items, or are dropped if
+ * {@link SortingTask#replaceEqual(boolean)} is set
+ * @param <T> item type
+ */
+class UpdatingRunMerger<T> implements RunMerger<T> {
+    private final RunMerger<T> updates;
+    private final DataInputFormat.Reader<T> existing;
+    private final Comparator<? super T> comparator;
+    private final boolean replace;
+    private T existingHead;
+    private boolean hasExistingHead;
+    private T updateHead;
+    private boolean hasUpdateHead;
+
+    UpdatingRunMerger(RunMerger<T> updates, DataInputFormat.Reader<T> existing, Comparator<? super T> comparator, boolean replace) throws IOException {
+        this.updates = updates;
+        this.existing = existing;
+        this.comparator = comparator;
+        this.replace = replace;
+        advanceExisting();
+        advanceUpdates();
+    }
+
+    public boolean hasNext() {
+        return hasExistingHead || hasUpdateHead;
+    }
+
+    public T next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (hasExistingHead) {
+            final int c = hasUpdateHead ? comparator.compare(existingHead, updateHead) : -1;
+            if (c < 0 || (c == 0 && !replace)) {
+                final T result = existingHead;
+                advanceExisting();
+                return result;
+            }
+            //existing items equal to new one are replaced by it
+            while (hasExistingHead && comparator.compare(existingHead, updateHead) == 0) {
+                advanceExisting();
+            }
+        }
+        final T result = updateHead;
+        advanceUpdates();
+        return result;
+    }
+
+    private void advanceExisting() throws IOException {
+        hasExistingHead = existing.hasNext();
+        existingHead = hasExistingHead ? existing.nextItem() : null;
+    }
+
+    private void advanceUpdates() throws IOException {
+        hasUpdateHead = updates.hasNext();
+        updateHead = hasUpdateHead ? updates.next() : null;
+    }
+
+    public void close() throws IOException {
+        try {
+            updates.close();
+        } finally {
+            existing.close();
+        }
+    }
+}
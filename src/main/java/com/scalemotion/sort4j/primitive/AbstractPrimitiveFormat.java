@@ -0,0 +1,63 @@
+package com.scalemotion.sort4j.primitive;
+
+import com.scalemotion.sort4j.PrimitiveFormat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Base class of primitive formats: implements boxed readers and writers on top of key readers and writers
+ * @param <T> boxed type of value
+ */
+abstract class AbstractPrimitiveFormat<T> implements PrimitiveFormat<T> {
+    protected final PrimitiveType type;
+
+    protected AbstractPrimitiveFormat(PrimitiveType type) {
+        this.type = type;
+    }
+
+    /**
+     * @return type of values
+     */
+    public PrimitiveType getType() {
+        return type;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Reader<T> initialize(InputStream in) {
+        final KeyReader reader = initializeKeyReader(in);
+        return new Reader<T>() {
+            public boolean hasNext() throws IOException {
+                return reader.hasNext();
+            }
+
+            @SuppressWarnings("unchecked")
+            public T nextItem() throws IOException {
+                return (T) type.fromKey(reader.nextKey());
+            }
+
+            public void close() throws IOException {
+                reader.close();
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Writer<T> initialize(OutputStream output) {
+        final KeyWriter writer = initializeKeyWriter(output);
+        return new Writer<T>() {
+            public void write(T item) throws IOException {
+                writer.writeKey(type.toKey(item));
+            }
+
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
+    }
+}
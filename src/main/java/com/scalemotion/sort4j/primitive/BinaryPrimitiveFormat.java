@@ -0,0 +1,134 @@
+package com.scalemotion.sort4j.primitive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Format of files that contain values in big-endian binary representation (as written by
+ * {@link java.io.DataOutputStream}) without any delimiters
+ * @param <T> boxed type of value
+ */
+public class BinaryPrimitiveFormat<T> extends AbstractPrimitiveFormat<T> {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * @param type type of values
+     */
+    public BinaryPrimitiveFormat(PrimitiveType type) {
+        super(type);
+    }
+
+    /**
+     * @return format of 64-bit integers
+     */
+    public static BinaryPrimitiveFormat<Long> longs() {
+        return new BinaryPrimitiveFormat<Long>(PrimitiveType.LONG);
+    }
+
+    /**
+     * @return format of 32-bit integers
+     */
+    public static BinaryPrimitiveFormat<Integer> ints() {
+        return new BinaryPrimitiveFormat<Integer>(PrimitiveType.INT);
+    }
+
+    /**
+     * @return format of doubles
+     */
+    public static BinaryPrimitiveFormat<Double> doubles() {
+        return new BinaryPrimitiveFormat<Double>(PrimitiveType.DOUBLE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public KeyReader initializeKeyReader(final InputStream in) {
+        return new KeyReader() {
+            private final int width = type.width();
+            private final byte[] buffer = new byte[BUFFER_SIZE];
+            private int position;
+            private int limit;
+
+            public boolean hasNext() throws IOException {
+                if (limit - position >= width) {
+                    return true;
+                }
+                final int remaining = limit - position;
+                System.arraycopy(buffer, position, buffer, 0, remaining);
+                position = 0;
+                limit = remaining;
+                int read;
+                while (limit < width && (read = in.read(buffer, limit, buffer.length - limit)) >= 0) {
+                    limit += read;
+                }
+                if (limit > 0 && limit < width) {
+                    throw new IOException("Truncated value: " + limit + " of " + width + " bytes");
+                }
+                return limit >= width;
+            }
+
+            public long nextKey() throws IOException {
+                if (!hasNext()) {
+                    throw new IllegalStateException("End of stream");
+                }
+                final long key = type.readKey(buffer, position);
+                position += width;
+                return key;
+            }
+
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public KeyWriter initializeKeyWriter(final OutputStream out) {
+        return new KeyWriter() {
+            private final int width = type.width();
+            private final byte[] buffer = new byte[BUFFER_SIZE];
+            private int position;
+            private boolean closed;
+
+            public void writeKey(long key) throws IOException {
+                if (position + width > buffer.length) {
+                    out.write(buffer, 0, position);
+                    position = 0;
+                }
+                type.writeKey(key, buffer, position);
+                position += width;
+            }
+
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    out.write(buffer, 0, position);
+                } finally {
+                    out.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isSplittable() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long recordBoundary(RandomAccessFile file, long position) throws IOException {
+        final int width = type.width();
+        return Math.min(file.length(), (position + width - 1) / width * width);
+    }
+}
@@ -0,0 +1,155 @@
+package com.scalemotion.sort4j.primitive;
+
+/**
+ * Supported primitive types and their mapping to sorting keys (longs whose signed order is the
+ * natural order of values)
+ */
+public enum PrimitiveType {
+    LONG(8) {
+        @Override
+        long toKey(Object value) {
+            return (Long) value;
+        }
+
+        @Override
+        Object fromKey(long key) {
+            return key;
+        }
+
+        @Override
+        long readKey(byte[] buffer, int offset) {
+            return readLong(buffer, offset);
+        }
+
+        @Override
+        void writeKey(long key, byte[] buffer, int offset) {
+            writeLong(key, buffer, offset);
+        }
+
+        @Override
+        long parseKey(String text) {
+            return Long.parseLong(text);
+        }
+
+        @Override
+        String formatKey(long key) {
+            return Long.toString(key);
+        }
+    },
+    INT(4) {
+        @Override
+        long toKey(Object value) {
+            return (Integer) value;
+        }
+
+        @Override
+        Object fromKey(long key) {
+            return (int) key;
+        }
+
+        @Override
+        long readKey(byte[] buffer, int offset) {
+            return (buffer[offset] << 24) | ((buffer[offset + 1] & 0xFF) << 16)
+                    | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+        }
+
+        @Override
+        void writeKey(long key, byte[] buffer, int offset) {
+            buffer[offset] = (byte) (key >>> 24);
+            buffer[offset + 1] = (byte) (key >>> 16);
+            buffer[offset + 2] = (byte) (key >>> 8);
+            buffer[offset + 3] = (byte) key;
+        }
+
+        @Override
+        long parseKey(String text) {
+            return Integer.parseInt(text);
+        }
+
+        @Override
+        String formatKey(long key) {
+            return Integer.toString((int) key);
+        }
+    },
+    DOUBLE(8) {
+        @Override
+        long toKey(Object value) {
+            return bitsToKey(Double.doubleToLongBits((Double) value));
+        }
+
+        @Override
+        Object fromKey(long key) {
+            return Double.longBitsToDouble(keyToBits(key));
+        }
+
+        @Override
+        long readKey(byte[] buffer, int offset) {
+            //canonical NaN, so all NaNs are equal and greater than any other value
+            return bitsToKey(Double.doubleToLongBits(Double.longBitsToDouble(readLong(buffer, offset))));
+        }
+
+        @Override
+        void writeKey(long key, byte[] buffer, int offset) {
+            writeLong(keyToBits(key), buffer, offset);
+        }
+
+        @Override
+        long parseKey(String text) {
+            return toKey(Double.parseDouble(text));
+        }
+
+        @Override
+        String formatKey(long key) {
+            return fromKey(key).toString();
+        }
+    };
+
+    private final int width;
+
+    PrimitiveType(int width) {
+        this.width = width;
+    }
+
+    /**
+     * @return size of binary representation of value in bytes
+     */
+    public int width() {
+        return width;
+    }
+
+    abstract long toKey(Object value);
+
+    abstract Object fromKey(long key);
+
+    abstract long readKey(byte[] buffer, int offset);
+
+    abstract void writeKey(long key, byte[] buffer, int offset);
+
+    abstract long parseKey(String text);
+
+    abstract String formatKey(long key);
+
+    private static long bitsToKey(long bits) {
+        //negative numbers are ordered in reverse, so all bits except sign are flipped
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    private static long keyToBits(long key) {
+        return key ^ ((key >> 63) & Long.MAX_VALUE);
+    }
+
+    private static long readLong(byte[] buffer, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return result;
+    }
+
+    private static void writeLong(long value, byte[] buffer, int offset) {
+        for (int i = 7; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
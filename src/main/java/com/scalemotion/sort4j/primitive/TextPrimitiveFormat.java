@@ -0,0 +1,115 @@
+package com.scalemotion.sort4j.primitive;
+
+import com.scalemotion.sort4j.text.TextInputFormat;
+
+import java.io.*;
+import java.nio.charset.Charset;
+
+/**
+ * Format of text files that contain one value per line. Blank lines are skipped
+ * @param <T> boxed type of value
+ */
+public class TextPrimitiveFormat<T> extends AbstractPrimitiveFormat<T> {
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final TextInputFormat lines = new TextInputFormat();
+
+    /**
+     * @param type type of values
+     */
+    public TextPrimitiveFormat(PrimitiveType type) {
+        super(type);
+    }
+
+    /**
+     * @return format of 64-bit integers
+     */
+    public static TextPrimitiveFormat<Long> longs() {
+        return new TextPrimitiveFormat<Long>(PrimitiveType.LONG);
+    }
+
+    /**
+     * @return format of 32-bit integers
+     */
+    public static TextPrimitiveFormat<Integer> ints() {
+        return new TextPrimitiveFormat<Integer>(PrimitiveType.INT);
+    }
+
+    /**
+     * @return format of doubles
+     */
+    public static TextPrimitiveFormat<Double> doubles() {
+        return new TextPrimitiveFormat<Double>(PrimitiveType.DOUBLE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public KeyReader initializeKeyReader(InputStream in) {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, CHARSET), BUFFER_SIZE);
+        return new KeyReader() {
+            private String nextLine;
+
+            public boolean hasNext() throws IOException {
+                while (nextLine == null) {
+                    final String line = reader.readLine();
+                    if (line == null) {
+                        return false;
+                    }
+                    if (line.trim().length() > 0) {
+                        nextLine = line.trim();
+                    }
+                }
+                return true;
+            }
+
+            public long nextKey() throws IOException {
+                if (!hasNext()) {
+                    throw new IllegalStateException("End of stream");
+                }
+                final String line = nextLine;
+                nextLine = null;
+                try {
+                    return type.parseKey(line);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Can't parse " + type + " from '" + line + "'");
+                }
+            }
+
+            public void close() throws IOException {
+                reader.close();
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public KeyWriter initializeKeyWriter(OutputStream out) {
+        final java.io.Writer writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET), BUFFER_SIZE);
+        return new KeyWriter() {
+            public void writeKey(long key) throws IOException {
+                writer.write(type.formatKey(key));
+                writer.write('\n');
+            }
+
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isSplittable() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long recordBoundary(RandomAccessFile file, long position) throws IOException {
+        return lines.recordBoundary(file, position);
+    }
+}
@@ -0,0 +1,70 @@
+package com.scalemotion.sort4j.spill;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Index of a file written in {@link SpillFormat}: first item of each block and offset of the block in the file.
+ * Since files are sorted, index allows to start reading from the block which may contain given item
+ * and gives evenly spaced samples of the file's items
+ * @param <T> object type
+ */
+public class BlockIndex<T> {
+    private final List<T> firstItems = new ArrayList<T>();
+    private final List<Long> offsets = new ArrayList<Long>();
+
+    /**
+     * @param firstItem first item of the next block
+     * @param offset offset of the block
+     */
+    public void add(T firstItem, long offset) {
+        firstItems.add(firstItem);
+        offsets.add(offset);
+    }
+
+    /**
+     * @return amount of blocks
+     */
+    public int size() {
+        return firstItems.size();
+    }
+
+    /**
+     * @param block block number
+     * @return first item of the block
+     */
+    public T firstItem(int block) {
+        return firstItems.get(block);
+    }
+
+    /**
+     * @param block block number
+     * @return offset of the block in the file
+     */
+    public long offset(int block) {
+        return offsets.get(block);
+    }
+
+    /**
+     * @param item item
+     * @param comparator comparator the file is sorted with
+     * @return offset of the last block which starts with an item less than given one (so items equal to given
+     * one can't be before it), 0 if there is no such block
+     */
+    public long offsetBefore(T item, Comparator<? super T> comparator) {
+        int low = 0;
+        int high = firstItems.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (comparator.compare(firstItems.get(middle), item) < 0) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found < 0 ? 0 : offsets.get(found);
+    }
+}
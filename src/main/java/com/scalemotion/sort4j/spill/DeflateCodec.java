@@ -0,0 +1,92 @@
+package com.scalemotion.sort4j.spill;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link SpillCodec} based on JDK's {@link Deflater}. Gives better compression ratio than
+ * {@link LzCodec} at the cost of CPU time. Deflaters and inflaters are reused between blocks
+ */
+public class DeflateCodec implements SpillCodec {
+    private final int level;
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+    /**
+     * @param level compression level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+     */
+    public DeflateCodec(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        this.level = level;
+    }
+
+    /**
+     * Creates codec with the fastest compression level
+     */
+    public DeflateCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int maxCompressedLength(int length) {
+        //zlib's deflateBound with some reserve for headers
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 64;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        try {
+            deflater.setInput(src, srcOffset, length);
+            deflater.finish();
+            int compressed = 0;
+            final int capacity = maxCompressedLength(length);
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(dst, dstOffset + compressed, capacity - compressed);
+            }
+            return compressed;
+        } finally {
+            deflater.reset();
+            deflaters.add(deflater);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int rawLength) throws IOException {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.setInput(src, srcOffset, length);
+            int inflated = 0;
+            while (inflated < rawLength) {
+                final int n = inflater.inflate(dst, dstOffset + inflated, rawLength - inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Corrupted block: " + inflated + " of " + rawLength + " bytes inflated");
+                }
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted block: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            inflaters.add(inflater);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.scalemotion.sort4j.spill;
+
+import java.io.IOException;
+
+/**
+ * Fast LZ77 codec (block format is similar to LZ4). Compressed block is a sequence of
+ * <pre>
+ * token:byte [literalLength:byte*] literals [offset:int16le [matchLength:byte*]]
+ * </pre>
+ * where high 4 bits of token is the length of literals and low 4 bits is the length of match
+ * minus 4; value 15 means that the length continues in following bytes. The last sequence
+ * contains literals only. Codec trades compression ratio for speed: it finds matches by hash
+ * of 4 bytes and never looks back for a better one
+ */
+public class LzCodec implements SpillCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 12;
+    private static final int SKIP_TRIGGER = 6;
+
+    /**
+     * {@inheritDoc}
+     */
+    public int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        final int end = srcOffset + length;
+        final int matchLimit = end - LAST_LITERALS;
+        //positions are stored +1, so 0 means empty slot
+        final int[] table = new int[1 << HASH_BITS];
+        int ip = srcOffset;
+        int anchor = srcOffset;
+        int op = dstOffset;
+        int misses = 0;
+        while (ip + MIN_MATCH <= matchLimit) {
+            final int sequence = readInt(src, ip);
+            final int hash = hash(sequence);
+            final int ref = table[hash] - 1;
+            table[hash] = ip + 1;
+            if (ref < srcOffset || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                //skip faster through incompressible data
+                ip += 1 + (misses++ >> SKIP_TRIGGER);
+                continue;
+            }
+            misses = 0;
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+            op = writeLiterals(src, anchor, ip - anchor, dst, op, matchLength - MIN_MATCH);
+            final int offset = ip - ref;
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            if (matchLength - MIN_MATCH >= 15) {
+                op = writeLength(dst, op, matchLength - MIN_MATCH - 15);
+            }
+            ip += matchLength;
+            anchor = ip;
+        }
+        return writeLiterals(src, anchor, end - anchor, dst, op, 0) - dstOffset;
+    }
+
+    private static int writeLiterals(byte[] src, int from, int count, byte[] dst, int op, int matchToken) {
+        final int token = op++;
+        dst[token] = (byte) ((Math.min(count, 15) << 4) | Math.min(matchToken, 15));
+        if (count >= 15) {
+            op = writeLength(dst, op, count - 15);
+        }
+        System.arraycopy(src, from, dst, op, count);
+        return op + count;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int rawLength) throws IOException {
+        final int srcEnd = srcOffset + length;
+        final int dstEnd = dstOffset + rawLength;
+        int ip = srcOffset;
+        int op = dstOffset;
+        try {
+            while (true) {
+                final int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (op + literals > dstEnd || ip + literals > srcEnd) {
+                    throw new IOException("Corrupted block: literals out of bounds");
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (op == dstEnd) {
+                    return;
+                }
+                final int offset = (src[ip++] & 0xFF) | ((src[ip++] & 0xFF) << 8);
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int ref = op - offset;
+                if (offset == 0 || ref < dstOffset || op + matchLength > dstEnd) {
+                    throw new IOException("Corrupted block: match out of bounds");
+                }
+                //byte by byte: match could overlap with its own output
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupted block: unexpected end of data");
+        }
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8)
+                | ((buffer[offset + 2] & 0xFF) << 16) | ((buffer[offset + 3] & 0xFF) << 24);
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+}
@@ -0,0 +1,36 @@
+package com.scalemotion.sort4j.spill;
+
+import java.io.IOException;
+
+/**
+ * Compression algorithm for blocks of temporary files. Codec is shared by all sorting threads,
+ * so implementations should be thread-safe
+ */
+public interface SpillCodec {
+    /**
+     * @param length length of uncompressed data
+     * @return size of buffer which is enough for compressed data of any content
+     */
+    public int maxCompressedLength(int length);
+
+    /**
+     * @param src uncompressed data
+     * @param srcOffset offset of data
+     * @param length length of data
+     * @param dst buffer for compressed data, at least {@link #maxCompressedLength(int)} bytes after dstOffset
+     * @param dstOffset offset in buffer
+     * @return length of compressed data
+     */
+    public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset);
+
+    /**
+     * @param src compressed data
+     * @param srcOffset offset of compressed data
+     * @param length length of compressed data
+     * @param dst buffer for uncompressed data
+     * @param dstOffset offset in buffer
+     * @param rawLength length of uncompressed data
+     * @throws IOException if data is corrupted
+     */
+    public void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int rawLength) throws IOException;
+}
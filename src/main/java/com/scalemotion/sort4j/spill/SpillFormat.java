@@ -0,0 +1,306 @@
+package com.scalemotion.sort4j.spill;
+
+import com.scalemotion.sort4j.DataInputFormat;
+import com.scalemotion.sort4j.DataOutputFormat;
+import com.scalemotion.sort4j.Serializer;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compact binary format of temporary files. Records are serialized with {@link Serializer},
+ * prefixed with their length and grouped into blocks which are optionally compressed with {@link SpillCodec}:
+ * <pre>
+ * block   := storedLength:int32 rawLength:int32 payload
+ * payload := record*   (compressed if storedLength != rawLength)
+ * record  := length:varint bytes
+ * </pre>
+ * Block is written to the stream with a single call and read with a single call, so streams
+ * don't need to be buffered. Format counts bytes before and after compression and time spent on it,
+ * so it's possible to decide whether compression pays off.
+ * <p>
+ * Writer could build {@link BlockIndex} of the file, see {@link #initialize(OutputStream, BlockIndex)}.
+ * <p>
+ * Format is thread-safe: each reader and writer has its own buffers
+ * @param <T> object type
+ */
+public class SpillFormat<T> implements DataInputFormat<T>, DataOutputFormat<T> {
+    private static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 8;
+    private final Serializer<T> serializer;
+    private final SpillCodec codec;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    /**
+     * @param serializer serializer of records
+     * @param codec compression codec, null if blocks should be stored uncompressed
+     */
+    public SpillFormat(Serializer<T> serializer, SpillCodec codec) {
+        this.serializer = serializer;
+        this.codec = codec;
+    }
+
+    /**
+     * Creates format without compression
+     * @param serializer serializer of records
+     */
+    public SpillFormat(Serializer<T> serializer) {
+        this(serializer, null);
+    }
+
+    /**
+     * @param blockSize size of block in bytes (64Kb by default). Block could be larger if it contains a single large record
+     */
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Writer<T> initialize(final OutputStream output) {
+        return initialize(output, null);
+    }
+
+    /**
+     * @param output output stream
+     * @param index index that receives first item and offset of each written block, could be null
+     * @return writer
+     */
+    public Writer<T> initialize(final OutputStream output, final BlockIndex<T> index) {
+        return new Writer<T>() {
+            private long offset;
+            private final RecordBuffer record = new RecordBuffer();
+            private final DataOutputStream recordOutput = new DataOutputStream(record);
+            private byte[] block = new byte[blockSize + HEADER_SIZE];
+            private int blockLength = HEADER_SIZE;
+            private byte[] compressed;
+            private boolean closed;
+
+            public void write(T item) throws IOException {
+                if (index != null && blockLength == HEADER_SIZE) {
+                    index.add(item, offset);
+                }
+                record.reset();
+                serializer.serialize(item, recordOutput);
+                final int length = record.size();
+                ensureCapacity(blockLength + 5 + length);
+                blockLength = writeVarInt(block, blockLength, length);
+                System.arraycopy(record.buffer(), 0, block, blockLength, length);
+                blockLength += length;
+                if (blockLength >= blockSize) {
+                    flushBlock();
+                }
+            }
+
+            private void ensureCapacity(int capacity) {
+                if (capacity > block.length) {
+                    byte[] grown = new byte[Math.max(capacity, block.length * 2)];
+                    System.arraycopy(block, 0, grown, 0, blockLength);
+                    block = grown;
+                }
+            }
+
+            private void flushBlock() throws IOException {
+                final int rawLength = blockLength - HEADER_SIZE;
+                if (rawLength == 0) {
+                    return;
+                }
+                rawBytes.addAndGet(rawLength);
+                if (codec != null) {
+                    final long time = System.nanoTime();
+                    final int capacity = HEADER_SIZE + codec.maxCompressedLength(rawLength);
+                    if (compressed == null || compressed.length < capacity) {
+                        compressed = new byte[capacity];
+                    }
+                    final int compressedLength = codec.compress(block, HEADER_SIZE, rawLength, compressed, HEADER_SIZE);
+                    compressNanos.addAndGet(System.nanoTime() - time);
+                    if (compressedLength < rawLength) {
+                        writeInt(compressed, 0, compressedLength);
+                        writeInt(compressed, 4, rawLength);
+                        output.write(compressed, 0, HEADER_SIZE + compressedLength);
+                        offset += HEADER_SIZE + compressedLength;
+                        storedBytes.addAndGet(compressedLength);
+                        blockLength = HEADER_SIZE;
+                        return;
+                    }
+                }
+                //stored as is if there's no codec or data is incompressible
+                writeInt(block, 0, rawLength);
+                writeInt(block, 4, rawLength);
+                output.write(block, 0, blockLength);
+                offset += blockLength;
+                storedBytes.addAndGet(rawLength);
+                blockLength = HEADER_SIZE;
+            }
+
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    flushBlock();
+                } finally {
+                    output.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Reader<T> initialize(final InputStream in) {
+        final DataInputStream input = new DataInputStream(in);
+        return new Reader<T>() {
+            private byte[] block = new byte[blockSize];
+            private byte[] compressed;
+            private int blockLength;
+            private int position;
+            private final int[] varInt = new int[1];
+
+            public boolean hasNext() throws IOException {
+                if (position < blockLength) {
+                    return true;
+                }
+                return readBlock();
+            }
+
+            private boolean readBlock() throws IOException {
+                final int first = input.read();
+                if (first < 0) {
+                    return false;
+                }
+                try {
+                    //only end of file before block header is a clean end, partial header or block is corruption
+                    final int storedLength = (first << 24) | (input.readUnsignedByte() << 16) | input.readUnsignedShort();
+                    final int rawLength = input.readInt();
+                    if (storedLength < 0 || rawLength < 0) {
+                        throw new IOException("Corrupted block header: stored length " + storedLength + ", raw length " + rawLength);
+                    }
+                    if (rawLength > block.length) {
+                        block = new byte[rawLength];
+                    }
+                    if (storedLength == rawLength) {
+                        input.readFully(block, 0, rawLength);
+                    } else {
+                        if (codec == null) {
+                            throw new IOException("Block is compressed, but codec is not set");
+                        }
+                        if (compressed == null || compressed.length < storedLength) {
+                            compressed = new byte[storedLength];
+                        }
+                        input.readFully(compressed, 0, storedLength);
+                        final long time = System.nanoTime();
+                        codec.decompress(compressed, 0, storedLength, block, 0, rawLength);
+                        decompressNanos.addAndGet(System.nanoTime() - time);
+                    }
+                    blockLength = rawLength;
+                } catch (EOFException e) {
+                    throw new IOException("Spill file is truncated", e);
+                }
+                position = 0;
+                return true;
+            }
+
+            public T nextItem() throws IOException {
+                if (!hasNext()) {
+                    throw new IllegalStateException("End of stream");
+                }
+                position = readVarInt(block, position, varInt);
+                final int length = varInt[0];
+                final T item = serializer.deserialize(block, position, length);
+                position += length;
+                return item;
+            }
+
+            public void close() throws IOException {
+                input.close();
+            }
+        };
+    }
+
+    /**
+     * @return amount of written bytes before compression
+     */
+    public long getRawBytes() {
+        return rawBytes.get();
+    }
+
+    /**
+     * @return amount of written bytes after compression
+     */
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * @return stored bytes divided by raw bytes (1 if nothing is written or compression is disabled)
+     */
+    public double getCompressionRatio() {
+        final long raw = rawBytes.get();
+        return raw == 0 ? 1 : (double) storedBytes.get() / raw;
+    }
+
+    /**
+     * @return time spent compressing blocks in milliseconds
+     */
+    public long getCompressMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(compressNanos.get());
+    }
+
+    /**
+     * @return time spent decompressing blocks in milliseconds
+     */
+    public long getDecompressMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(decompressNanos.get());
+    }
+
+    static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    static int writeVarInt(byte[] buffer, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    static int readVarInt(byte[] buffer, int offset, int[] value) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final byte b = buffer[offset++];
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                value[0] = result;
+                return offset;
+            }
+        }
+        throw new IOException("Malformed record length");
+    }
+
+    /**
+     * Byte array output stream which exposes its buffer to avoid copying
+     */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        private RecordBuffer() {
+            super(256);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
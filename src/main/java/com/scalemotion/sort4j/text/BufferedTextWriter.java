@@ -0,0 +1,258 @@
+package com.scalemotion.sort4j.text;
+
+import com.scalemotion.sort4j.DataOutputFormat;
+
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writer of {@link TextOutputFormat}. Lines are encoded by single reusable {@link CharsetEncoder} into
+ * large reusable buffer, output stream is touched only when the buffer is full. With write-behind enabled
+ * full buffers are written by separate thread while next buffer is being filled, so encoding and disk
+ * writes overlap. Nothing is allocated per line except when line is longer than any line before
+ */
+class BufferedTextWriter implements DataOutputFormat.PositionedWriter<String>, Flushable {
+    private static final int WRITE_BEHIND_BUFFERS = 3;
+    private static final byte[] END_OF_OUTPUT = new byte[0];
+    private final OutputStream output;
+    private final CharsetEncoder encoder;
+    private final byte[] lineBreak;
+    private final TextOutputFormat.SyncPolicy syncPolicy;
+    private char[] chars = new char[256];
+    private CharBuffer charBuffer = CharBuffer.wrap(chars);
+    private byte[] buffer;
+    private ByteBuffer byteBuffer;
+    private final BlockingQueue<byte[]> freeBuffers;
+    private final BlockingQueue<byte[]> fullBuffers;
+    private final BlockingQueue<Integer> fullLengths;
+    private final Thread writerThread;
+    private volatile IOException writeError;
+    private long handedBytes;
+    private boolean closed;
+
+    BufferedTextWriter(OutputStream output, Charset charset, String lineBreak, int bufferSize,
+                       boolean writeBehind, TextOutputFormat.SyncPolicy syncPolicy) {
+        this.output = output;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.lineBreak = lineBreak.getBytes(charset);
+        this.syncPolicy = syncPolicy;
+        if (writeBehind) {
+            freeBuffers = new ArrayBlockingQueue<byte[]>(WRITE_BEHIND_BUFFERS);
+            fullBuffers = new ArrayBlockingQueue<byte[]>(WRITE_BEHIND_BUFFERS + 1);
+            fullLengths = new ArrayBlockingQueue<Integer>(WRITE_BEHIND_BUFFERS + 1);
+            for (int i = 1; i < WRITE_BEHIND_BUFFERS; i++) {
+                freeBuffers.add(new byte[bufferSize]);
+            }
+            writerThread = new Thread(new Runnable() {
+                public void run() {
+                    writeBehind();
+                }
+            }, "sort4j-write-behind");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        } else {
+            freeBuffers = null;
+            fullBuffers = null;
+            fullLengths = null;
+            writerThread = null;
+        }
+        setBuffer(new byte[bufferSize]);
+    }
+
+    public void write(String item) throws IOException {
+        checkError();
+        final int length = item.length();
+        if (length > chars.length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+            charBuffer = CharBuffer.wrap(chars);
+        }
+        item.getChars(0, length, chars, 0);
+        ((Buffer) charBuffer).limit(length).position(0);
+        encoder.reset();
+        CoderResult result = encoder.encode(charBuffer, byteBuffer, true);
+        while (result.isOverflow()) {
+            nextBuffer();
+            result = encoder.encode(charBuffer, byteBuffer, true);
+        }
+        result = encoder.flush(byteBuffer);
+        while (result.isOverflow()) {
+            nextBuffer();
+            result = encoder.flush(byteBuffer);
+        }
+        int offset = 0;
+        while (offset < lineBreak.length) {
+            if (!byteBuffer.hasRemaining()) {
+                nextBuffer();
+            }
+            final int count = Math.min(byteBuffer.remaining(), lineBreak.length - offset);
+            byteBuffer.put(lineBreak, offset, count);
+            offset += count;
+        }
+    }
+
+    /**
+     * @return bytes handed to the output stream (or write-behind thread) plus bytes in current buffer
+     */
+    public long position() {
+        return handedBytes + byteBuffer.position();
+    }
+
+    /**
+     * Writes buffered lines to output stream and flushes it. With write-behind enabled waits until all
+     * buffers are written
+     */
+    public void flush() throws IOException {
+        checkError();
+        nextBuffer();
+        if (writerThread != null) {
+            //all buffers are back in the free queue only when writer thread is idle
+            try {
+                synchronized (freeBuffers) {
+                    while (freeBuffers.size() < WRITE_BEHIND_BUFFERS - 1 && writeError == null) {
+                        freeBuffers.wait(100);
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while flushing");
+            }
+            checkError();
+        }
+        output.flush();
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            try {
+                if (writeError == null) {
+                    nextBuffer();
+                }
+            } finally {
+                stopWriteBehind();
+            }
+            checkError();
+            output.flush();
+            if (syncPolicy != TextOutputFormat.SyncPolicy.NONE) {
+                sync();
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Lets write-behind thread finish queued buffers and waits until it exits. Thread exits even
+     * if waiting is interrupted
+     */
+    private void stopWriteBehind() throws IOException {
+        if (writerThread == null) {
+            return;
+        }
+        fullBuffers.add(END_OF_OUTPUT);
+        fullLengths.add(0);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing");
+        }
+    }
+
+    /**
+     * Hands current buffer to the output and takes an empty one
+     */
+    private void nextBuffer() throws IOException {
+        final int length = byteBuffer.position();
+        if (length == 0) {
+            return;
+        }
+        handedBytes += length;
+        if (writerThread == null) {
+            writeBuffer(buffer, length);
+            ((Buffer) byteBuffer).clear();
+            return;
+        }
+        //queues have room for every buffer, so adding never blocks and can't be interrupted halfway
+        fullBuffers.add(buffer);
+        fullLengths.add(length);
+        try {
+            byte[] free;
+            while ((free = freeBuffers.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                checkError();
+            }
+            setBuffer(free);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for write-behind thread");
+        }
+    }
+
+    private void setBuffer(byte[] buffer) {
+        this.buffer = buffer;
+        this.byteBuffer = ByteBuffer.wrap(buffer);
+    }
+
+    private void writeBuffer(byte[] data, int length) throws IOException {
+        output.write(data, 0, length);
+        if (syncPolicy == TextOutputFormat.SyncPolicy.FSYNC_EVERY_BUFFER) {
+            sync();
+        }
+    }
+
+    private void writeBehind() {
+        try {
+            while (true) {
+                final byte[] data = fullBuffers.take();
+                final int length = fullLengths.take();
+                if (data == END_OF_OUTPUT) {
+                    return;
+                }
+                if (writeError == null) {
+                    try {
+                        writeBuffer(data, length);
+                    } catch (IOException e) {
+                        writeError = e;
+                    }
+                }
+                synchronized (freeBuffers) {
+                    freeBuffers.add(data);
+                    freeBuffers.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            writeError = new InterruptedIOException("Write-behind thread interrupted");
+        }
+    }
+
+    private void sync() throws IOException {
+        if (output instanceof FileOutputStream) {
+            ((FileOutputStream) output).getFD().sync();
+        } else {
+            output.flush();
+        }
+    }
+
+    private void checkError() throws IOException {
+        final IOException error = writeError;
+        if (error != null) {
+            throw new IOException("Write-behind failed: " + error.getMessage(), error);
+        }
+    }
+}
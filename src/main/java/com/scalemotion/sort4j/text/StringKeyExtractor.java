@@ -0,0 +1,27 @@
+package com.scalemotion.sort4j.text;
+
+import com.scalemotion.sort4j.KeyExtractor;
+
+/**
+ * {@link KeyExtractor} consistent with natural order of strings ({@link String#compareTo(String)}):
+ * packs first four chars of the string into prefix. Shorter strings are padded with zeros.
+ * Don't use it with other comparators (for example, case insensitive ones)
+ */
+public class StringKeyExtractor implements KeyExtractor<String> {
+    private static final int CHARS = 4;
+
+    /**
+     * {@inheritDoc}
+     */
+    public long prefix(String item) {
+        final int length = Math.min(CHARS, item.length());
+        long prefix = 0;
+        for (int i = 0; i < CHARS; i++) {
+            prefix <<= 16;
+            if (i < length) {
+                prefix |= item.charAt(i);
+            }
+        }
+        return prefix;
+    }
+}
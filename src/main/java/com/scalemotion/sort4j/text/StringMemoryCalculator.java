@@ -1,12 +1,19 @@
 package com.scalemotion.sort4j.text;
 
 import com.scalemotion.sort4j.MemoryCalculator;
+import com.scalemotion.sort4j.ObjectSizes;
 
+/**
+ * Calculates heap size of strings: string object (header, hash and reference to characters),
+ * array of characters and reference to the string from the in-memory chunk
+ */
 public class StringMemoryCalculator implements MemoryCalculator<String>{
+    private static final int STRING_OBJECT = (int) ObjectSizes.align(ObjectSizes.OBJECT_HEADER + 4 + ObjectSizes.REFERENCE);
+
     /**
      * {@inheritDoc}
      */
     public int sizeof(String item) {
-        return item.length()*2;
+        return STRING_OBJECT + (int) ObjectSizes.align(ObjectSizes.ARRAY_HEADER + item.length() * 2L) + ObjectSizes.REFERENCE;
     }
 }
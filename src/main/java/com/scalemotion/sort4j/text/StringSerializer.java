@@ -0,0 +1,28 @@
+package com.scalemotion.sort4j.text;
+
+import com.scalemotion.sort4j.Serializer;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * {@link Serializer} that stores strings in UTF-8
+ */
+public class StringSerializer implements Serializer<String> {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * {@inheritDoc}
+     */
+    public void serialize(String item, DataOutput out) throws IOException {
+        out.write(item.getBytes(UTF8));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String deserialize(byte[] data, int offset, int length) {
+        return new String(data, offset, length, UTF8);
+    }
+}
@@ -14,4 +14,11 @@ class TextFormat {
     public void setCharset(String charset) {
         this.charset = charset;
     }
+
+    /**
+     * @return charset name
+     */
+    public String getCharset() {
+        return charset;
+    }
 }
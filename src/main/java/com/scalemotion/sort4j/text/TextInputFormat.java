@@ -1,14 +1,25 @@
 package com.scalemotion.sort4j.text;
 
-import com.scalemotion.sort4j.DataInputFormat;
+import com.scalemotion.sort4j.SplittableInputFormat;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Implementation of {@link com.scalemotion.sort4j.DataInputFormat} that reads text files line by line.
+ * Files could be split by line breaks if line break is encoded as single byte in given charset
+ * (which is true for UTF-8 and other ASCII-compatible charsets)
+ */
+public class TextInputFormat extends TextFormat implements SplittableInputFormat<String> {
+    private static final byte LINE_FEED = '\n';
+    private static final int SCAN_BUFFER_SIZE = 8192;
 
-public class TextInputFormat extends TextFormat implements DataInputFormat<String> {
     /**
      * Default constructor
      */
@@ -51,4 +62,42 @@ public class TextInputFormat extends TextFormat implements DataInputFormat<Strin
             }
         };
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isSplittable() {
+        try {
+            return Arrays.equals("\n".getBytes(charset), new byte[] {LINE_FEED});
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long recordBoundary(RandomAccessFile file, long position) throws IOException {
+        final long length = file.length();
+        if (position <= 0) {
+            return 0;
+        }
+        if (position >= length) {
+            return length;
+        }
+        //line starts at position only if previous byte is a line break
+        long offset = position - 1;
+        file.seek(offset);
+        byte[] buffer = new byte[SCAN_BUFFER_SIZE];
+        int read;
+        while ((read = file.read(buffer)) > 0) {
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == LINE_FEED) {
+                    return offset + i + 1;
+                }
+            }
+            offset += read;
+        }
+        return length;
+    }
 }
@@ -2,18 +2,40 @@ package com.scalemotion.sort4j.text;
 
 import com.scalemotion.sort4j.DataOutputFormat;
 
-import java.io.IOException;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 
 /**
  * Implementation of {@link DataOutputFormat} that writes data to text file
- * dividing lines by line breaks
+ * dividing lines by line breaks. Lines are encoded into large reusable buffer, see {@link #setBufferSize(int)},
+ * {@link #setWriteBehind(boolean)} and {@link #setSyncPolicy(SyncPolicy)}. Writers implement {@link java.io.Flushable}
+ * and report their position, see {@link DataOutputFormat.PositionedWriter}
  */
 public class TextOutputFormat extends TextFormat implements DataOutputFormat<String> {
     private static final String DEFAULT_LINE_BREAK = "\n";
+    private static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
     private String lineBreak = DEFAULT_LINE_BREAK;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private boolean writeBehind;
+    private SyncPolicy syncPolicy = SyncPolicy.NONE;
+
+    /**
+     * Defines when written data is forced to disk
+     */
+    public static enum SyncPolicy {
+        /**
+         * Data is left to the operating system, stream is flushed and closed on close
+         */
+        NONE,
+        /**
+         * File is fsync-ed once on close, so output is durable when sort returns
+         */
+        FSYNC_ON_CLOSE,
+        /**
+         * File is fsync-ed after every buffer, which limits amount of data lost on crash at the cost of throughput
+         */
+        FSYNC_EVERY_BUFFER
+    }
 
 
     /**
@@ -29,7 +51,7 @@ public class TextOutputFormat extends TextFormat implements DataOutputFormat<Str
      * @param charset you might want to set charset. Otherwise UTF-8 will be used
      */
     public TextOutputFormat(String charset) {
-        this(charset, DEFAULT_LINE_BREAK);
+        this(DEFAULT_LINE_BREAK, charset);
     }
 
     /**
@@ -43,26 +65,34 @@ public class TextOutputFormat extends TextFormat implements DataOutputFormat<Str
      * {@inheritDoc}
      */
     public Writer<String> initialize(final OutputStream output) {
-        return new Writer<String>() {
-            byte [] lineBreakBytes;
-            Charset charsetObj;
-            {
-                try {
-                   charsetObj = Charset.forName(charset);
-                   lineBreakBytes = TextOutputFormat.this.lineBreak.getBytes(charset);
-                } catch (UnsupportedEncodingException e) {
-                    throw new RuntimeException(e.getMessage(), e);
-                }
-            }
-            public void write(String item) throws IOException {
-                output.write(item.getBytes(charsetObj));
-                output.write(lineBreakBytes);
-            }
+        return new BufferedTextWriter(output, Charset.forName(charset), lineBreak, bufferSize, writeBehind, syncPolicy);
+    }
 
-            public void close() throws IOException {
-                output.close();
-            }
-        };
+    /**
+     * @param bufferSize size of encoding buffer in bytes (256Kb by default), output stream is written only
+     * when the buffer is full
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 16) {
+            throw new IllegalArgumentException("Buffer size is too small: " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param writeBehind if true, full buffers are written to output stream by separate thread
+     * while next buffer is being filled (false by default)
+     */
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * @param syncPolicy when data should be forced to disk ({@link SyncPolicy#NONE} by default).
+     * Syncing requires output to be a {@link java.io.FileOutputStream}, other streams are just flushed
+     */
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
     }
 
     /**
@@ -72,4 +102,11 @@ public class TextOutputFormat extends TextFormat implements DataOutputFormat<Str
         this.lineBreak = lineBreak;
     }
 
+    /**
+     * @return line break sequence
+     */
+    public String getLineBreak() {
+        return lineBreak;
+    }
+
 }
@@ -0,0 +1,123 @@
+package com.scalemotion.sort4j;
+
+import com.scalemotion.sort4j.text.TextInputFormat;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class DistributedSorterTest {
+    public static class TextTaskFactory implements SortingTaskFactory<String> {
+        public SortingTask<String> createTask() {
+            return SortingTask.createTextTask();
+        }
+    }
+
+    public static class FailingTaskFactory implements SortingTaskFactory<String> {
+        public SortingTask<String> createTask() {
+            return SortingTask.createTextTask().inputFormat(new TextInputFormat() {
+                @Override
+                public Reader<String> initialize(InputStream in) {
+                    final Reader<String> reader = super.initialize(in);
+                    return new Reader<String>() {
+                        public boolean hasNext() throws IOException {
+                            return reader.hasNext();
+                        }
+
+                        public String nextItem() throws IOException {
+                            final String line = reader.nextItem();
+                            if (line.equals("fail")) {
+                                throw new IOException("Failing line");
+                            }
+                            return line;
+                        }
+
+                        public void close() throws IOException {
+                            reader.close();
+                        }
+                    };
+                }
+            });
+        }
+    }
+
+    @Test
+    public void testSortWithLocalWorkers() throws Exception {
+        List<String> lines = TestFiles.randomLines(20000);
+        File input = TestFiles.writeInput("distributed-input.txt", lines);
+        File output = new File(input.getParent(), "distributed-output.txt");
+        DistributedSorter<String> sorter = new DistributedSorter<String>(TextTaskFactory.class,
+                new File(input.getParent(), "tmp").getAbsolutePath(), 2, 50000);
+        sorter.setSplitSize(30000);
+        sorter.setPartitions(3);
+        sorter.sort(SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        TestFiles.assertSorted(lines, output);
+    }
+
+    @Test
+    public void testShardedOutput() throws Exception {
+        List<String> lines = TestFiles.randomLines(10000);
+        File input = TestFiles.writeInput("sharded-input.txt", lines);
+        File output = new File(input.getParent(), "sharded-output.txt");
+        DistributedSorter<String> sorter = new DistributedSorter<String>(TextTaskFactory.class,
+                new File(input.getParent(), "tmp").getAbsolutePath(), 2, 50000);
+        sorter.setSplitSize(20000);
+        sorter.setShardedOutput(true);
+        sorter.sort(SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        List<String> sorted = new ArrayList<String>();
+        for (int p = 0; p < 2; p++) {
+            File shard = new File(DistributedSorter.shardName(output.getAbsolutePath(), p));
+            Assert.assertTrue(shard.exists());
+            sorted.addAll(TestFiles.readLines(shard));
+        }
+        List<String> expected = new ArrayList<String>(lines);
+        Collections.sort(expected);
+        Assert.assertEquals(expected, sorted);
+    }
+
+    @Test
+    public void testEmptyInput() throws Exception {
+        File input = TestFiles.writeInput("distributed-empty-input.txt", Collections.<String>emptyList());
+        File output = new File(input.getParent(), "distributed-empty-output.txt");
+        output.delete();
+        new DistributedSorter<String>(TextTaskFactory.class, TestFiles.tmp(), 2, 50000)
+                .sort(SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        Assert.assertFalse(output.exists());
+    }
+
+    @Test
+    public void testRunsOfFailedSortAreDeleted() throws Exception {
+        List<String> lines = new ArrayList<String>(TestFiles.randomLines(20000));
+        lines.add(15000, "fail");
+        File input = TestFiles.writeInput("distributed-failing-input.txt", lines);
+        File output = new File(input.getParent(), "distributed-failing-output.txt");
+        DistributedSorter<String> sorter = new DistributedSorter<String>(FailingTaskFactory.class, TestFiles.tmp(), 2, 20000);
+        sorter.setSplitSize(30000);
+        List<String> before = workerRuns();
+        try {
+            sorter.sort(SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+            Assert.fail("Sort of failing input succeeded");
+        } catch (RuntimeException e) {
+            //expected
+        }
+        Assert.assertEquals(before, workerRuns());
+    }
+
+    private static List<String> workerRuns() {
+        new File(TestFiles.tmp()).mkdirs();
+        List<String> runs = new ArrayList<String>(Arrays.asList(new File(TestFiles.tmp()).list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith("sort4j-worker-");
+            }
+        })));
+        Collections.sort(runs);
+        return runs;
+    }
+}
@@ -0,0 +1,150 @@
+package com.scalemotion.sort4j;
+
+import com.scalemotion.sort4j.text.TextOutputFormat;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class IndexedSortedFileTest {
+    @Test
+    public void testLookupAndScan() throws Exception {
+        Random random = new Random(1);
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < 20000; i++) {
+            lines.add("key" + random.nextInt(5000));
+        }
+        File dir = new File(getClass().getResource("/test.txt").getFile()).getParentFile();
+        File input = new File(dir, "indexed-input.txt");
+        FileUtils.writeLines(input, "UTF-8", lines, "\n");
+        File output = new File(dir, "indexed-output.txt");
+        SortingTask<String> task = SortingTask.createTextTask().outputIndex(100).outputIndexBloomBits(10)
+                .inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath());
+        new MergeSorter<String>(new File(dir, "tmp").getAbsolutePath(), 2, 100000).sort(task);
+        List<String> sorted = new ArrayList<String>(lines);
+        Collections.sort(sorted);
+        Assert.assertEquals(sorted, FileUtils.readLines(output, "UTF-8"));
+
+        IndexedSortedFile<String> file = new IndexedSortedFile<String>(output.getAbsolutePath(), task);
+        try {
+            Assert.assertEquals(200, file.getBlocks());
+            for (int i = 0; i < 5000; i += 7) {
+                String key = "key" + i;
+                Assert.assertEquals(Collections.frequency(lines, key), file.get(key).size());
+            }
+            Assert.assertTrue(file.get("missing").isEmpty());
+            Assert.assertTrue(file.get("zzz").isEmpty());
+            Assert.assertTrue(file.get("").isEmpty());
+
+            List<String> expected = new ArrayList<String>();
+            for (String line : sorted) {
+                if (line.compareTo("key1") >= 0 && line.compareTo("key2") < 0) {
+                    expected.add(line);
+                }
+            }
+            List<String> scanned = new ArrayList<String>();
+            CloseableIterator<String> range = file.scan("key1", "key2");
+            while (range.hasNext()) {
+                scanned.add(range.next());
+            }
+            Assert.assertEquals(expected, scanned);
+            CloseableIterator<String> all = file.scan(null, null);
+            int count = 0;
+            while (all.hasNext()) {
+                Assert.assertEquals(sorted.get(count++), all.next());
+            }
+            Assert.assertEquals(sorted.size(), count);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void testBloomFilterOfItemsWithIdentityHash() throws Exception {
+        //filter read from file should recognize equal items although their hash codes differ
+        Serializer<Key> serializer = new Serializer<Key>() {
+            public void serialize(Key item, DataOutput out) throws IOException {
+                out.writeUTF(item.name);
+            }
+
+            public Key deserialize(byte[] data, int offset, int length) throws IOException {
+                return new Key(new DataInputStream(new ByteArrayInputStream(data, offset, length)).readUTF());
+            }
+        };
+        SparseIndex<Key> index = new SparseIndex<Key>(100, 10, serializer);
+        index.addBlock(new Key("key0"), 0);
+        for (int i = 0; i < 100; i++) {
+            index.addItem(new Key("key" + i));
+        }
+        File file = new File(TestFiles.dir(), "identity-hash.idx");
+        index.write(file);
+        SparseIndex<Key> read = SparseIndex.read(file, serializer);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(read.mightContain(0, new Key("key" + i)));
+        }
+    }
+
+    private static class Key {
+        private final String name;
+
+        Key(String name) {
+            this.name = name;
+        }
+    }
+
+    @Test
+    public void testIndexRequiresSerializer() throws Exception {
+        File dir = new File(getClass().getResource("/test.txt").getFile()).getParentFile();
+        File output = new File(dir, "indexed-unserialized-output.txt");
+        FileUtils.writeStringToFile(output, "previous output", "UTF-8");
+        SortingTask<String> task = SortingTask.createTextTask().serializer(null).outputIndex(10)
+                .inputFile(new File(dir, "test.txt").getAbsolutePath()).outputFile(output.getAbsolutePath());
+        try {
+            new MergeSorter<String>(new File(dir, "tmp").getAbsolutePath(), 2, 100000).sort(task);
+            Assert.fail("Index without serializer should be rejected");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        //sort is rejected before output is opened
+        Assert.assertEquals("previous output", FileUtils.readFileToString(output, "UTF-8"));
+    }
+
+    @Test
+    public void testIndexOfBufferedOutput() throws Exception {
+        Random random = new Random(2);
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < 20000; i++) {
+            lines.add("key" + random.nextInt(5000));
+        }
+        File dir = new File(getClass().getResource("/test.txt").getFile()).getParentFile();
+        File input = new File(dir, "indexed-buffered-input.txt");
+        FileUtils.writeLines(input, "UTF-8", lines, "\n");
+        File output = new File(dir, "indexed-buffered-output.txt");
+        //blocks start in the middle of buffers that are written by write-behind thread
+        TextOutputFormat format = new TextOutputFormat();
+        format.setBufferSize(1000);
+        format.setWriteBehind(true);
+        SortingTask<String> task = SortingTask.createTextTask().outputFormat(format).outputIndex(77)
+                .inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath());
+        new MergeSorter<String>(new File(dir, "tmp").getAbsolutePath(), 2, 100000).sort(task);
+
+        IndexedSortedFile<String> file = new IndexedSortedFile<String>(output.getAbsolutePath(), task);
+        try {
+            for (int i = 0; i < 5000; i += 3) {
+                String key = "key" + i;
+                Assert.assertEquals(Collections.frequency(lines, key), file.get(key).size());
+            }
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.scalemotion.sort4j;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reader over in-memory list, used in tests and benchmarks
+ */
+class ListReader<T> implements DataInputFormat.Reader<T> {
+    private final Iterator<T> iterator;
+
+    ListReader(List<T> items) {
+        this.iterator = items.iterator();
+    }
+
+    public boolean hasNext() {
+        return iterator.hasNext();
+    }
+
+    public T nextItem() {
+        return iterator.next();
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,37 @@
+package com.scalemotion.sort4j;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+public class MappedTextSorterTest {
+    private static final String ALPHABET = "abcdefgxyzéжя中";
+
+    @Test
+    public void testSort() throws Exception {
+        List<String> lines = TestFiles.randomLines(20000, ALPHABET, 20);
+        File input = TestFiles.writeInput("mapped-input.txt", lines, "\n");
+        File output = new File(input.getParent(), "mapped-output.txt");
+        MappedTextSorter sorter = new MappedTextSorter(new File(input.getParent(), "tmp").getAbsolutePath(), 2, 400000);
+        sorter.setSplitSize(50000);
+        sorter.sort(SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        TestFiles.assertSorted(lines, output);
+    }
+
+    @Test
+    public void testMultiPassMergeWithCrLf() throws Exception {
+        List<String> lines = TestFiles.randomLines(3000, ALPHABET, 20);
+        File input = TestFiles.writeInput("mapped-crlf-input.txt", lines, "\r\n");
+        File output = new File(input.getParent(), "mapped-crlf-output.txt");
+        MappedTextSorter sorter = new MappedTextSorter(new File(input.getParent(), "tmp").getAbsolutePath(), 3, 4000);
+        sorter.setMaxMergeFanIn(3);
+        SortStats stats = sorter.sort(SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        TestFiles.assertSorted(lines, output);
+        Assert.assertEquals(input.length(), stats.getBytesRead());
+        Assert.assertEquals(lines.size(), stats.getRecordsRead());
+        Assert.assertEquals(lines.size(), stats.getRecordsWritten());
+        Assert.assertTrue(stats.getRunsSpilled() > 3);
+    }
+}
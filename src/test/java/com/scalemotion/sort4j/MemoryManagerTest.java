@@ -0,0 +1,32 @@
+package com.scalemotion.sort4j;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MemoryManagerTest {
+    @Test
+    public void testBorrowing() {
+        MemoryManager memory = new MemoryManager(1000);
+        memory.setHeapUsageThreshold(1);
+        memory.register();
+        memory.register();
+        memory.register();
+        memory.register();
+        //first consumer takes its share of 250 bytes and borrows while at least one share stays free
+        Assert.assertTrue(memory.tryReserve(250, 0));
+        Assert.assertTrue(memory.tryReserve(250, 250));
+        Assert.assertTrue(memory.tryReserve(250, 500));
+        Assert.assertFalse(memory.tryReserve(250, 750));
+        //other consumer still gets the rest
+        Assert.assertTrue(memory.tryReserve(250, 0));
+        Assert.assertFalse(memory.tryReserve(1, 250));
+        Assert.assertEquals(1000, memory.getReservedBytes());
+        memory.release(500);
+        memory.unregister();
+        memory.unregister();
+        memory.unregister();
+        //single consumer may use whole budget
+        Assert.assertTrue(memory.tryReserve(500, 500));
+        Assert.assertFalse(memory.tryReserve(1, 1000));
+    }
+}
@@ -1,12 +1,34 @@
 package com.scalemotion.sort4j;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Assert;
 import org.junit.Test;
+import com.scalemotion.sort4j.spill.LzCodec;
+import com.scalemotion.sort4j.text.StringKeyExtractor;
 import com.scalemotion.sort4j.text.StringMemoryCalculator;
 import com.scalemotion.sort4j.text.TextInputFormat;
 import com.scalemotion.sort4j.text.TextOutputFormat;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MergeSorterTest {
     @Test
@@ -25,4 +47,460 @@ public class MergeSorterTest {
 
 
     }
+
+    @Test
+    public void testSortSplitInput() throws Exception {
+        List<String> lines = TestFiles.randomLines(5000);
+        File input = TestFiles.writeInput("split-input.txt", lines);
+        File output = new File(input.getParent(), "split-output.txt");
+        MergeSorter<String> sorter = new MergeSorter<String>(new File(input.getParent(), "tmp").getAbsolutePath(), 4, 20000);
+        sorter.setSplitSize(1000);
+        sorter.sort(SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        TestFiles.assertSorted(lines, output);
+        Assert.assertEquals(lines.size(), sorter.getMetrics().getRecordsRead());
+    }
+
+    @Test
+    public void testMultiPassMerge() throws Exception {
+        List<String> lines = TestFiles.randomLines(3000);
+        File input = TestFiles.writeInput("multipass-input.txt", lines);
+        File output = new File(input.getParent(), "multipass-output.txt");
+        MergeSorter<String> sorter = new MergeSorter<String>(new File(input.getParent(), "tmp").getAbsolutePath(), 3, 40000);
+        sorter.setMaxMergeFanIn(3);
+        sorter.setSpillCodec(new LzCodec());
+        sorter.sort(SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        TestFiles.assertSorted(lines, output);
+        Assert.assertTrue(sorter.getMetrics().getMergeStallMillis() <= sorter.getMetrics().getMergeMillis());
+        Assert.assertTrue(sorter.getMetrics().getRunsSpilled() > 3);
+        Assert.assertTrue(sorter.getMetrics().getReadAheadBlocks() > 0);
+
+        sorter.setReadAheadThreads(0);
+        sorter.sort(SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        TestFiles.assertSorted(lines, output);
+        Assert.assertEquals(0, sorter.getMetrics().getReadAheadBlocks());
+    }
+
+    @Test
+    public void testReadAheadMemoryIsReserved() throws Exception {
+        List<String> lines = TestFiles.randomLines(20000);
+        File input = TestFiles.writeInput("read-ahead-memory-input.txt", lines);
+        File output = new File(input.getParent(), "read-ahead-memory-output.txt");
+        final long budget = 300000;
+        final AtomicLong peak = new AtomicLong();
+        final AtomicInteger readAheadReservations = new AtomicInteger();
+        MemoryManager memory = new MemoryManager(budget) {
+            @Override
+            boolean tryReserveFree(long bytes) {
+                final boolean reserved = super.tryReserveFree(bytes);
+                if (reserved) {
+                    readAheadReservations.incrementAndGet();
+                    peak.set(Math.max(peak.get(), getReservedBytes()));
+                }
+                return reserved;
+            }
+        };
+        memory.setHeapUsageThreshold(1);
+        MergeSorter<String> sorter = new MergeSorter<String>(TestFiles.tmp(), 2, budget);
+        sorter.setMemoryManager(memory);
+        sorter.setSplitSize(20000);
+        sorter.setMaxMergeFanIn(8);
+        sorter.sort(SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        TestFiles.assertSorted(lines, output);
+        Assert.assertTrue(sorter.getMetrics().getRunsSpilled() > 8);
+        Assert.assertTrue(readAheadReservations.get() > 0);
+        Assert.assertTrue(peak.get() <= budget);
+        Assert.assertEquals(0, memory.getReservedBytes());
+    }
+
+    @Test
+    public void testSortWithKeyPrefixes() throws Exception {
+        List<String> lines = TestFiles.randomLines(20000);
+        File input = TestFiles.writeInput("prefix-input.txt", lines);
+        File output = new File(input.getParent(), "prefix-output.txt");
+        MergeSorter<String> sorter = new MergeSorter<String>(new File(input.getParent(), "tmp").getAbsolutePath(), 2, 200000);
+        sorter.sort(SortingTask.createTextTask().keyExtractor(new StringKeyExtractor())
+                .inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        TestFiles.assertSorted(lines, output);
+    }
+
+    @Test
+    public void testSortInMemory() throws Exception {
+        List<String> lines = TestFiles.randomLines(10000);
+        File input = TestFiles.writeInput("in-memory-input.txt", lines);
+        File output = new File(input.getParent(), "in-memory-output.txt");
+        MergeSorter<String> sorter = new MergeSorter<String>(new File(input.getParent(), "tmp").getAbsolutePath(), 4, 64L * 1024 * 1024);
+        sorter.setSplitSize(10000);
+        sorter.sort(SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        TestFiles.assertSorted(lines, output);
+        Assert.assertEquals(0, sorter.getMetrics().getRunsSpilled());
+    }
+
+    @Test
+    public void testSortIterator() throws Exception {
+        List<String> lines = TestFiles.randomLines(5000);
+        File tmp = new File(new File(getClass().getResource("/test.txt").getFile()).getParentFile(), "tmp");
+        MergeSorter<String> sorter = new MergeSorter<String>(tmp.getAbsolutePath(), 2, 50000);
+        sorter.setMaxMergeFanIn(4);
+        CloseableIterator<String> sorted = sorter.sort(lines.iterator(), SortingTask.createTextTask());
+        List<String> result = new ArrayList<String>();
+        while (sorted.hasNext()) {
+            result.add(sorted.next());
+        }
+        List<String> expected = new ArrayList<String>(lines);
+        Collections.sort(expected);
+        Assert.assertEquals(expected, result);
+        Assert.assertTrue(sorter.getMetrics().getRunsSpilled() > 4);
+    }
+
+    @Test
+    public void testSortInputStream() throws Exception {
+        List<String> lines = TestFiles.randomLines(1000);
+        File input = TestFiles.writeInput("stream-input.txt", lines);
+        MergeSorter<String> sorter = new MergeSorter<String>(new File(input.getParent(), "tmp").getAbsolutePath(), 2, 1024 * 1024);
+        CloseableIterator<String> sorted = sorter.sort(new FileInputStream(input), SortingTask.createTextTask());
+        List<String> expected = new ArrayList<String>(lines);
+        Collections.sort(expected);
+        Assert.assertEquals(expected.get(0), sorted.next());
+        Assert.assertEquals(expected.get(1), sorted.next());
+        sorted.close();
+        Assert.assertFalse(sorted.hasNext());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testDistinct() throws Exception {
+        List<String> lines = new ArrayList<String>();
+        Random random = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            lines.add("key" + random.nextInt(300));
+        }
+        File input = TestFiles.writeInput("distinct-input.txt", lines);
+        File output = new File(input.getParent(), "distinct-output.txt");
+        MergeSorter<String> sorter = new MergeSorter<String>(new File(input.getParent(), "tmp").getAbsolutePath(), 2, 20000);
+        sorter.setMaxMergeFanIn(3);
+        sorter.sort(SortingTask.createTextTask().combiner(Combiner.DISTINCT)
+                .inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        Assert.assertEquals(new ArrayList<String>(new TreeSet<String>(lines)), FileUtils.readLines(output, "UTF-8"));
+        Assert.assertEquals(lines.size() - new TreeSet<String>(lines).size(), sorter.getMetrics().getRecordsCombined());
+    }
+
+    @Test
+    public void testLimit() throws Exception {
+        List<String> lines = TestFiles.randomLines(20000);
+        File input = TestFiles.writeInput("limit-input.txt", lines);
+        File output = new File(input.getParent(), "limit-output.txt");
+        List<String> expected = new ArrayList<String>(lines);
+        Collections.sort(expected);
+        MergeSorter<String> sorter = new MergeSorter<String>(new File(input.getParent(), "tmp").getAbsolutePath(), 4, 1024 * 1024);
+        sorter.setSplitSize(10000);
+        sorter.sort(SortingTask.createTextTask().limit(100).inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        Assert.assertEquals(expected.subList(0, 100), FileUtils.readLines(output, "UTF-8"));
+        Assert.assertEquals(0, sorter.getMetrics().getRunsSpilled());
+
+        sorter = new MergeSorter<String>(new File(input.getParent(), "tmp").getAbsolutePath(), 2, 20000);
+        sorter.setMaxMergeFanIn(3);
+        sorter.sort(SortingTask.createTextTask().limit(1000).inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        Assert.assertEquals(expected.subList(0, 1000), FileUtils.readLines(output, "UTF-8"));
+    }
+
+    @Test
+    public void testParallelFinalMerge() throws Exception {
+        List<String> lines = TestFiles.randomLines(30000);
+        for (int i = 0; i < 3000; i++) {
+            lines.add("duplicate");
+        }
+        File input = TestFiles.writeInput("parallel-merge-input.txt", lines);
+        File output = new File(input.getParent(), "parallel-merge-output.txt");
+        MergeSorter<String> sorter = new MergeSorter<String>(new File(input.getParent(), "tmp").getAbsolutePath(), 3, 300000);
+        sorter.setFinalMergeThreads(4);
+        sorter.setSpillCodec(new LzCodec());
+        sorter.sort(SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        TestFiles.assertSorted(lines, output);
+        Assert.assertTrue(sorter.getMetrics().getRunsSpilled() > 1);
+    }
+
+    @Test
+    public void testMultipleTemporaryDirectories() throws Exception {
+        List<String> lines = TestFiles.randomLines(20000);
+        File input = TestFiles.writeInput("striped-input.txt", lines);
+        File output = new File(input.getParent(), "striped-output.txt");
+        MergeSorter<String> sorter = new MergeSorter<String>(null, 2, 100000);
+        List<String> directories = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            directories.add(new File(input.getParent(), "tmp" + i).getAbsolutePath());
+        }
+        sorter.setTemporaryDirectories(directories);
+        sorter.sort(SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        TestFiles.assertSorted(lines, output);
+        Assert.assertTrue(sorter.getMetrics().getRunsSpilled() >= 3);
+        for (String directory : directories) {
+            Assert.assertTrue(sorter.getMetrics().getDirectoryBytesWritten().get(directory) > 0);
+            Assert.assertEquals(sorter.getMetrics().getDirectoryBytesWritten().get(directory),
+                    sorter.getMetrics().getDirectoryBytesRead().get(directory));
+        }
+        sorter.setSpillPlacement(MergeSorter.SpillPlacement.FREE_SPACE);
+        sorter.sort(SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        TestFiles.assertSorted(lines, output);
+    }
+
+    @Test
+    public void testResumeFromCheckpoint() throws Exception {
+        List<String> lines = TestFiles.randomLines(20000);
+        lines.add(19900, FailingInputFormat.FAIL);
+        File input = TestFiles.writeInput("checkpoint-input.txt", lines);
+        File output = new File(input.getParent(), "checkpoint-output.txt");
+        File tmp = new File(input.getParent(), "checkpoint-tmp");
+        FileUtils.deleteDirectory(tmp);
+        MergeSorter<String> sorter = new MergeSorter<String>(tmp.getAbsolutePath(), 2, 50000);
+        sorter.setSplitSize(20000);
+        sorter.setCheckpointing(true);
+        FailingInputFormat.fail = true;
+        try {
+            sorter.sort(SortingTask.createTextTask().inputFormat(new FailingInputFormat())
+                    .inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+            Assert.fail("Sort should fail");
+        } catch (RuntimeException e) {
+            //expected
+        } finally {
+            FailingInputFormat.fail = false;
+        }
+        sorter.sort(SortingTask.createTextTask().inputFormat(new FailingInputFormat())
+                .inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        TestFiles.assertSorted(lines, output);
+        Assert.assertTrue(sorter.getMetrics().getRecordsRead() < lines.size());
+        Assert.assertEquals(0, tmp.list().length);
+    }
+
+    @Test
+    public void testTemporaryFilesDeleted() throws Exception {
+        List<String> lines = TestFiles.randomLines(5000);
+        File input = TestFiles.writeInput("cleanup-input.txt", lines);
+        File output = new File(input.getParent(), "cleanup-output.txt");
+        File tmp = new File(input.getParent(), "cleanup-tmp");
+        FileUtils.deleteDirectory(tmp);
+        tmp.mkdirs();
+        MergeSorter<String> sorter = new MergeSorter<String>(tmp.getAbsolutePath(), 2, 20000);
+        sorter.setMaxMergeFanIn(2);
+
+        //iterator closed before it's read to the end
+        CloseableIterator<String> sorted = sorter.sort(lines.iterator(), SortingTask.createTextTask());
+        Assert.assertTrue(sorted.hasNext());
+        sorted.next();
+        sorted.close();
+        Assert.assertEquals(0, tmp.list().length);
+
+        //sort that fails in intermediate merge
+        final AtomicBoolean merging = new AtomicBoolean();
+        sorter.addListener(new SortListener() {
+            public void phaseChanged(SortMetrics.Phase phase, SortMetrics metrics) {
+                merging.set(phase == SortMetrics.Phase.MERGING);
+            }
+
+            public void runSpilled(SortMetrics metrics) {
+            }
+        });
+        SortingTask<String> task = SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath());
+        task.comparator(new Comparator<String>() {
+            public int compare(String o1, String o2) {
+                if (merging.get()) {
+                    throw new IllegalStateException("Failure for test");
+                }
+                return o1.compareTo(o2);
+            }
+        });
+        try {
+            sorter.sort(task);
+            Assert.fail("Sort should fail");
+        } catch (RuntimeException e) {
+            //expected
+        }
+        Assert.assertTrue(sorter.getMetrics().getRunsSpilled() > 2);
+        Assert.assertEquals(0, tmp.list().length);
+    }
+
+    @Test
+    public void testMergeWithSortedFile() throws Exception {
+        List<String> existing = TestFiles.randomLines(5000);
+        existing.add("updated");
+        existing.add("updated");
+        Collections.sort(existing);
+        File sorted = TestFiles.writeInput("existing-sorted.txt", existing);
+        List<String> lines = TestFiles.randomLines(3000);
+        lines.add("updated");
+        File input = TestFiles.writeInput("update-input.txt", lines);
+        File output = new File(input.getParent(), "update-output.txt");
+        MergeSorter<String> sorter = new MergeSorter<String>(new File(input.getParent(), "tmp").getAbsolutePath(), 2, 20000);
+        sorter.sort(SortingTask.createTextTask().mergeWith(sorted.getAbsolutePath())
+                .inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        List<String> all = new ArrayList<String>(existing);
+        all.addAll(lines);
+        TestFiles.assertSorted(all, output);
+        Assert.assertEquals(lines.size(), sorter.getMetrics().getRecordsRead());
+
+        //new items replace all equal existing items
+        sorter.sort(SortingTask.createTextTask().mergeWith(sorted.getAbsolutePath()).replaceEqual(true)
+                .inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        Set<String> updated = new HashSet<String>(lines);
+        List<String> replaced = new ArrayList<String>(lines);
+        for (String line : existing) {
+            if (!updated.contains(line)) {
+                replaced.add(line);
+            }
+        }
+        Assert.assertTrue(replaced.size() < all.size() - 1);
+        TestFiles.assertSorted(replaced, output);
+
+        File empty = TestFiles.writeInput("update-empty.txt", Collections.<String>emptyList());
+        sorter.sort(SortingTask.createTextTask().mergeWith(sorted.getAbsolutePath())
+                .inputFile(empty.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        TestFiles.assertSorted(existing, output);
+    }
+
+    @Test
+    public void testMetricsAndListener() throws Exception {
+        List<String> lines = TestFiles.randomLines(20000);
+        File input = TestFiles.writeInput("metrics-input.txt", lines);
+        File output = new File(input.getParent(), "metrics-output.txt");
+        MergeSorter<String> sorter = new MergeSorter<String>(new File(input.getParent(), "tmp").getAbsolutePath(), 2, 50000);
+        final List<SortMetrics.Phase> phases = Collections.synchronizedList(new ArrayList<SortMetrics.Phase>());
+        final AtomicInteger spilled = new AtomicInteger();
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName("com.scalemotion.sort4j:type=MergeSorter,name=test,sort=1");
+        final List<Object> beanPhases = Collections.synchronizedList(new ArrayList<Object>());
+        sorter.addListener(new SortListener() {
+            public void phaseChanged(SortMetrics.Phase phase, SortMetrics metrics) {
+                phases.add(phase);
+                if (phase == SortMetrics.Phase.MERGING) {
+                    try {
+                        beanPhases.add(server.getAttribute(name, "Phase"));
+                    } catch (Exception e) {
+                        beanPhases.add(e);
+                    }
+                }
+            }
+
+            public void runSpilled(SortMetrics metrics) {
+                spilled.incrementAndGet();
+            }
+        });
+        sorter.setCountComparisons(true);
+        sorter.setJmxName("com.scalemotion.sort4j:type=MergeSorter,name=test");
+        SortStats stats = sorter.sort(SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        TestFiles.assertSorted(lines, output);
+        Assert.assertEquals(Arrays.asList(SortMetrics.Phase.READING, SortMetrics.Phase.MERGING, SortMetrics.Phase.DONE), phases);
+        Assert.assertEquals(SortMetrics.Phase.DONE, stats.getPhase());
+        Assert.assertEquals(lines.size(), stats.getRecordsRead());
+        Assert.assertEquals(lines.size(), stats.getRecordsWritten());
+        Assert.assertEquals(input.length(), stats.getInputBytes());
+        Assert.assertEquals(input.length(), stats.getBytesRead());
+        Assert.assertTrue(stats.getRunsSpilled() > 1);
+        Assert.assertEquals(stats.getRunsSpilled(), spilled.get());
+        Assert.assertTrue(stats.getComparisons() > lines.size());
+        Assert.assertEquals(1.0, sorter.getMetrics().getProgress(), 0);
+
+        //bean of the sort is registered while it runs
+        Assert.assertEquals(Arrays.<Object>asList("MERGING"), beanPhases);
+        Assert.assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void testFailureBeforeReading() throws Exception {
+        MergeSorter<String> sorter = new MergeSorter<String>(TestFiles.tmp(), 2, 50000);
+        final List<SortMetrics.Phase> phases = Collections.synchronizedList(new ArrayList<SortMetrics.Phase>());
+        sorter.addListener(new SortListener() {
+            public void phaseChanged(SortMetrics.Phase phase, SortMetrics metrics) {
+                phases.add(phase);
+            }
+
+            public void runSpilled(SortMetrics metrics) {
+            }
+        });
+        sorter.setJmxName("com.scalemotion.sort4j:type=MergeSorter,name=failed");
+        try {
+            sorter.sort(SortingTask.createTextTask().outputFile(new File(TestFiles.dir(), "no-input-output.txt").getAbsolutePath()));
+            Assert.fail("Sort without input files should fail");
+        } catch (RuntimeException e) {
+            //expected
+        }
+        try {
+            sorter.sort(new ByteArrayInputStream(new byte[0]), SortingTask.createTextTask().inputFormat(new TextInputFormat() {
+                @Override
+                public Reader<String> initialize(InputStream in) {
+                    throw new IllegalStateException("Failure for test");
+                }
+            }));
+            Assert.fail("Sort should fail");
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        Assert.assertEquals(Arrays.asList(SortMetrics.Phase.FAILED, SortMetrics.Phase.FAILED), phases);
+        Assert.assertEquals(SortMetrics.Phase.FAILED, sorter.getMetrics().getPhase());
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Assert.assertTrue(server.queryNames(new ObjectName("com.scalemotion.sort4j:type=MergeSorter,name=failed,*"), null).isEmpty());
+    }
+
+    @Test
+    public void testConcurrentSortsOfOneSorter() throws Exception {
+        final MergeSorter<String> sorter = new MergeSorter<String>(new File(getClass().getResource("/test.txt").getFile()).getParent() + "/tmp", 2, 50000);
+        final List<List<String>> inputs = new ArrayList<List<String>>();
+        final List<File> outputs = new ArrayList<File>();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final List<SortStats> stats = Collections.synchronizedList(new ArrayList<SortStats>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 3; i++) {
+            inputs.add(TestFiles.randomLines(15000 + i));
+            final File input = TestFiles.writeInput("concurrent-input-" + i + ".txt", inputs.get(i));
+            final File output = new File(input.getParent(), "concurrent-output-" + i + ".txt");
+            outputs.add(output);
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        stats.add(sorter.sort(SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath())));
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals(Collections.emptyList(), errors);
+        for (int i = 0; i < inputs.size(); i++) {
+            TestFiles.assertSorted(inputs.get(i), outputs.get(i));
+        }
+        for (SortStats s : stats) {
+            Assert.assertEquals(SortMetrics.Phase.DONE, s.getPhase());
+            Assert.assertEquals(s.getRecordsRead(), s.getRecordsWritten());
+        }
+    }
+
+    public static class FailingInputFormat extends TextInputFormat {
+        static final String FAIL = "fail";
+        static volatile boolean fail;
+
+        @Override
+        public Reader<String> initialize(InputStream in) {
+            final Reader<String> reader = super.initialize(in);
+            return new Reader<String>() {
+                public boolean hasNext() throws IOException {
+                    return reader.hasNext();
+                }
+
+                public String nextItem() throws IOException {
+                    final String item = reader.nextItem();
+                    if (fail && FAIL.equals(item)) {
+                        throw new IOException("Failure for test");
+                    }
+                    return item;
+                }
+
+                public void close() throws IOException {
+                    reader.close();
+                }
+            };
+        }
+    }
 }
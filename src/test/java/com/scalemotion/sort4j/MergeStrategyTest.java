@@ -0,0 +1,91 @@
+package com.scalemotion.sort4j;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+public class MergeStrategyTest {
+    private static final Comparator<Integer> COMPARATOR = new ComparableComparator<Integer>();
+
+    @Test
+    public void testMerge() throws Exception {
+        for (MergeStrategy strategy : MergeStrategy.values()) {
+            for (int runs = 0; runs <= 17; runs++) {
+                assertMerged(strategy, runs, new Random(runs));
+            }
+            assertMerged(strategy, 1000, new Random());
+        }
+    }
+
+    @Test
+    public void testStable() throws Exception {
+        //items are compared by value / 10 only, so equal items should keep order of runs
+        Comparator<Integer> comparator = new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                return o1 / 10 - o2 / 10;
+            }
+        };
+        for (MergeStrategy strategy : MergeStrategy.values()) {
+            List<ListReader<Integer>> readers = new ArrayList<ListReader<Integer>>();
+            for (int run = 0; run < 5; run++) {
+                List<Integer> items = new ArrayList<Integer>();
+                for (int i = 0; i < 3; i++) {
+                    items.add(i * 10 + run);
+                }
+                readers.add(new ListReader<Integer>(items));
+            }
+            RunMerger<Integer> merger = strategy.create(readers, comparator);
+            for (int i = 0; i < 15; i++) {
+                Assert.assertEquals(strategy.name(), Integer.valueOf((i / 5) * 10 + i % 5), merger.next());
+            }
+            Assert.assertFalse(merger.hasNext());
+        }
+    }
+
+    @Test
+    public void testMergeWithPrefixes() throws Exception {
+        //prefix is consistent with natural order of non-negative numbers but has a lot of duplicates
+        KeyExtractor<Integer> extractor = new KeyExtractor<Integer>() {
+            public long prefix(Integer item) {
+                return item / 7;
+            }
+        };
+        for (MergeStrategy strategy : MergeStrategy.values()) {
+            for (int runs = 1; runs <= 9; runs++) {
+                assertMerged(strategy, runs, new Random(runs), extractor);
+            }
+        }
+    }
+
+    private static void assertMerged(MergeStrategy strategy, int runs, Random random) throws Exception {
+        assertMerged(strategy, runs, random, null);
+    }
+
+    private static void assertMerged(MergeStrategy strategy, int runs, Random random, KeyExtractor<Integer> extractor) throws Exception {
+        List<Integer> all = new ArrayList<Integer>();
+        List<ListReader<Integer>> readers = new ArrayList<ListReader<Integer>>();
+        for (int i = 0; i < runs; i++) {
+            List<Integer> run = new ArrayList<Integer>();
+            int length = random.nextInt(50);
+            for (int j = 0; j < length; j++) {
+                run.add(random.nextInt(100));
+            }
+            Collections.sort(run);
+            all.addAll(run);
+            readers.add(new ListReader<Integer>(run));
+        }
+        Collections.sort(all);
+        List<Integer> merged = new ArrayList<Integer>();
+        RunMerger<Integer> merger = strategy.create(readers, COMPARATOR, extractor);
+        while (merger.hasNext()) {
+            merged.add(merger.next());
+        }
+        merger.close();
+        Assert.assertEquals(strategy + " of " + runs + " runs", all, merged);
+    }
+}
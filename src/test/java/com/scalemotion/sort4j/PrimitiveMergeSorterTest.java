@@ -0,0 +1,90 @@
+package com.scalemotion.sort4j;
+
+import com.scalemotion.sort4j.primitive.BinaryPrimitiveFormat;
+import com.scalemotion.sort4j.primitive.TextPrimitiveFormat;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class PrimitiveMergeSorterTest {
+    private final File dir = new File(getClass().getResource("/test.txt").getFile()).getParentFile();
+
+    @Test
+    public void testSortLongs() throws Exception {
+        Random random = new Random(1);
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            //both small numbers (radix passes are skipped) and full range
+            values[i] = i % 2 == 0 ? random.nextLong() : random.nextInt(1000) - 500;
+        }
+        File input = new File(dir, "longs-input.bin");
+        File output = new File(dir, "longs-output.bin");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(input));
+        for (long value : values) {
+            out.writeLong(value);
+        }
+        out.close();
+        PrimitiveMergeSorter<Long> sorter = new PrimitiveMergeSorter<Long>(new File(dir, "tmp").getAbsolutePath(), 3, 240000);
+        sorter.setSplitSize(100000);
+        sorter.setMaxMergeFanIn(4);
+        SortStats stats = sorter.sort(new SortingTask<Long>().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath())
+                .inputFormat(BinaryPrimitiveFormat.longs()).outputFormat(BinaryPrimitiveFormat.longs()));
+
+        Arrays.sort(values);
+        DataInputStream in = new DataInputStream(new FileInputStream(output));
+        for (long value : values) {
+            Assert.assertEquals(value, in.readLong());
+        }
+        try {
+            in.readLong();
+            Assert.fail("Output is longer than input");
+        } catch (EOFException e) {
+            //expected
+        } finally {
+            in.close();
+        }
+        Assert.assertEquals(input.length(), stats.getBytesRead());
+        Assert.assertEquals(values.length, stats.getRecordsRead());
+        Assert.assertEquals(values.length, stats.getRecordsWritten());
+        Assert.assertTrue(stats.getRunsSpilled() > 4);
+    }
+
+    @Test
+    public void testSortDoubles() throws Exception {
+        Random random = new Random(2);
+        List<Double> values = new ArrayList<Double>();
+        for (int i = 0; i < 5000; i++) {
+            values.add(random.nextGaussian() * 1000);
+        }
+        values.addAll(Arrays.asList(0.0, -0.0, Double.NaN, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.MIN_VALUE, -Double.MAX_VALUE));
+        List<String> lines = new ArrayList<String>();
+        for (Double value : values) {
+            lines.add(value.toString());
+        }
+        File input = new File(dir, "doubles-input.txt");
+        File output = new File(dir, "doubles-output.txt");
+        FileUtils.writeLines(input, "UTF-8", lines, "\n");
+        new PrimitiveMergeSorter<Double>(new File(dir, "tmp").getAbsolutePath(), 2, 10000)
+                .sort(new SortingTask<Double>().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath())
+                        .inputFormat(TextPrimitiveFormat.doubles()).outputFormat(TextPrimitiveFormat.doubles()));
+
+        Collections.sort(values);
+        List<Double> sorted = new ArrayList<Double>();
+        for (Object line : FileUtils.readLines(output, "UTF-8")) {
+            sorted.add(Double.valueOf((String) line));
+        }
+        Assert.assertEquals(values, sorted);
+    }
+}
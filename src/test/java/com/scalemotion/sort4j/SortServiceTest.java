@@ -0,0 +1,127 @@
+package com.scalemotion.sort4j;
+
+import com.scalemotion.sort4j.text.TextInputFormat;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class SortServiceTest {
+    @Test
+    public void testConcurrentSorts() throws Exception {
+        SortService service = new SortService(TestFiles.tmp(), 2, 2, 200000);
+        List<List<String>> inputs = new ArrayList<List<String>>();
+        List<File> outputs = new ArrayList<File>();
+        List<Future<SortStats>> results = new ArrayList<Future<SortStats>>();
+        for (int i = 0; i < 5; i++) {
+            List<String> lines = TestFiles.randomLines(10000 + i);
+            File input = TestFiles.writeInput("service-input-" + i + ".txt", lines);
+            File output = new File(input.getParent(), "service-output-" + i + ".txt");
+            inputs.add(lines);
+            outputs.add(output);
+            results.add(service.submit(SortingTask.createTextTask().inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath())));
+        }
+        for (int i = 0; i < results.size(); i++) {
+            SortStats stats = results.get(i).get();
+            Assert.assertEquals(inputs.get(i).size(), stats.getRecordsRead());
+            TestFiles.assertSorted(inputs.get(i), outputs.get(i));
+        }
+        Assert.assertEquals(0, service.getMemoryManager().getReservedBytes());
+        service.shutdown();
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        SortService service = new SortService(TestFiles.tmp(), 1, 2, 100000) {
+            @Override
+            protected <T> MergeSorter<T> createSorter(SortingTask<T> task) {
+                MergeSorter<T> sorter = super.createSorter(task);
+                sorter.addListener(new SortListener() {
+                    public void phaseChanged(SortMetrics.Phase phase, SortMetrics metrics) {
+                        if (phase == SortMetrics.Phase.READING) {
+                            reading.countDown();
+                        }
+                    }
+
+                    public void runSpilled(SortMetrics metrics) {
+                    }
+                });
+                return sorter;
+            }
+        };
+        List<String> lines = TestFiles.randomLines(20000);
+        File input = TestFiles.writeInput("cancel-input.txt", lines);
+        File output = new File(input.getParent(), "cancel-output.txt");
+        Future<SortStats> running = service.submit(SortingTask.createTextTask().inputFormat(new SlowInputFormat())
+                .inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        Future<SortStats> queued = service.submit(SortingTask.createTextTask()
+                .inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        Assert.assertTrue(queued.cancel(false));
+        Assert.assertEquals(0, service.getQueuedTasks());
+        Assert.assertTrue(reading.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(running.cancel(true));
+        try {
+            running.get();
+            Assert.fail("Sort should be cancelled");
+        } catch (CancellationException e) {
+            //expected
+        }
+
+        //service is usable after cancelled sort
+        Future<SortStats> next = service.submit(SortingTask.createTextTask()
+                .inputFile(input.getAbsolutePath()).outputFile(output.getAbsolutePath()));
+        Assert.assertEquals(lines.size(), next.get().getRecordsRead());
+        Assert.assertEquals(0, service.getMemoryManager().getReservedBytes());
+        service.shutdown();
+    }
+
+    @Test
+    public void testExecutorSize() throws Exception {
+        MergeSorter<String> sorter = new MergeSorter<String>(TestFiles.tmp(), 3, 100000);
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            sorter.setExecutor(executor);
+            Assert.fail("Executor with less than two threads per working thread should be rejected");
+        } catch (IllegalArgumentException e) {
+            //expected
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public static class SlowInputFormat extends TextInputFormat {
+        @Override
+        public Reader<String> initialize(InputStream in) {
+            final Reader<String> reader = super.initialize(in);
+            return new Reader<String>() {
+                public boolean hasNext() throws IOException {
+                    return reader.hasNext();
+                }
+
+                public String nextItem() throws IOException {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted");
+                    }
+                    return reader.nextItem();
+                }
+
+                public void close() throws IOException {
+                    reader.close();
+                }
+            };
+        }
+    }
+}
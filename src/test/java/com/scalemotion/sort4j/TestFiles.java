@@ -0,0 +1,79 @@
+package com.scalemotion.sort4j;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Input files and checks shared by sorter tests. Files are written next to test.txt resource
+ */
+final class TestFiles {
+    private static final String LATIN = "abcdefghijklmnopqrstuvwxyz";
+
+    private TestFiles() {
+    }
+
+    /**
+     * @return directory of test resources
+     */
+    static File dir() {
+        return new File(TestFiles.class.getResource("/test.txt").getFile()).getParentFile();
+    }
+
+    /**
+     * @return temporary directory of sorters
+     */
+    static String tmp() {
+        return new File(dir(), "tmp").getAbsolutePath();
+    }
+
+    static File writeInput(String name, List<String> lines) throws Exception {
+        return writeInput(name, lines, "\n");
+    }
+
+    static File writeInput(String name, List<String> lines, String lineBreak) throws Exception {
+        File input = new File(dir(), name);
+        FileUtils.writeLines(input, "UTF-8", lines, lineBreak);
+        return input;
+    }
+
+    /**
+     * @return count lines of up to 29 latin letters, the same for the same count
+     */
+    static List<String> randomLines(int count) {
+        return randomLines(count, LATIN, 30);
+    }
+
+    /**
+     * @return count lines of characters of alphabet shorter than maxLength, the same for the same count
+     */
+    static List<String> randomLines(int count, String alphabet, int maxLength) {
+        Random random = new Random(count);
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder line = new StringBuilder();
+            int length = random.nextInt(maxLength);
+            for (int j = 0; j < length; j++) {
+                line.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<String> readLines(File file) throws Exception {
+        return FileUtils.readLines(file, "UTF-8");
+    }
+
+    static void assertSorted(List<String> input, File output) throws Exception {
+        List<String> expected = new ArrayList<String>(input);
+        Collections.sort(expected);
+        Assert.assertEquals(expected, readLines(output));
+    }
+}
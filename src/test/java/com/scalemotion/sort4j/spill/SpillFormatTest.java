@@ -0,0 +1,93 @@
+package com.scalemotion.sort4j.spill;
+
+import com.scalemotion.sort4j.DataInputFormat;
+import com.scalemotion.sort4j.DataOutputFormat;
+import com.scalemotion.sort4j.text.StringSerializer;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class SpillFormatTest {
+    @Test
+    public void testRoundTrip() throws Exception {
+        assertRoundTrip(new SpillFormat<String>(new StringSerializer()));
+        assertRoundTrip(new SpillFormat<String>(new StringSerializer(), new LzCodec()));
+        assertRoundTrip(new SpillFormat<String>(new StringSerializer(), new DeflateCodec()));
+    }
+
+    @Test
+    public void testCodecs() throws Exception {
+        Random random = new Random(1);
+        byte[] noise = new byte[100000];
+        random.nextBytes(noise);
+        byte[] text = StringUtils.repeat("sort4j is a sorting library for java, ", 3000).getBytes("UTF-8");
+        byte[] runs = new byte[70000];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = (byte) (i / 1000);
+        }
+        for (SpillCodec codec : new SpillCodec[] {new LzCodec(), new DeflateCodec(), new DeflateCodec(9)}) {
+            for (byte[] data : new byte[][] {new byte[0], new byte[] {1, 2, 3}, noise, text, runs}) {
+                byte[] compressed = new byte[3 + codec.maxCompressedLength(data.length)];
+                int length = codec.compress(data, 0, data.length, compressed, 3);
+                byte[] restored = new byte[data.length + 1];
+                codec.decompress(compressed, 3, length, restored, 1, data.length);
+                Assert.assertArrayEquals(data, Arrays.copyOfRange(restored, 1, restored.length));
+            }
+            Assert.assertTrue(codec.compress(text, 0, text.length, new byte[codec.maxCompressedLength(text.length)], 0) < text.length / 10);
+        }
+    }
+
+    @Test
+    public void testTruncatedFile() throws Exception {
+        SpillFormat<String> format = new SpillFormat<String>(new StringSerializer());
+        format.setBlockSize(100);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputFormat.Writer<String> writer = format.initialize(bytes);
+        for (int i = 0; i < 100; i++) {
+            writer.write("item " + i);
+        }
+        writer.close();
+        byte[] data = bytes.toByteArray();
+        int secondBlock = 8 + new DataInputStream(new ByteArrayInputStream(data)).readInt();
+        //partial header of the first block, partial header of the second block and short last block
+        for (int length : new int[] {3, secondBlock + 2, data.length - 1}) {
+            DataInputFormat.Reader<String> reader = format.initialize(new ByteArrayInputStream(Arrays.copyOf(data, length)));
+            try {
+                while (reader.hasNext()) {
+                    reader.nextItem();
+                }
+                Assert.fail("Truncated file is read without errors");
+            } catch (IOException e) {
+                //expected
+            }
+        }
+    }
+
+    private static void assertRoundTrip(SpillFormat<String> format) throws Exception {
+        format.setBlockSize(100);
+        List<String> items = Arrays.asList("", "line\nwith break", "привет", StringUtils.repeat("x", 1000), "last");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputFormat.Writer<String> writer = format.initialize(bytes);
+        for (String item : items) {
+            writer.write(item);
+        }
+        writer.close();
+        DataInputFormat.Reader<String> reader = format.initialize(new ByteArrayInputStream(bytes.toByteArray()));
+        List<String> read = new ArrayList<String>();
+        while (reader.hasNext()) {
+            read.add(reader.nextItem());
+        }
+        reader.close();
+        Assert.assertEquals(items, read);
+        Assert.assertTrue(format.getStoredBytes() <= format.getRawBytes());
+    }
+}
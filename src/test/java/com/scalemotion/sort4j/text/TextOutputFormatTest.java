@@ -0,0 +1,103 @@
+package com.scalemotion.sort4j.text;
+
+import com.scalemotion.sort4j.DataOutputFormat;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TextOutputFormatTest {
+    @Test
+    public void testWriteBehind() throws Exception {
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++) {
+            lines.add("line " + i + (i % 7 == 0 ? " ж中" : ""));
+        }
+        lines.add(new String(new char[500]).replace('\0', 'x'));
+        File dir = new File(getClass().getResource("/test.txt").getFile()).getParentFile();
+        File output = new File(dir, "write-behind-output.txt");
+        TextOutputFormat format = new TextOutputFormat();
+        format.setBufferSize(100);
+        format.setWriteBehind(true);
+        format.setSyncPolicy(TextOutputFormat.SyncPolicy.FSYNC_ON_CLOSE);
+        DataOutputFormat.Writer<String> writer = format.initialize(new FileOutputStream(output));
+        for (String line : lines) {
+            writer.write(line);
+        }
+        writer.close();
+        Assert.assertEquals(lines, FileUtils.readLines(output, "UTF-8"));
+    }
+
+    @Test
+    public void testWriteBehindThreadStopsOnFailure() throws Exception {
+        TextOutputFormat format = new TextOutputFormat();
+        format.setBufferSize(100);
+        format.setWriteBehind(true);
+        DataOutputFormat.Writer<String> writer = format.initialize(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Failure for test");
+            }
+        });
+        try {
+            for (int i = 0; i < 10000; i++) {
+                writer.write("line " + i);
+            }
+            Assert.fail("Write should fail");
+        } catch (IOException e) {
+            //expected
+        }
+        try {
+            writer.close();
+            Assert.fail("Close should report failed write");
+        } catch (IOException e) {
+            //expected
+        }
+        assertWriteBehindStopped();
+
+        //close interrupted while waiting for write-behind thread
+        writer = format.initialize(new ByteArrayOutputStream());
+        for (int i = 0; i < 100; i++) {
+            writer.write("line " + i);
+        }
+        Thread.currentThread().interrupt();
+        try {
+            writer.close();
+            Assert.fail("Close should be interrupted");
+        } catch (InterruptedIOException e) {
+            //expected
+        } finally {
+            Thread.interrupted();
+        }
+        assertWriteBehindStopped();
+    }
+
+    private static void assertWriteBehindStopped() throws Exception {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("sort4j-write-behind")) {
+                thread.join(5000);
+                Assert.assertFalse(thread.isAlive());
+            }
+        }
+    }
+
+    @Test
+    public void testCharsetAndLineBreak() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TextOutputFormat format = new TextOutputFormat("\r\n", "windows-1251");
+        DataOutputFormat.Writer<String> writer = format.initialize(bytes);
+        writer.write("ж");
+        writer.write("");
+        writer.close();
+        Assert.assertEquals("ж\r\n\r\n", new String(bytes.toByteArray(), "windows-1251"));
+        Assert.assertEquals("\n", new TextOutputFormat("UTF-16").getLineBreak());
+    }
+}